@@ -29,6 +29,32 @@ public interface Analysis<T extends AnalysisConsumer> {
    */
   public void analyze(Collection<? extends Module> files, T server, boolean rerun);
 
+  /**
+   * Tells if the analysis needs the opened files as {@link
+   * com.ibm.wala.classLoader.SourceFileModule} on disk, e.g. because its frontend reads source code
+   * by file path. Otherwise the analysis gets {@link magpiebridge.file.InMemorySourceModule}s which
+   * serve the current text from memory.
+   *
+   * @return true, if the files should be written to disk before the analysis runs
+   */
+  public default boolean requiresSourceFiles() {
+    return true;
+  }
+
+  /**
+   * Tells if the server may publish the results of the last run again instead of running the
+   * analysis, when the files didn't change since then. Only analyses which consume all their
+   * results under {@link #source()} before {@link #analyze(Collection, AnalysisConsumer, boolean)}
+   * returns should opt in, the results of other runs aren't reused anyway. The server only compares
+   * the opened files, so analyses which read anything else, e.g. the other files of the workspace
+   * or the library path, must not opt in.
+   *
+   * @return true, if the results of an unchanged snapshot can be reused
+   */
+  public default boolean reusesResults() {
+    return false;
+  }
+
   /**
    * Define configuration options allowed by the analysis, override it if there are options
    * supported.
@@ -1,7 +1,12 @@
 package magpiebridge.core;
 
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import magpiebridge.projectservice.java.JavaProjectService;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
 
 /**
  * The Interface IProjectService defines service which resolves project scope. An implementation of
@@ -26,4 +31,44 @@ public interface IProjectService {
    * @return project type in the root path
    */
   public String getProjectType();
+
+  /**
+   * Gets the source path, i.e. the root directories of the source files of the project. An empty
+   * set means that the whole root path contains source files.
+   *
+   * @return the source path
+   */
+  public default Set<Path> getSourcePath() {
+    return Collections.emptySet();
+  }
+
+  /**
+   * Start resolving the project information in the background, e.g. when the server is initialized.
+   * Later requests for the project information should wait for this computation instead of starting
+   * their own.
+   *
+   * @return the future which completes when the project information is resolved
+   */
+  public default CompletableFuture<?> loadAsync() {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Gets the build files of the project, e.g. pom.xml or package.json. The server asks the client
+   * to watch them, and their changes are passed to {@link
+   * #didChangeWatchedFiles(DidChangeWatchedFilesParams)}.
+   *
+   * @return the glob patterns of the build files
+   */
+  public default Collection<String> getWatchedBuildFiles() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Handle the changes of watched files, e.g. to keep the inferred project information up to date
+   * without resolving it again.
+   *
+   * @param params the params
+   */
+  public default void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {}
 }
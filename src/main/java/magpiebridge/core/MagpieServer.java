@@ -6,6 +6,7 @@ package magpiebridge.core;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.ibm.wala.cast.tree.CAstSourcePositionMap.Position;
+import com.ibm.wala.classLoader.Module;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,12 +24,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -40,6 +44,9 @@ import magpiebridge.core.analysis.configuration.ConfigurationOption;
 import magpiebridge.core.analysis.configuration.MagpieHttpServer;
 import magpiebridge.core.analysis.configuration.OptionType;
 import magpiebridge.file.SourceFileManager;
+import magpiebridge.file.SourceFileSnapshot;
+import magpiebridge.file.WorkspaceCrawler;
+import magpiebridge.file.WorkspaceSourceIndex;
 import magpiebridge.util.ExceptionLogger;
 import magpiebridge.util.MagpieMessageLogger;
 import magpiebridge.util.URIUtils;
@@ -50,7 +57,10 @@ import org.eclipse.lsp4j.CodeActionParams;
 import org.eclipse.lsp4j.CodeLens;
 import org.eclipse.lsp4j.CodeLensOptions;
 import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.DidChangeWatchedFilesRegistrationOptions;
 import org.eclipse.lsp4j.ExecuteCommandOptions;
+import org.eclipse.lsp4j.FileSystemWatcher;
 import org.eclipse.lsp4j.Hover;
 import org.eclipse.lsp4j.InitializeParams;
 import org.eclipse.lsp4j.InitializeResult;
@@ -61,6 +71,8 @@ import org.eclipse.lsp4j.MessageParams;
 import org.eclipse.lsp4j.MessageType;
 import org.eclipse.lsp4j.PublishDiagnosticsParams;
 import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.Registration;
+import org.eclipse.lsp4j.RegistrationParams;
 import org.eclipse.lsp4j.ServerCapabilities;
 import org.eclipse.lsp4j.ShowMessageRequestParams;
 import org.eclipse.lsp4j.TextDocumentSyncKind;
@@ -118,6 +130,9 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
    */
   protected Map<String, SourceFileManager> languageSourceFileManagers;
 
+  /** The workspace source indexes. language mapped to the index of its source files. */
+  protected Map<String, WorkspaceSourceIndex> languageWorkspaceIndexes;
+
   /** The language project services. language mapped to its project service. */
   protected Map<String, IProjectService> languageProjectServices;
 
@@ -136,6 +151,24 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
   /** The code actions. */
   protected Map<URL, Map<Range, List<CodeAction>>> codeActions;
 
+  /**
+   * The fingerprint of the files analyzed by the last completed run of each analysis, analysis
+   * source mapped to fingerprint.
+   */
+  protected Map<String, String> lastAnalyzedFingerprints;
+
+  /** The results of the last run of each analysis, analysis source mapped to results. */
+  protected Map<String, List<AnalysisResult>> lastAnalysisResults;
+
+  /** The sources of the analyses which consumed results since their last run started. */
+  protected Set<String> consumedSources;
+
+  /** The loading of the project services started in initialized(), language mapped to future. */
+  protected Map<String, CompletableFuture<?>> projectServiceLoads;
+
+  /** The analysis runs waiting for the loading of the project service, language mapped to run. */
+  protected Map<String, CompletableFuture<Void>> deferredAnalyses;
+
   /** The root path. */
   protected Optional<Path> rootPath;
 
@@ -171,12 +204,18 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
     this.analysisConfiguration = new ArrayList<>();
     this.languageSourceFileManagers = new HashMap<String, SourceFileManager>();
     this.languageProjectServices = new HashMap<String, IProjectService>();
+    this.projectServiceLoads = new ConcurrentHashMap<>();
+    this.deferredAnalyses = new ConcurrentHashMap<>();
+    this.languageWorkspaceIndexes = new ConcurrentHashMap<>();
     this.versionControlService = Optional.empty();
     this.diagnostics = new HashMap<>();
     this.hovers = new HashMap<>();
     this.codeLenses = new HashMap<>();
     this.codeActions = new HashMap<>();
     this.serverClientUri = new HashMap<>();
+    this.lastAnalyzedFingerprints = new ConcurrentHashMap<>();
+    this.lastAnalysisResults = new ConcurrentHashMap<>();
+    this.consumedSources = ConcurrentHashMap.newKeySet();
   }
 
   public LanguageClient getClient() {
@@ -352,7 +391,7 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
     cl.setResolveProvider(false);
     caps.setCodeLensProvider(cl);
     caps.setHoverProvider(true);
-    caps.setTextDocumentSync(TextDocumentSyncKind.Full);
+    caps.setTextDocumentSync(TextDocumentSyncKind.Incremental);
     ExecuteCommandOptions exec = new ExecuteCommandOptions();
     MagpieWorkspaceService service = (MagpieWorkspaceService) workspaceService;
     exec.setCommands(service.getCommandNames());
@@ -379,13 +418,86 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
       }
       if (this.versionControlService.isPresent())
         this.versionControlService.get().setRootPath(this.rootPath.get());
+      loadProjectServices();
     }
+    registerWatchedFiles();
 
     if (config.showConfigurationPage()) {
       createAndStartLocalHttpServer();
     }
   }
 
+  /**
+   * Start loading the project services of all languages in parallel in the background, so that the
+   * first analysis doesn't need to infer the source and class path itself.
+   */
+  protected void loadProjectServices() {
+    Map<IProjectService, CompletableFuture<?>> loads = new HashMap<>();
+    for (Entry<String, IProjectService> entry : languageProjectServices.entrySet()) {
+      // the same service may be registered for several languages.
+      CompletableFuture<?> load =
+          loads.computeIfAbsent(
+              entry.getValue(),
+              service ->
+                  CompletableFuture.supplyAsync(service::loadAsync, THREAD_POOL)
+                      .thenCompose(f -> f)
+                      .whenComplete(
+                          (result, e) -> {
+                            if (e != null) {
+                              MagpieServer.ExceptionLogger.log(
+                                  "Loading the project service failed: " + e);
+                            }
+                          }));
+      projectServiceLoads.put(entry.getKey(), load);
+    }
+  }
+
+  /**
+   * Ask the client to notify the server about changes of the source files of all languages with
+   * analyses and of the build files of the project services, if the client supports dynamic
+   * registration of watched files.
+   */
+  protected void registerWatchedFiles() {
+    if (client == null
+        || clientConfig == null
+        || clientConfig.getWorkspace() == null
+        || clientConfig.getWorkspace().getDidChangeWatchedFiles() == null
+        || !Boolean.TRUE.equals(
+            clientConfig.getWorkspace().getDidChangeWatchedFiles().getDynamicRegistration())) {
+      return;
+    }
+    List<FileSystemWatcher> watchers = new ArrayList<>();
+    for (String language : languageAnalyses.keySet()) {
+      String suffix = getSourceFileManager(language).getFileSuffix();
+      if (suffix.startsWith(".")) {
+        watchers.add(new FileSystemWatcher("**/*" + suffix));
+      }
+    }
+    List<Registration> registrations = new ArrayList<>();
+    if (!watchers.isEmpty()) {
+      registrations.add(
+          new Registration(
+              "magpie-source-files",
+              "workspace/didChangeWatchedFiles",
+              new DidChangeWatchedFilesRegistrationOptions(watchers)));
+    }
+    Set<String> buildFiles = new LinkedHashSet<>();
+    for (IProjectService service : languageProjectServices.values()) {
+      buildFiles.addAll(service.getWatchedBuildFiles());
+    }
+    if (!buildFiles.isEmpty()) {
+      registrations.add(
+          new Registration(
+              "magpie-build-files",
+              "workspace/didChangeWatchedFiles",
+              new DidChangeWatchedFilesRegistrationOptions(
+                  buildFiles.stream().map(FileSystemWatcher::new).collect(Collectors.toList()))));
+    }
+    if (!registrations.isEmpty()) {
+      client.registerCapability(new RegistrationParams(registrations));
+    }
+  }
+
   protected void createAndStartLocalHttpServer() {
     try {
       initAnalysisConfiguration();
@@ -436,6 +548,7 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
                       "Run Analysis",
                       () -> {
                         this.cleanUp();
+                        this.invalidateAnalysisResults();
                         this.doSingleAnalysis(language, e, true);
                       })
                   .setSource(source + ": " + language));
@@ -522,6 +635,51 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
     return this.languageSourceFileManagers.get(language);
   }
 
+  /**
+   * Gets the index of all source files of the given language in the workspace. The source roots are
+   * the source path of the project service of the language, or the root path of the workspace if
+   * the project service doesn't know the source path.
+   *
+   * @param language the language
+   * @return the workspace source index
+   */
+  public WorkspaceSourceIndex getWorkspaceSourceIndex(String language) {
+    return this.languageWorkspaceIndexes.computeIfAbsent(
+        language,
+        l ->
+            new WorkspaceSourceIndex(
+                getSourceFileManager(l),
+                () -> {
+                  Set<Path> sourcePath =
+                      getProjectService(l)
+                          .map(IProjectService::getSourcePath)
+                          .orElse(Collections.emptySet());
+                  if (sourcePath.isEmpty() && rootPath != null && rootPath.isPresent()) {
+                    return Collections.singleton(rootPath.get());
+                  }
+                  return sourcePath;
+                },
+                () -> rootPath != null ? rootPath : Optional.empty()));
+  }
+
+  /**
+   * Handle the changes of watched files: the workspace inventories, the project services and the
+   * workspace source indexes are updated and the results of the last analysis runs are invalidated.
+   *
+   * @param params the params
+   */
+  public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+    WorkspaceCrawler.didChangeWatchedFiles(params);
+    // the same service may be registered for several languages.
+    for (IProjectService service : new HashSet<>(this.languageProjectServices.values())) {
+      service.didChangeWatchedFiles(params);
+    }
+    for (WorkspaceSourceIndex index : this.languageWorkspaceIndexes.values()) {
+      index.didChangeWatchedFiles(params);
+    }
+    invalidateAnalysisResults();
+  }
+
   /**
    * Add project service for different languages. This should be specified by the user of
    * MagpieServer.<br>
@@ -581,13 +739,57 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
   }
 
   /**
-   * Do analysis.
+   * Do analysis. While the project service of the language is still loading in the background, the
+   * analysis runs on the thread pool of the server once the loading completed, see {@link
+   * #doAnalysisAsync(String, boolean)}. Otherwise the analysis runs right away.
    *
    * @param language the language
    * @param rerun tells if the analysis should be reran.
    */
   public void doAnalysis(String language, boolean rerun) {
-    SourceFileManager fileManager = getSourceFileManager(language);
+    doAnalysisAsync(language, rerun);
+  }
+
+  /**
+   * Do analysis like {@link #doAnalysis(String, boolean)}, but tell when it ran. While the project
+   * service of the language is still loading in the background, the analysis runs on the thread
+   * pool of the server once the loading completed, so that the caller, e.g. the thread handling the
+   * messages of the client, isn't blocked. Such runs keep their order.
+   *
+   * @param language the language
+   * @param rerun tells if the analysis should be reran.
+   * @return the future of the analysis run, completed if it ran right away
+   */
+  public CompletableFuture<Void> doAnalysisAsync(String language, boolean rerun) {
+    CompletableFuture<Void> deferred =
+        deferredAnalyses.compute(
+            language,
+            (l, previous) -> {
+              CompletableFuture<?> before =
+                  previous != null && !previous.isDone()
+                      ? previous
+                      : projectServiceLoads.get(language);
+              if (before == null || before.isDone()) {
+                return null;
+              }
+              // failures of the loading are logged already, the analysis runs anyway.
+              return before
+                  .handle((result, e) -> null)
+                  .thenRunAsync(() -> runAnalyses(language, rerun), THREAD_POOL)
+                  .exceptionally(
+                      e -> {
+                        MagpieServer.ExceptionLogger.log("Analysis failed: " + e);
+                        return null;
+                      });
+            });
+    if (deferred != null) {
+      return deferred;
+    }
+    runAnalyses(language, rerun);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  private void runAnalyses(String language, boolean rerun) {
     if (!languageAnalyses.containsKey(language)) {
       languageAnalyses.put(language, Collections.emptyList());
     }
@@ -606,14 +808,57 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
       a = analysis.getRight();
     }
     if (a != null) {
+      String source = a.source();
+      boolean reuse = rerun && a.reusesResults();
+      // the analysis works on this snapshot, while later changes of the files land in new ones.
+      SourceFileSnapshot snapshot = fileManager.getSnapshot();
+      String fingerprint = snapshot.getFingerprint();
+      List<AnalysisResult> lastResults = this.lastAnalysisResults.get(source);
+      if (reuse
+          && fingerprint.equals(this.lastAnalyzedFingerprints.get(source))
+          && lastResults != null) {
+        // nothing changed since the last completed run, publish its results again.
+        List<AnalysisResult> results;
+        synchronized (lastResults) {
+          results = new ArrayList<>(lastResults);
+        }
+        publish(results, source);
+        return;
+      }
+      this.lastAnalyzedFingerprints.remove(source);
+      this.consumedSources.remove(source);
+      if (reuse) {
+        // record the results of this run.
+        this.lastAnalysisResults.put(source, Collections.synchronizedList(new ArrayList<>()));
+      } else {
+        // the analysis may decide itself not to run, so this run can't be recorded.
+        this.lastAnalysisResults.remove(source);
+      }
       this.forwardMessageToClient(
-          new MessageParams(MessageType.Info, a.source() + " started analyzing the code."));
-      a.analyze(fileManager.getSourceFileModules().values(), this, rerun);
+          new MessageParams(MessageType.Info, source + " started analyzing the code."));
+      Collection<? extends Module> files =
+          a.requiresSourceFiles()
+              ? snapshot.getSourceFileModules().values()
+              : snapshot.getSourceModules().values();
+      a.analyze(files, this, rerun);
+      if (reuse && this.consumedSources.contains(source)) {
+        // only a run which delivered its results can be reused.
+        this.lastAnalyzedFingerprints.put(source, fingerprint);
+      }
       this.forwardMessageToClient(
-          new MessageParams(MessageType.Info, a.source() + " finished analyzing the code."));
+          new MessageParams(MessageType.Info, source + " finished analyzing the code."));
     }
   }
 
+  /**
+   * Forget the fingerprints of the last runs, so that the next run of each analysis isn't skipped.
+   * This should be called when something else than the opened files changes the analysis results,
+   * e.g. the configuration of the analyses or files on disk.
+   */
+  public void invalidateAnalysisResults() {
+    this.lastAnalyzedFingerprints.clear();
+  }
+
   /**
    * This method removes the given Diagnostic from the given uri in the client.
    *
@@ -652,6 +897,21 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
    */
   @Override
   public void consume(Collection<AnalysisResult> results, String source) {
+    this.consumedSources.add(source);
+    List<AnalysisResult> lastResults = this.lastAnalysisResults.get(source);
+    if (lastResults != null) {
+      lastResults.addAll(results);
+    }
+    publish(results, source);
+  }
+
+  /**
+   * Publish the analysis results to the client.
+   *
+   * @param results the results
+   * @param source the source
+   */
+  protected void publish(Collection<AnalysisResult> results, String source) {
     Map<String, List<Diagnostic>> publishDiags = new HashMap<>();
     for (AnalysisResult result : results) {
       URL serverURL = result.position().getURL();
@@ -780,7 +1040,7 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
       this.codeLenses.put(url, new ArrayList<>());
     }
     List<CodeLens> lenses = this.codeLenses.get(url);
-    lenses.add(codeLens);
+    if (!lenses.contains(codeLens)) lenses.add(codeLens);
   }
 
   /**
@@ -947,6 +1207,7 @@ public class MagpieServer implements AnalysisConsumer, LanguageServer, LanguageC
                     e -> {
                       (e.isLeft() ? e.getLeft() : e.getRight()).configure(configuration);
                     }));
+    invalidateAnalysisResults();
     initAnalysisConfiguration();
     return getAnalysisConfiguration();
   }
@@ -114,7 +114,12 @@ public class MagpieTextDocumentService implements TextDocumentService {
   }
 
   @Override
-  public void didClose(DidCloseTextDocumentParams params) {}
+  public void didClose(DidCloseTextDocumentParams params) {
+    // release the closed file in file manager
+    String language = inferLanguage(params.getTextDocument().getUri());
+    SourceFileManager fileManager = server.getSourceFileManager(language);
+    fileManager.didClose(params);
+  }
 
   @Override
   public void didSave(DidSaveTextDocumentParams params) {
@@ -71,7 +71,7 @@ public class MagpieWorkspaceService implements WorkspaceService {
 
   @Override
   public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
-    // TODO Auto-generated method stub
+    server.didChangeWatchedFiles(params);
   }
 
   @Override
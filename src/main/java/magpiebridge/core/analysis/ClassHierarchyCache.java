@@ -0,0 +1,165 @@
+package magpiebridge.core.analysis;
+
+import com.ibm.wala.cast.java.ipa.callgraph.JavaSourceAnalysisScope;
+import com.ibm.wala.cast.java.translator.jdt.ecj.ECJClassLoaderFactory;
+import com.ibm.wala.classLoader.IClass;
+import com.ibm.wala.classLoader.IClassLoader;
+import com.ibm.wala.classLoader.Module;
+import com.ibm.wala.ipa.callgraph.AnalysisScope;
+import com.ibm.wala.ipa.cha.ClassHierarchy;
+import com.ibm.wala.ipa.cha.ClassHierarchyException;
+import com.ibm.wala.ipa.cha.ClassHierarchyFactory;
+import com.ibm.wala.ipa.cha.IClassHierarchy;
+import com.ibm.wala.types.ClassLoaderReference;
+import com.ibm.wala.util.config.SetOfClasses;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * This class makes the class hierarchies of a WALA based source analysis, which runs again and
+ * again on the same project. The class loaders of the JDK and the libraries, i.e. of the
+ * primordial, extension and application loaders, are kept across runs, only the source loader is
+ * created again for each run. The kept loaders are used as long as the modules in their scope and
+ * the exclusions stay the same, so the jars should be added with the modules of {@link
+ * magpiebridge.file.JarModuleCache}, which are shared until a jar changes.
+ *
+ * <p>The kept loaders are created for a base hierarchy of the kept modules without any sources,
+ * which stays the same as long as the loaders are kept. So {@link IClass#getClassHierarchy()} of a
+ * JDK or library class returns this base hierarchy and not the hierarchy of a run, which keeps
+ * these classes independent of the sources of any run, and no source loader or IR of a previous run
+ * stays reachable from the kept loaders. The kept loaders are shared by the hierarchies of
+ * consecutive runs, so an analysis should use its own cache and not run concurrently with itself.
+ */
+public class ClassHierarchyCache {
+
+  private static final Logger LOG = Logger.getLogger("main");
+
+  /** The loaders which are kept, in the order of the loader hierarchy. */
+  private static final ClassLoaderReference[] KEPT_LOADERS = {
+    ClassLoaderReference.Primordial,
+    ClassLoaderReference.Extension,
+    ClassLoaderReference.Application
+  };
+
+  /** The modules of the kept loaders when they were created. */
+  private List<List<Module>> modules;
+
+  private SetOfClasses exclusions;
+  private final Map<ClassLoaderReference, IClassLoader> loaders = new HashMap<>();
+
+  /** The hierarchy of the kept loaders without sources, null if the loaders need to be created. */
+  private ClassHierarchy base;
+
+  /** A loader factory which serves the kept loaders and creates the others. */
+  private class CachingLoaderFactory extends ECJClassLoaderFactory {
+
+    CachingLoaderFactory(SetOfClasses exclusions) {
+      super(exclusions);
+    }
+
+    @Override
+    protected IClassLoader makeNewClassLoader(
+        ClassLoaderReference reference,
+        IClassHierarchy cha,
+        IClassLoader parent,
+        AnalysisScope scope)
+        throws IOException {
+      IClassLoader loader = loaders.get(reference);
+      if (loader == null) {
+        loader = super.makeNewClassLoader(reference, cha, parent, scope);
+        if (isKept(reference)) {
+          loaders.put(reference, loader);
+        }
+      }
+      return loader;
+    }
+  }
+
+  private static boolean isKept(ClassLoaderReference reference) {
+    for (ClassLoaderReference kept : KEPT_LOADERS) {
+      if (kept.equals(reference)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the modules of the kept loaders of a scope, i.e. of the JDK and library classes. The
+   * loaders are reused as long as these modules stay equal.
+   *
+   * @param scope the scope
+   * @return the modules by loader
+   */
+  public static List<List<Module>> keptModules(AnalysisScope scope) {
+    List<List<Module>> result = new ArrayList<>();
+    for (ClassLoaderReference reference : KEPT_LOADERS) {
+      result.add(new ArrayList<>(scope.getModules(reference)));
+    }
+    return result;
+  }
+
+  /** Makes a scope with the kept modules of the scope and without a source loader. */
+  private static AnalysisScope baseScope(AnalysisScope scope) {
+    AnalysisScope base = AnalysisScope.createJavaAnalysisScope();
+    base.setExclusions(scope.getExclusions());
+    for (ClassLoaderReference reference : KEPT_LOADERS) {
+      for (Module module : scope.getModules(reference)) {
+        base.addToScope(reference, module);
+      }
+    }
+    return base;
+  }
+
+  /**
+   * Gets the base hierarchy of the kept loaders, i.e. of the JDK and library classes of the last
+   * scope without sources.
+   *
+   * @return the base hierarchy, null if no hierarchy was made yet
+   */
+  public synchronized ClassHierarchy getBaseHierarchy() {
+    return base;
+  }
+
+  /**
+   * Makes the class hierarchy of a scope like {@link ClassHierarchyFactory#make(AnalysisScope,
+   * com.ibm.wala.classLoader.ClassLoaderFactory)} with an {@link ECJClassLoaderFactory}. The
+   * sources in the {@link JavaSourceAnalysisScope#SOURCE} loader are always loaded again, the other
+   * loaders are reused from the previous call if their modules didn't change.
+   *
+   * @param scope the scope
+   * @return the class hierarchy
+   * @throws ClassHierarchyException if the hierarchy can't be made
+   */
+  public synchronized ClassHierarchy make(AnalysisScope scope) throws ClassHierarchyException {
+    List<List<Module>> current = keptModules(scope);
+    if (!current.equals(modules) || scope.getExclusions() != exclusions) {
+      if (modules != null) {
+        LOG.info("Loading the JDK and library classes again, the scope changed.");
+      }
+      loaders.clear();
+      base = null;
+      modules = current;
+      exclusions = scope.getExclusions();
+    }
+    try {
+      if (base == null) {
+        // the kept loaders are created for the base hierarchy, not for the hierarchy of this run.
+        base =
+            ClassHierarchyFactory.make(
+                baseScope(scope), new CachingLoaderFactory(scope.getExclusions()));
+      }
+      return ClassHierarchyFactory.make(scope, new CachingLoaderFactory(scope.getExclusions()));
+    } catch (ClassHierarchyException | RuntimeException e) {
+      // don't keep loaders which might be incomplete.
+      loaders.clear();
+      base = null;
+      modules = null;
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,289 @@
+package magpiebridge.core.analysis;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.Range;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.BodyDeclaration;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.expr.LambdaExpr;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.MethodReferenceExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.ast.stmt.BlockStmt;
+import com.github.javaparser.ast.stmt.ExplicitConstructorInvocationStmt;
+import com.github.javaparser.ast.stmt.LocalClassDeclarationStmt;
+import com.ibm.wala.classLoader.Module;
+import com.ibm.wala.classLoader.ModuleEntry;
+import com.ibm.wala.classLoader.SourceModule;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A snapshot of the Java sources an analysis ran on, which tells the next run which methods
+ * changed. Each file is split into its class signatures, i.e. the file without the bodies of its
+ * methods and constructors, and these bodies. An analysis can reuse its previous results for all
+ * methods whose bodies didn't change, as long as no class signature changed.
+ *
+ * <p>A body change is only reported as such if it keeps the call structure of the method, i.e. the
+ * called methods and the instantiated classes, and neither the old nor the new body declares
+ * classes, e.g. anonymous classes or lambdas. Otherwise the call graph can change and the change
+ * counts as a signature change.
+ */
+public class SourceSnapshot {
+
+  /** The fingerprints of the files by the URLs of their source modules. */
+  private final Map<String, FileFingerprint> files;
+
+  private static class FileFingerprint {
+    /** The file without method bodies, or the whole text if it can't be parsed. */
+    final String signature;
+    /** The methods by their declarations, e.g. p.C.Inner.void m(int). */
+    final Map<String, MethodFingerprint> methods;
+
+    FileFingerprint(String signature, Map<String, MethodFingerprint> methods) {
+      this.signature = signature;
+      this.methods = methods;
+    }
+  }
+
+  private static class MethodFingerprint {
+    final int firstLine;
+    final int lastLine;
+    final String body;
+    /** The names of the called methods and instantiated classes. */
+    final Set<String> calls;
+
+    final boolean declaresClasses;
+
+    MethodFingerprint(
+        int firstLine, int lastLine, String body, Set<String> calls, boolean declaresClasses) {
+      this.firstLine = firstLine;
+      this.lastLine = lastLine;
+      this.body = body;
+      this.calls = calls;
+      this.declaresClasses = declaresClasses;
+    }
+
+    boolean sameAs(MethodFingerprint other) {
+      return firstLine == other.firstLine && lastLine == other.lastLine && body.equals(other.body);
+    }
+  }
+
+  /** A method whose body changed between two snapshots, with its lines in both snapshots. */
+  public static class MethodChange {
+    private final String file;
+    private final int oldFirstLine;
+    private final int oldLastLine;
+    private final int newFirstLine;
+    private final int newLastLine;
+
+    MethodChange(String file, MethodFingerprint previous, MethodFingerprint current) {
+      this.file = file;
+      this.oldFirstLine = previous.firstLine;
+      this.oldLastLine = previous.lastLine;
+      this.newFirstLine = current.firstLine;
+      this.newLastLine = current.lastLine;
+    }
+
+    /** @return the URL of the file. */
+    public String getFile() {
+      return file;
+    }
+
+    /**
+     * Checks if a position belonged to the method in the previous snapshot.
+     *
+     * @param url the URL of the file
+     * @param line the line
+     * @return true if the line was in the method
+     */
+    public boolean containedBefore(URL url, int line) {
+      return url != null
+          && file.equals(url.toString())
+          && line >= oldFirstLine
+          && line <= oldLastLine;
+    }
+
+    /**
+     * Checks if a position belongs to the method in the current snapshot.
+     *
+     * @param url the URL of the file
+     * @param line the line
+     * @return true if the line is in the method
+     */
+    public boolean contains(URL url, int line) {
+      return url != null
+          && file.equals(url.toString())
+          && line >= newFirstLine
+          && line <= newLastLine;
+    }
+  }
+
+  private SourceSnapshot(Map<String, FileFingerprint> files) {
+    this.files = files;
+  }
+
+  /**
+   * Takes a snapshot of the Java source modules, e.g. the modules of a {@link
+   * magpiebridge.file.WorkspaceSourceIndex}. Other modules are ignored.
+   *
+   * @param sources the source modules
+   * @return the snapshot
+   * @throws IOException if a source can't be read
+   */
+  public static SourceSnapshot of(Collection<? extends Module> sources) throws IOException {
+    Map<String, String> texts = new LinkedHashMap<>();
+    for (Module module : sources) {
+      for (Iterator<? extends ModuleEntry> it = module.getEntries(); it.hasNext(); ) {
+        ModuleEntry entry = it.next();
+        if (entry instanceof SourceModule && entry.getName().endsWith(".java")) {
+          SourceModule source = (SourceModule) entry;
+          try (Reader reader = source.getInputReader()) {
+            texts.put(String.valueOf(source.getURL()), IOUtils.toString(reader));
+          }
+        }
+      }
+    }
+    return of(texts);
+  }
+
+  /**
+   * Takes a snapshot of Java sources.
+   *
+   * @param sources the texts of the sources by their URLs
+   * @return the snapshot
+   */
+  public static SourceSnapshot of(Map<String, String> sources) {
+    Map<String, FileFingerprint> files = new HashMap<>();
+    for (Map.Entry<String, String> source : sources.entrySet()) {
+      files.put(source.getKey(), fingerprint(source.getValue()));
+    }
+    return new SourceSnapshot(files);
+  }
+
+  /**
+   * Compares this snapshot with the snapshot of the previous run.
+   *
+   * @param previous the previous snapshot
+   * @return the methods whose bodies changed, empty if a class signature changed, i.e. if the
+   *     previous results can't be reused
+   */
+  public Optional<List<MethodChange>> changedMethods(SourceSnapshot previous) {
+    if (!files.keySet().equals(previous.files.keySet())) {
+      return Optional.empty();
+    }
+    List<MethodChange> changes = new ArrayList<>();
+    for (Map.Entry<String, FileFingerprint> file : files.entrySet()) {
+      FileFingerprint current = file.getValue();
+      FileFingerprint before = previous.files.get(file.getKey());
+      if (!current.signature.equals(before.signature)) {
+        return Optional.empty();
+      }
+      for (Map.Entry<String, MethodFingerprint> method : current.methods.entrySet()) {
+        MethodFingerprint now = method.getValue();
+        MethodFingerprint then = before.methods.get(method.getKey());
+        if (then == null) {
+          return Optional.empty();
+        }
+        if (!now.sameAs(then)) {
+          if (!now.body.equals(then.body)
+              && (now.declaresClasses || then.declaresClasses || !now.calls.equals(then.calls))) {
+            return Optional.empty();
+          }
+          changes.add(new MethodChange(file.getKey(), then, now));
+        }
+      }
+    }
+    return Optional.of(changes);
+  }
+
+  private static FileFingerprint fingerprint(String text) {
+    ParseResult<CompilationUnit> result = new JavaParser().parse(text);
+    if (!result.isSuccessful() || !result.getResult().isPresent()) {
+      return new FileFingerprint(text, Collections.emptyMap());
+    }
+    CompilationUnit unit = result.getResult().get();
+    Map<String, MethodFingerprint> methods = new LinkedHashMap<>();
+    StringBuilder memberLines = new StringBuilder();
+    for (TypeDeclaration<?> type : unit.getTypes()) {
+      collect(type, type.getNameAsString(), methods, memberLines);
+    }
+    // the bodies were replaced by empty blocks, so only the signatures are printed.
+    return new FileFingerprint(unit.toString() + memberLines, methods);
+  }
+
+  private static void collect(
+      TypeDeclaration<?> type,
+      String typeName,
+      Map<String, MethodFingerprint> methods,
+      StringBuilder memberLines) {
+    for (BodyDeclaration<?> member : type.getMembers()) {
+      if (member instanceof TypeDeclaration) {
+        TypeDeclaration<?> nested = (TypeDeclaration<?>) member;
+        collect(nested, typeName + "." + nested.getNameAsString(), methods, memberLines);
+      } else if (member instanceof MethodDeclaration
+          && ((MethodDeclaration) member).getBody().isPresent()) {
+        MethodDeclaration method = (MethodDeclaration) member;
+        methods.put(key(typeName, method), fingerprint(method, method.getBody().get()));
+        method.setBody(new BlockStmt());
+      } else if (member instanceof ConstructorDeclaration) {
+        ConstructorDeclaration constructor = (ConstructorDeclaration) member;
+        methods.put(key(typeName, constructor), fingerprint(constructor, constructor.getBody()));
+        constructor.setBody(new BlockStmt());
+      } else {
+        // fields and initializers keep their code in the signature, the lines are added since
+        // their code belongs to the constructors and static initializers.
+        memberLines.append('\n').append(member.getRange().map(r -> r.begin.line).orElse(-1));
+      }
+    }
+  }
+
+  private static String key(String typeName, CallableDeclaration<?> callable) {
+    return typeName + "." + callable.getDeclarationAsString(false, false, false);
+  }
+
+  private static MethodFingerprint fingerprint(Node declaration, BlockStmt body) {
+    Optional<Range> range = declaration.getRange();
+    Set<String> calls = new TreeSet<>();
+    for (MethodCallExpr call : body.findAll(MethodCallExpr.class)) {
+      calls.add(call.getNameAsString() + "/" + call.getArguments().size());
+    }
+    for (ObjectCreationExpr creation : body.findAll(ObjectCreationExpr.class)) {
+      calls.add("new " + creation.getType().asString() + "/" + creation.getArguments().size());
+    }
+    for (ExplicitConstructorInvocationStmt call :
+        body.findAll(ExplicitConstructorInvocationStmt.class)) {
+      calls.add((call.isThis() ? "this/" : "super/") + call.getArguments().size());
+    }
+    boolean declaresClasses =
+        body.findFirst(ObjectCreationExpr.class, c -> c.getAnonymousClassBody().isPresent())
+                .isPresent()
+            || body.findFirst(LocalClassDeclarationStmt.class).isPresent()
+            || body.findFirst(LambdaExpr.class).isPresent()
+            || body.findFirst(MethodReferenceExpr.class).isPresent();
+    return new MethodFingerprint(
+        range.map(r -> r.begin.line).orElse(-1),
+        range.map(r -> r.end.line).orElse(-1),
+        body.toString(),
+        calls,
+        declaresClasses);
+  }
+}
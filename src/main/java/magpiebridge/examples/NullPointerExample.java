@@ -22,33 +22,84 @@ import com.ibm.wala.ipa.callgraph.Entrypoint;
 import com.ibm.wala.ipa.callgraph.impl.Util;
 import com.ibm.wala.ipa.cha.ClassHierarchy;
 import com.ibm.wala.ipa.cha.ClassHierarchyException;
-import com.ibm.wala.ipa.cha.ClassHierarchyFactory;
 import com.ibm.wala.ipa.cha.IClassHierarchy;
-import com.ibm.wala.properties.WalaProperties;
 import com.ibm.wala.ssa.*;
 import com.ibm.wala.ssa.analysis.IExplodedBasicBlock;
 import com.ibm.wala.types.ClassLoaderReference;
 import com.ibm.wala.util.CancelException;
 import com.ibm.wala.util.NullProgressMonitor;
 import com.ibm.wala.util.WalaException;
-import com.ibm.wala.util.collections.HashSetFactory;
 import com.ibm.wala.util.collections.Pair;
 import com.ibm.wala.util.graph.GraphIntegrity;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.net.URI;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
-import java.util.jar.JarFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import magpiebridge.core.*;
-import magpiebridge.file.SourceFileManager;
+import magpiebridge.core.analysis.ClassHierarchyCache;
+import magpiebridge.core.analysis.SourceSnapshot;
+import magpiebridge.core.analysis.SourceSnapshot.MethodChange;
+import magpiebridge.file.JarModuleCache;
+import magpiebridge.projectservice.java.JavaHeaderScanner;
+import magpiebridge.projectservice.java.JavaProjectService;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.lsp4j.DiagnosticSeverity;
 import org.eclipse.lsp4j.MessageParams;
 
 public class NullPointerExample implements ServerAnalysis {
 
+  private static final Logger LOG = Logger.getLogger("main");
+
+  /** Qualified names in a source, e.g. in its imports or full qualified type names. */
+  private static final Pattern QUALIFIED_NAME =
+      Pattern.compile(
+          "\\p{javaJavaIdentifierStart}\\p{javaJavaIdentifierPart}*"
+              + "(?:\\.\\p{javaJavaIdentifierStart}\\p{javaJavaIdentifierPart}*)+");
+
+  private final ClassHierarchyCache hierarchies = new ClassHierarchyCache();
+  /** Reuse the results of the last run if nothing changed which the analysis can see. */
+  private final boolean incremental;
+
+  /** The sources, JDK and library modules and results of the last run. */
+  private SourceSnapshot baseSnapshot;
+
+  private List<List<Module>> baseModules;
+  private Collection<AnalysisResult> baseResults;
+
+  public NullPointerExample() {
+    this(false);
+  }
+
+  /**
+   * Instantiates a new null pointer example.
+   *
+   * @param incremental if the results of the last run are reused as long as no method, class
+   *     signature or module changed, instead of building the call graph again
+   */
+  public NullPointerExample(boolean incremental) {
+    this.incremental = incremental;
+  }
+
+  /**
+   * Extracts the source directory of a Java file, i.e. its path up to the first java directory.
+   *
+   * @param fullpath the path of the file
+   * @return the source directory, or "Wrong path" if the path has no java directory
+   * @deprecated the sources are taken from the {@link magpiebridge.file.WorkspaceSourceIndex} of
+   *     the server instead of guessing their directory from the path of an opened file.
+   */
+  @Deprecated
   public static String extractPath(String fullpath) {
     String ans = "";
 
@@ -72,6 +123,15 @@ public class NullPointerExample implements ServerAnalysis {
     return makeMainEntrypoints(cha);
   }
 
+  /**
+   * Gets the loader factory of the class hierarchies of the sources.
+   *
+   * @param scope the analysis scope
+   * @return the loader factory
+   * @deprecated the class hierarchies are made by a {@link ClassHierarchyCache}, which reuses the
+   *     JDK and library loaders of an {@link ECJClassLoaderFactory} across runs.
+   */
+  @Deprecated
   protected static ClassLoaderFactory getLoaderFactory(AnalysisScope scope) {
     return new ECJClassLoaderFactory(scope.getExclusions());
   }
@@ -79,163 +139,66 @@ public class NullPointerExample implements ServerAnalysis {
   @Override
   public void analyze(Collection<? extends Module> files, AnalysisConsumer server, boolean rerun) {
     try {
-      FileWriter f = new FileWriter("/tmp/null.log");
-      f.write(server.toString() + "\n");
       AnalysisScope scope = new JavaSourceAnalysisScope();
-      for (Module m : files) {
-        f.write(m.toString() + "\n");
+      Collection<? extends Module> sources = files;
+      if (server instanceof MagpieServer) {
+        // analyze the whole project, with the unsaved text of the opened files.
+        Collection<Module> workspaceSources =
+            ((MagpieServer) server).getWorkspaceSourceIndex("java").getSourceFileModules();
+        if (!workspaceSources.isEmpty()) {
+          sources = workspaceSources;
+        }
+      }
+      for (Module m : sources) {
         if (m instanceof SourceModule) {
-          if (((SourceModule) m).getURL().getProtocol().equals("file")) {
-
-            if (server instanceof MagpieServer) {
-              SourceFileManager sfm = ((MagpieServer) server).getSourceFileManager("java");
-              f.write(sfm.toString() + "\n");
-              f.write(sfm.getSourceFileModules().toString() + "\n");
-
-              for (Map.Entry<URI, SourceFileModule> x : sfm.getSourceFileModules().entrySet()) {
-                if (x.getValue() == m) {
-                  f.write(x.getKey().toString() + "\n");
-                  String path = x.getKey().getPath();
-                  f.write(path + "\n");
-                  if (path.indexOf("/src/") > 0 && path.indexOf("/java/") > 0) {
-                    String srcdir = extractPath(path);
-                    f.write(srcdir + "\n");
-                    Module file = new SourceDirectoryTreeModule(new File(srcdir));
-                    scope.addToScope(JavaSourceAnalysisScope.SOURCE, file);
-                    if (server instanceof MagpieServer) {
-                      MessageParams msg = new MessageParams();
-                      msg.setMessage("Using " + file);
-                      ((MagpieServer) server).getClient().showMessage(msg);
-                    }
-                    continue;
-                  }
-                }
-              }
-            }
-          }
           scope.addToScope(JavaSourceAnalysisScope.SOURCE, m);
         }
-        f.flush();
       }
-      String[] stdlibs = WalaProperties.getJ2SEJarFiles();
-      for (String stdlib : stdlibs) {
-        scope.addToScope(ClassLoaderReference.Primordial, new JarFile(stdlib));
+      LOG.log(Level.FINE, "Analyzing {0}", sources);
+      // the jars are opened once per server and shared by all runs.
+      for (Module stdlib : JarModuleCache.getJ2SEModules()) {
+        scope.addToScope(ClassLoaderReference.Primordial, stdlib);
+      }
+      if (server instanceof MagpieServer) {
+        Optional<IProjectService> projectService =
+            ((MagpieServer) server).getProjectService("java");
+        if (projectService.isPresent() && projectService.get() instanceof JavaProjectService) {
+          for (Module library :
+              JarModuleCache.getModules(
+                  referencedLibraries((JavaProjectService) projectService.get(), sources))) {
+            scope.addToScope(ClassLoaderReference.Application, library);
+          }
+        }
       }
 
-      // -----------
-      ClassHierarchy cha = ClassHierarchyFactory.make(scope, getLoaderFactory(scope));
-      Iterable<Entrypoint> entrypoints =
-          Util.makeMainEntrypoints(JavaSourceAnalysisScope.SOURCE, cha);
-      //      MessageParams msg = new MessageParams();
-      //      msg.setMessage("Found Entrypoints" + entrypoints);
-      //      ((MagpieServer) server).getClient().showMessage(msg);
-      entrypoints.forEach(x -> System.err.println(x));
-      //      System.err.println("Found Entrypoints" + entrypoints.forEach());
-      AnalysisOptions options = new AnalysisOptions(scope, entrypoints);
-      options.setEntrypoints(entrypoints);
-      options
-          .getSSAOptions()
-          .setDefaultValues(
-              new SSAOptions.DefaultValues() {
-                @Override
-                public int getDefaultValue(SymbolTable symtab, int valueNumber) {
-                  return symtab.getDefaultValue(valueNumber);
-                }
-              });
-      // you can dial down reflection handling if you like
-      options.setReflectionOptions(AnalysisOptions.ReflectionOptions.NONE);
-      AnalysisCache cache =
-          new AnalysisCacheImpl(AstIRFactory.makeDefaultFactory(), options.getSSAOptions());
-      //
-      //        ClassLoaderFactory factory = new ClassLoaderFactoryImpl(scope.getExclusions());
-
-      cha = ClassHierarchyFactory.make(scope, getLoaderFactory(scope));
-      CallGraphBuilder<?> builder =
-          new ZeroOneContainerCFABuilderFactory().make(options, cache, cha);
-      CallGraph cg = builder.makeCallGraph(options, null);
-      System.err.println(cg);
-
-      InterprocAnalysisResult<SSAInstruction, IExplodedBasicBlock> interExplodedCFG =
-          NullPointerAnalysis.computeInterprocAnalysis(cg, new NullProgressMonitor());
-      Set<AnalysisResult> results = HashSetFactory.make();
+      SourceSnapshot snapshot = incremental ? SourceSnapshot.of(sources) : null;
+      // e.g. a changed pom or library path changes the call graph as well.
+      List<List<Module>> modules = ClassHierarchyCache.keptModules(scope);
+      Optional<List<MethodChange>> changes =
+          snapshot != null && baseSnapshot != null && modules.equals(baseModules)
+              ? snapshot.changedMethods(baseSnapshot)
+              : Optional.empty();
+      Collection<AnalysisResult> results;
+      if (changes.isPresent() && changes.get().isEmpty()) {
+        // nothing changed which the analysis can see.
+        results = baseResults;
+      } else {
+        // -----------
+        // the JDK and library classes are loaded once, only the sources are loaded again.
+        ClassHierarchy cha = hierarchies.make(scope);
+        // WALA can't update a call graph, and a changed body can change the null pointer states
+        // of its callers and callees as well, so any change needs a full run.
+        results = analyzeAll(scope, cha, server);
+        if (incremental) {
+          baseSnapshot = snapshot;
+          baseModules = modules;
+          baseResults = results;
+        }
+      }
       MessageParams msg = new MessageParams();
-      msg.setMessage("cg " + cg.getNumberOfNodes());
-      ((MagpieServer) server).getClient().showMessage(msg);
-      cg.forEach(
-          Node -> {
-            IR ir = Node.getIR();
-            if (!(Node.getMethod() instanceof AstMethod)) {
-              return;
-            }
-            AstMethod asm = (AstMethod) Node.getMethod();
-            ExceptionPruningAnalysis<SSAInstruction, IExplodedBasicBlock> intraExplodedCFG =
-                interExplodedCFG.getResult(Node);
-            if (intraExplodedCFG != null) {
-              ControlFlowGraph<SSAInstruction, IExplodedBasicBlock> cfg = intraExplodedCFG.getCFG();
-
-              ir.iterateAllInstructions()
-                  .forEachRemaining(
-                      s -> {
-                        if (s.iIndex() >= 0) {
-                          IExplodedBasicBlock bb = cfg.getBlockForInstruction(s.iIndex());
-                          NullPointerState state1 = intraExplodedCFG.getState(bb);
-                          if (state1 != null) {
-                            for (int i = 0; i < s.getNumberOfUses(); i++) {
-                              if (s.getUse(i) != -1
-                                  && asm.debugInfo().getOperandPosition(s.iIndex(), i) != null) {
-
-                                NullPointerState.State state = state1.getState(s.getUse(i));
-                                int bad = i;
-                                results.add(
-                                    new AnalysisResult() {
-
-                                      @Override
-                                      public Kind kind() {
-                                        return Kind.Diagnostic;
-                                      }
-
-                                      @Override
-                                      public String toString(boolean useMarkdown) {
-                                        return state.toString();
-                                      }
-
-                                      @Override
-                                      public CAstSourcePositionMap.Position position() {
-                                        return asm.debugInfo().getOperandPosition(s.iIndex(), bad);
-                                      }
-
-                                      @Override
-                                      public Iterable<Pair<CAstSourcePositionMap.Position, String>>
-                                          related() {
-                                        return null;
-                                      }
-
-                                      @Override
-                                      public DiagnosticSeverity severity() {
-                                        return DiagnosticSeverity.Information;
-                                      }
-
-                                      @Override
-                                      public Pair<CAstSourcePositionMap.Position, String> repair() {
-                                        return null;
-                                      }
-
-                                      @Override
-                                      public String code() {
-                                        return null;
-                                      }
-                                    });
-                              }
-                            }
-                          }
-                        }
-                      });
-            }
-          });
-      msg = new MessageParams();
       msg.setMessage("Found " + results.size());
       ((MagpieServer) server).getClient().showMessage(msg);
-      server.consume(results, "NullPointerExample");
+      server.consume(results, source());
 
     } catch (ClassHierarchyException | IOException | CallGraphBuilderCancelException e) {
       throw new RuntimeException(e);
@@ -250,4 +213,196 @@ public class NullPointerExample implements ServerAnalysis {
     //        e.printStackTrace();
     //    }
   }
+
+  /**
+   * Gets the jars of the library path which the sources need, so that the other jars aren't loaded.
+   * These are the jars of the qualified names in the sources, e.g. of their imports and full
+   * qualified type names, and of the packages of the sources, together with the jars these jars
+   * need in turn, see {@link magpiebridge.projectservice.java.LibraryIndex#getJarsNeededBy}. Simple
+   * names of java.lang are served by the JDK. If a source can't be read or spells names with
+   * unicode escapes, the whole library path is used.
+   */
+  private static Set<Path> referencedLibraries(
+      JavaProjectService projectService, Collection<? extends Module> sources) {
+    Optional<Set<String>> names = referencedNames(sources);
+    return names.isPresent()
+        ? projectService.getLibraryIndex().getJarsNeededBy(names.get())
+        : projectService.getLibraryPath();
+  }
+
+  /**
+   * Gets the qualified names in the sources and their packages.
+   *
+   * @param sources the sources
+   * @return the names, empty if a source can't be read or spells names with unicode escapes
+   */
+  static Optional<Set<String>> referencedNames(Collection<? extends Module> sources) {
+    Set<String> names = new HashSet<>();
+    for (Module module : sources) {
+      if (!(module instanceof SourceModule)) {
+        continue;
+      }
+      try (Reader reader = ((SourceModule) module).getInputReader()) {
+        String text = IOUtils.toString(reader);
+        if (text.contains("\\u")) {
+          return Optional.empty();
+        }
+        JavaHeaderScanner.scanPackage(new StringReader(text)).ifPresent(names::add);
+        Matcher matcher = QUALIFIED_NAME.matcher(text);
+        while (matcher.find()) {
+          names.add(matcher.group());
+        }
+      } catch (IOException e) {
+        return Optional.empty();
+      }
+    }
+    return Optional.of(names);
+  }
+
+  /**
+   * Builds the call graph of all sources and runs the interprocedural null pointer analysis on it.
+   */
+  private Collection<AnalysisResult> analyzeAll(
+      AnalysisScope scope, ClassHierarchy cha, AnalysisConsumer server)
+      throws CallGraphBuilderCancelException, WalaException, GraphIntegrity.UnsoundGraphException,
+          CancelException {
+    CallGraph cg = makeCallGraph(scope, cha);
+    LOG.fine(() -> "Call graph: " + cg);
+
+    InterprocAnalysisResult<SSAInstruction, IExplodedBasicBlock> interExplodedCFG =
+        NullPointerAnalysis.computeInterprocAnalysis(cg, new NullProgressMonitor());
+    MessageParams msg = new MessageParams();
+    msg.setMessage("cg " + cg.getNumberOfNodes());
+    ((MagpieServer) server).getClient().showMessage(msg);
+    Set<AnalysisResult> results = extractResults(cg, interExplodedCFG, true);
+    return results;
+  }
+
+  /** Builds the call graph of the sources in the scope, starting from their main methods. */
+  static CallGraph makeCallGraph(AnalysisScope scope, ClassHierarchy cha)
+      throws CallGraphBuilderCancelException {
+    Iterable<Entrypoint> entrypoints =
+        Util.makeMainEntrypoints(JavaSourceAnalysisScope.SOURCE, cha);
+    //      MessageParams msg = new MessageParams();
+    //      msg.setMessage("Found Entrypoints" + entrypoints);
+    //      ((MagpieServer) server).getClient().showMessage(msg);
+    LOG.fine(() -> "Entrypoints: " + entrypoints);
+    AnalysisOptions options = new AnalysisOptions(scope, entrypoints);
+    options.setEntrypoints(entrypoints);
+    setDefaultValues(options.getSSAOptions());
+    // you can dial down reflection handling if you like
+    options.setReflectionOptions(AnalysisOptions.ReflectionOptions.NONE);
+    AnalysisCache cache =
+        new AnalysisCacheImpl(AstIRFactory.makeDefaultFactory(), options.getSSAOptions());
+
+    CallGraphBuilder<?> builder = new ZeroOneContainerCFABuilderFactory().make(options, cache, cha);
+    return builder.makeCallGraph(options, null);
+  }
+
+  /**
+   * Extracts the results of all nodes of the call graph. The IRs and the analysis results of the
+   * nodes are looked up first, since the caches of WALA aren't thread-safe. Then the instructions
+   * of the nodes, which only read them, are walked in parallel into a concurrent set.
+   *
+   * @param cg the call graph
+   * @param interExplodedCFG the result of the interprocedural analysis
+   * @param parallel if the nodes are walked in parallel
+   * @return the results
+   */
+  static Set<AnalysisResult> extractResults(
+      CallGraph cg,
+      InterprocAnalysisResult<SSAInstruction, IExplodedBasicBlock> interExplodedCFG,
+      boolean parallel) {
+    List<Pair<IR, ExceptionPruningAnalysis<SSAInstruction, IExplodedBasicBlock>>> nodes =
+        new ArrayList<>();
+    for (CGNode node : cg) {
+      if (node.getMethod() instanceof AstMethod) {
+        ExceptionPruningAnalysis<SSAInstruction, IExplodedBasicBlock> intraExplodedCFG =
+            interExplodedCFG.getResult(node);
+        if (intraExplodedCFG != null) {
+          nodes.add(Pair.make(node.getIR(), intraExplodedCFG));
+        }
+      }
+    }
+    Set<AnalysisResult> results = ConcurrentHashMap.newKeySet();
+    (parallel ? nodes.parallelStream() : nodes.stream())
+        .forEach(node -> collectResults(node.fst, node.snd, results));
+    return results;
+  }
+
+  private static void setDefaultValues(SSAOptions ssaOptions) {
+    ssaOptions.setDefaultValues(
+        new SSAOptions.DefaultValues() {
+          @Override
+          public int getDefaultValue(SymbolTable symtab, int valueNumber) {
+            return symtab.getDefaultValue(valueNumber);
+          }
+        });
+  }
+
+  /** Reports the null pointer state of each operand of the instructions of a method. */
+  private static void collectResults(
+      IR ir,
+      ExceptionPruningAnalysis<SSAInstruction, IExplodedBasicBlock> analysis,
+      Collection<AnalysisResult> results) {
+    AstMethod asm = (AstMethod) ir.getMethod();
+    ControlFlowGraph<SSAInstruction, IExplodedBasicBlock> cfg = analysis.getCFG();
+    ir.iterateAllInstructions()
+        .forEachRemaining(
+            s -> {
+              if (s.iIndex() >= 0) {
+                IExplodedBasicBlock bb = cfg.getBlockForInstruction(s.iIndex());
+                NullPointerState state1 = analysis.getState(bb);
+                if (state1 != null) {
+                  for (int i = 0; i < s.getNumberOfUses(); i++) {
+                    if (s.getUse(i) != -1
+                        && asm.debugInfo().getOperandPosition(s.iIndex(), i) != null) {
+
+                      NullPointerState.State state = state1.getState(s.getUse(i));
+                      int bad = i;
+                      results.add(
+                          new AnalysisResult() {
+
+                            @Override
+                            public Kind kind() {
+                              return Kind.Diagnostic;
+                            }
+
+                            @Override
+                            public String toString(boolean useMarkdown) {
+                              return state.toString();
+                            }
+
+                            @Override
+                            public CAstSourcePositionMap.Position position() {
+                              return asm.debugInfo().getOperandPosition(s.iIndex(), bad);
+                            }
+
+                            @Override
+                            public Iterable<Pair<CAstSourcePositionMap.Position, String>>
+                                related() {
+                              return null;
+                            }
+
+                            @Override
+                            public DiagnosticSeverity severity() {
+                              return DiagnosticSeverity.Information;
+                            }
+
+                            @Override
+                            public Pair<CAstSourcePositionMap.Position, String> repair() {
+                              return null;
+                            }
+
+                            @Override
+                            public String code() {
+                              return null;
+                            }
+                          });
+                    }
+                  }
+                }
+              }
+            });
+  }
 }
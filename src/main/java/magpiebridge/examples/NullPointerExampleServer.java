@@ -11,7 +11,7 @@ public class NullPointerExampleServer {
 
   public static MagpieServer bridge() {
     MagpieServer bridge = new MagpieServer(new ServerConfiguration());
-    bridge.addAnalysis(Either.forLeft(new NullPointerExample()), "java");
+    bridge.addAnalysis(Either.forLeft(new NullPointerExample(true)), "java");
 
     return bridge;
   }
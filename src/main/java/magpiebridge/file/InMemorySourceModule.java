@@ -0,0 +1,118 @@
+package magpiebridge.file;
+
+import com.ibm.wala.classLoader.Module;
+import com.ibm.wala.classLoader.ModuleEntry;
+import com.ibm.wala.classLoader.SourceModule;
+import com.ibm.wala.util.collections.NonNullSingletonIterator;
+import com.ibm.wala.util.debug.Assertions;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import magpiebridge.core.MagpieServer;
+
+/**
+ * A {@link SourceModule} which serves the text of a {@link VersionedSourceFile} straight from
+ * memory. The URL of the module is the client-side URI of the file, so analysis results reported on
+ * this module don't need to be mapped back to the client.
+ */
+public class InMemorySourceModule implements SourceModule {
+
+  private final URI clientUri;
+  private final VersionedSourceFile versionedFile;
+  private final String className;
+
+  /**
+   * Instantiates a new in-memory source module.
+   *
+   * @param clientUri the client-side URI of the file
+   * @param versionedFile the versioned file
+   */
+  public InMemorySourceModule(URI clientUri, VersionedSourceFile versionedFile) {
+    this.clientUri = clientUri;
+    this.versionedFile = versionedFile;
+    String[] strs = clientUri.toString().split("/");
+    this.className = strs[strs.length - 1];
+  }
+
+  /** @return the versioned source file served by this module. */
+  public VersionedSourceFile getVersionedFile() {
+    return versionedFile;
+  }
+
+  /** @return the client-side URI of the file. */
+  public URI getClientUri() {
+    return clientUri;
+  }
+
+  @Override
+  public Iterator<? extends ModuleEntry> getEntries() {
+    return new NonNullSingletonIterator<>(this);
+  }
+
+  @Override
+  public String getName() {
+    return className;
+  }
+
+  @Override
+  public boolean isClassFile() {
+    return false;
+  }
+
+  @Override
+  public boolean isSourceFile() {
+    return true;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return new ByteArrayInputStream(versionedFile.getText().getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public boolean isModuleFile() {
+    return false;
+  }
+
+  @Override
+  public Module asModule() {
+    Assertions.UNREACHABLE("implement me");
+    return null;
+  }
+
+  @Override
+  public String getClassName() {
+    return className;
+  }
+
+  @Override
+  public Module getContainer() {
+    return null;
+  }
+
+  @Override
+  public Reader getInputReader() {
+    return new StringReader(versionedFile.getText());
+  }
+
+  @Override
+  public URL getURL() {
+    try {
+      return clientUri.toURL();
+    } catch (MalformedURLException e) {
+      MagpieServer.ExceptionLogger.log(e);
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "InMemorySourceModule:" + clientUri + "@" + versionedFile.getVersion();
+  }
+}
@@ -0,0 +1,194 @@
+package magpiebridge.file;
+
+import com.ibm.wala.classLoader.JarFileModule;
+import com.ibm.wala.classLoader.Module;
+import com.ibm.wala.properties.WalaProperties;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import magpiebridge.util.CacheUtils;
+
+/**
+ * This class hands out shared jar modules to the WALA based analyses of a server, e.g. for the JDK
+ * and the library path of a project. A jar is opened and indexed once and its module is shared by
+ * all analyses and runs until the jar changes on disk, i.e. modules are keyed by path, size and
+ * modification time. The modules are read-only and can be used by concurrent analyses.
+ */
+public class JarModuleCache {
+
+  private static final Logger LOG = Logger.getLogger("main");
+
+  private static final Map<Path, CachedModule> modules = new ConcurrentHashMap<>();
+
+  /**
+   * The modules of jars which changed on disk. Analyses may still read from them, so their jars are
+   * closed once the modules aren't reachable any more, e.g. when the class hierarchies loaded from
+   * them are dropped.
+   */
+  private static final ReferenceQueue<Module> replaced = new ReferenceQueue<>();
+
+  private static final Set<ReplacedModule> replacedModules = ConcurrentHashMap.newKeySet();
+
+  private static class CachedModule {
+    final long size;
+    final long lastModified;
+    final SharedJarFileModule module;
+
+    CachedModule(long size, long lastModified, SharedJarFileModule module) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.module = module;
+    }
+  }
+
+  /** The jar of a replaced module, which is enqueued once the module isn't reachable. */
+  private static class ReplacedModule extends PhantomReference<Module> {
+    final JarFile file;
+
+    ReplacedModule(SharedJarFileModule module) {
+      super(module, replaced);
+      this.file = module.getJarFile();
+    }
+  }
+
+  /**
+   * A jar module which can be shared by analyses running in parallel: the contents cache of {@link
+   * JarFileModule} isn't thread-safe, so its access is synchronized.
+   */
+  private static class SharedJarFileModule extends JarFileModule {
+
+    SharedJarFileModule(JarFile file) {
+      super(file);
+    }
+
+    @Override
+    public synchronized byte[] getContents(ZipEntry entry) {
+      return super.getContents(entry);
+    }
+  }
+
+  private JarModuleCache() {}
+
+  /**
+   * Gets the shared module of a jar. The jar is opened again if its size or modification time
+   * changed, modules handed out before stay usable.
+   *
+   * @param jar the jar
+   * @return the module
+   * @throws IOException if the jar can't be opened
+   */
+  public static Module getModule(Path jar) throws IOException {
+    closeReplacedJars();
+    Path path = jar.toAbsolutePath().normalize();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    long size = attributes.size();
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    CachedModule cached = modules.get(path);
+    if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+      return cached.module;
+    }
+    try {
+      return modules.compute(
+              path,
+              (p, current) -> {
+                if (current != null
+                    && current.size == size
+                    && current.lastModified == lastModified) {
+                  // another analysis opened it meanwhile.
+                  return current;
+                }
+                if (current != null) {
+                  replacedModules.add(new ReplacedModule(current.module));
+                }
+                try {
+                  JarFile file = new JarFile(p.toFile(), false);
+                  return new CachedModule(size, lastModified, new SharedJarFileModule(file));
+                } catch (IOException e) {
+                  throw new IllegalStateException(e);
+                }
+              })
+          .module;
+    } catch (IllegalStateException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** Closes the jars of the replaced modules which no analysis can use any more. */
+  private static void closeReplacedJars() {
+    for (Reference<? extends Module> reference = replaced.poll();
+        reference != null;
+        reference = replaced.poll()) {
+      ReplacedModule module = (ReplacedModule) reference;
+      replacedModules.remove(module);
+      try {
+        module.file.close();
+      } catch (IOException e) {
+        LOG.fine(() -> "Can't close " + module.file.getName() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Gets the shared modules of jars, e.g. of the library path of a project. Entries which are no
+   * regular files, e.g. class directories, and jars which can't be opened are skipped.
+   *
+   * @param jars the jars
+   * @return the modules in the order of the jars
+   */
+  public static List<Module> getModules(Collection<Path> jars) {
+    List<Module> result = new ArrayList<>();
+    for (Path jar : jars) {
+      if (!Files.isRegularFile(jar)) {
+        continue;
+      }
+      try {
+        result.add(getModule(jar));
+      } catch (IOException e) {
+        LOG.warning("Can't open " + jar + ": " + e.getMessage());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the shared modules of the JDK given by {@link WalaProperties#getJ2SEJarFiles()}, which are
+   * usually added to the primordial loader of an analysis scope. The classes are served from a
+   * {@link PrimordialSnapshot} in the cache directory, the jars are used while it is written or if
+   * it can't be written.
+   *
+   * @return the modules
+   */
+  public static List<Module> getJ2SEModules() {
+    List<Path> jars = new ArrayList<>();
+    for (String jar : WalaProperties.getJ2SEJarFiles()) {
+      jars.add(Paths.get(jar));
+    }
+    if (!jars.isEmpty()) {
+      CompletableFuture<PrimordialSnapshot> snapshot =
+          PrimordialSnapshot.of(jars, CacheUtils.cacheDirectory().resolve("primordial"));
+      if (snapshot.isDone() && !snapshot.isCompletedExceptionally()) {
+        return Collections.singletonList(snapshot.join());
+      }
+    }
+    return getModules(jars);
+  }
+}
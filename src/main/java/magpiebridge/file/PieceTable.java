@@ -0,0 +1,373 @@
+package magpiebridge.file;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An immutable piece table which represents the text of a document as a sequence of pieces. Each
+ * piece refers to a slice of an immutable buffer: the original text of the document or the text
+ * inserted by an edit. The pieces are kept in a persistent balanced tree (treap) ordered by their
+ * position in the document. Every node caches the length and the number of line breaks of its
+ * subtree, thus edits and conversions between line/character positions and offsets take O(log n)
+ * time. Edits never modify an existing table, they return a new one which shares all untouched
+ * nodes with the old one.
+ */
+public final class PieceTable {
+
+  /** The maximal number of pieces before the table is compacted into a single piece. */
+  private static final int MAX_PIECES = 4096;
+
+  /** An immutable text buffer together with the offsets of its line breaks. */
+  private static final class Buffer {
+    private final String text;
+    /** Offsets of all '\n' characters in the text, in ascending order. */
+    private final int[] lineBreaks;
+
+    private Buffer(String text) {
+      this.text = text;
+      int count = 0;
+      for (int i = 0; i < text.length(); i++) {
+        if (text.charAt(i) == '\n') count++;
+      }
+      this.lineBreaks = new int[count];
+      int j = 0;
+      for (int i = 0; i < text.length(); i++) {
+        if (text.charAt(i) == '\n') lineBreaks[j++] = i;
+      }
+    }
+
+    /** Number of line breaks in the range [start, end) of this buffer. */
+    private int countLineBreaks(int start, int end) {
+      return lowerBound(end) - lowerBound(start);
+    }
+
+    /** Index of the first line break whose offset is not less than the given offset. */
+    private int lowerBound(int offset) {
+      int index = Arrays.binarySearch(lineBreaks, offset);
+      return index >= 0 ? index : -index - 1;
+    }
+  }
+
+  /** A node of the treap. Each node holds exactly one piece. */
+  private static final class Node {
+    private final Buffer buffer;
+    private final int start;
+    private final int length;
+    private final int lineBreaks;
+    private final int priority;
+    private final Node left;
+    private final Node right;
+    private final int subtreeLength;
+    private final int subtreeLineBreaks;
+    private final int subtreeSize;
+
+    private Node(
+        Buffer buffer, int start, int length, int lineBreaks, int priority, Node left, Node right) {
+      this.buffer = buffer;
+      this.start = start;
+      this.length = length;
+      this.lineBreaks = lineBreaks;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+      this.subtreeLength = length(left) + length + length(right);
+      this.subtreeLineBreaks = lineBreaks(left) + lineBreaks + lineBreaks(right);
+      this.subtreeSize = size(left) + 1 + size(right);
+    }
+
+    private Node(Buffer buffer, int start, int length) {
+      this(
+          buffer,
+          start,
+          length,
+          buffer.countLineBreaks(start, start + length),
+          ThreadLocalRandom.current().nextInt(),
+          null,
+          null);
+    }
+
+    private Node withChildren(Node left, Node right) {
+      return new Node(buffer, start, length, lineBreaks, priority, left, right);
+    }
+  }
+
+  private static final PieceTable EMPTY = new PieceTable(null);
+
+  private final Node root;
+
+  /** The materialized text, computed lazily. */
+  private volatile String text;
+
+  private PieceTable(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Creates a piece table for the given text.
+   *
+   * @param text the text
+   * @return the piece table
+   */
+  public static PieceTable of(String text) {
+    if (text == null || text.isEmpty()) {
+      return EMPTY;
+    }
+    PieceTable table = new PieceTable(new Node(new Buffer(text), 0, text.length()));
+    table.text = text;
+    return table;
+  }
+
+  /** @return the number of characters in the document. */
+  public int length() {
+    return length(root);
+  }
+
+  /** @return the number of lines in the document, which is the number of line breaks plus one. */
+  public int getLineCount() {
+    return lineBreaks(root) + 1;
+  }
+
+  /**
+   * Converts a zero-based line and character position to an offset in the document. A character
+   * beyond the end of the line is clamped to the end of the line (excluding the line break), a line
+   * beyond the end of the document is clamped to the end of the document.
+   *
+   * @param line the zero-based line
+   * @param character the zero-based character in the line
+   * @return the offset
+   */
+  public int offsetAt(int line, int character) {
+    if (line < 0) {
+      return 0;
+    }
+    if (line >= getLineCount()) {
+      return length();
+    }
+    int lineStart = lineStartOffset(line);
+    int lineEnd = line + 1 < getLineCount() ? lineStartOffset(line + 1) - 1 : length();
+    return Math.min(lineStart + Math.max(character, 0), lineEnd);
+  }
+
+  /**
+   * Gets the zero-based line which contains the given offset.
+   *
+   * @param offset the offset
+   * @return the line
+   */
+  public int lineAt(int offset) {
+    offset = Math.max(0, Math.min(offset, length()));
+    int line = 0;
+    Node node = root;
+    while (node != null) {
+      int leftLength = length(node.left);
+      if (offset < leftLength) {
+        node = node.left;
+      } else if (offset < leftLength + node.length) {
+        int local = offset - leftLength;
+        return line
+            + lineBreaks(node.left)
+            + node.buffer.countLineBreaks(node.start, node.start + local);
+      } else {
+        line += lineBreaks(node.left) + node.lineBreaks;
+        offset -= leftLength + node.length;
+        node = node.right;
+      }
+    }
+    return line;
+  }
+
+  /**
+   * Gets the offset where the given zero-based line starts.
+   *
+   * @param line the line
+   * @return the start offset of the line
+   */
+  public int lineStartOffset(int line) {
+    if (line <= 0) {
+      return 0;
+    }
+    if (line >= getLineCount()) {
+      return length();
+    }
+    // find the (line)-th line break, the line starts right after it.
+    int remaining = line;
+    int offset = 0;
+    Node node = root;
+    while (node != null) {
+      int leftBreaks = lineBreaks(node.left);
+      if (remaining <= leftBreaks) {
+        node = node.left;
+      } else if (remaining <= leftBreaks + node.lineBreaks) {
+        int first = node.buffer.lowerBound(node.start);
+        int breakOffset = node.buffer.lineBreaks[first + remaining - leftBreaks - 1];
+        return offset + length(node.left) + breakOffset - node.start + 1;
+      } else {
+        remaining -= leftBreaks + node.lineBreaks;
+        offset += length(node.left) + node.length;
+        node = node.right;
+      }
+    }
+    return length();
+  }
+
+  /**
+   * Gets the text of the given zero-based line without the line break.
+   *
+   * @param line the line
+   * @return the text of the line
+   */
+  public String getLine(int line) {
+    if (line < 0 || line >= getLineCount()) {
+      return "";
+    }
+    int start = lineStartOffset(line);
+    int end = line + 1 < getLineCount() ? lineStartOffset(line + 1) - 1 : length();
+    String content = substring(start, end);
+    // drop the carriage return of a windows line break.
+    return content.endsWith("\r") ? content.substring(0, content.length() - 1) : content;
+  }
+
+  /**
+   * Gets the text in the range [start, end).
+   *
+   * @param start the start offset
+   * @param end the end offset
+   * @return the text
+   */
+  public String substring(int start, int end) {
+    String materialized = this.text;
+    if (materialized != null) {
+      return materialized.substring(start, end);
+    }
+    StringBuilder builder = new StringBuilder(end - start);
+    append(root, start, end, builder);
+    return builder.toString();
+  }
+
+  /**
+   * Replaces the text in the range [start, end) with the given text.
+   *
+   * @param start the start offset
+   * @param end the end offset
+   * @param newText the new text
+   * @return the new piece table
+   */
+  public PieceTable replace(int start, int end, String newText) {
+    start = Math.max(0, Math.min(start, length()));
+    end = Math.max(start, Math.min(end, length()));
+    Node[] headTail = split(root, start);
+    Node[] midTail = split(headTail[1], end - start);
+    Node inserted =
+        newText == null || newText.isEmpty()
+            ? null
+            : new Node(new Buffer(newText), 0, newText.length());
+    Node result = merge(merge(headTail[0], inserted), midTail[1]);
+    if (size(result) > MAX_PIECES) {
+      StringBuilder builder = new StringBuilder(length(result));
+      append(result, 0, length(result), builder);
+      return of(builder.toString());
+    }
+    return result == null ? EMPTY : new PieceTable(result);
+  }
+
+  /**
+   * Replaces the text between the given zero-based line/character positions.
+   *
+   * @param startLine the start line
+   * @param startCharacter the start character
+   * @param endLine the end line
+   * @param endCharacter the end character
+   * @param newText the new text
+   * @return the new piece table
+   */
+  public PieceTable replace(
+      int startLine, int startCharacter, int endLine, int endCharacter, String newText) {
+    return replace(offsetAt(startLine, startCharacter), offsetAt(endLine, endCharacter), newText);
+  }
+
+  /** @return the full text of the document. */
+  public String getText() {
+    String materialized = this.text;
+    if (materialized == null) {
+      StringBuilder builder = new StringBuilder(length());
+      append(root, 0, length(), builder);
+      materialized = builder.toString();
+      this.text = materialized;
+    }
+    return materialized;
+  }
+
+  @Override
+  public String toString() {
+    return getText();
+  }
+
+  private static void append(Node node, int start, int end, StringBuilder builder) {
+    if (node == null || start >= end) {
+      return;
+    }
+    int leftLength = length(node.left);
+    if (start < leftLength) {
+      append(node.left, start, Math.min(end, leftLength), builder);
+    }
+    int pieceStart = Math.max(start - leftLength, 0);
+    int pieceEnd = Math.min(end - leftLength, node.length);
+    if (pieceStart < pieceEnd) {
+      builder.append(node.buffer.text, node.start + pieceStart, node.start + pieceEnd);
+    }
+    int rightOffset = leftLength + node.length;
+    if (end > rightOffset) {
+      append(node.right, Math.max(start - rightOffset, 0), end - rightOffset, builder);
+    }
+  }
+
+  /**
+   * Splits the tree into two trees, the first one contains the first offset characters. A piece
+   * which spans the offset is cut into two pieces.
+   */
+  private static Node[] split(Node node, int offset) {
+    if (node == null) {
+      return new Node[] {null, null};
+    }
+    int leftLength = length(node.left);
+    if (offset <= leftLength) {
+      Node[] parts = split(node.left, offset);
+      return new Node[] {parts[0], node.withChildren(parts[1], node.right)};
+    }
+    if (offset >= leftLength + node.length) {
+      Node[] parts = split(node.right, offset - leftLength - node.length);
+      return new Node[] {node.withChildren(node.left, parts[0]), parts[1]};
+    }
+    int local = offset - leftLength;
+    Node head = new Node(node.buffer, node.start, local);
+    Node tail = new Node(node.buffer, node.start + local, node.length - local);
+    return new Node[] {merge(node.left, head), merge(tail, node.right)};
+  }
+
+  /** Merges two trees, all pieces of the first tree come before all pieces of the second. */
+  private static Node merge(Node left, Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      return left.withChildren(left.left, merge(left.right, right));
+    } else {
+      return right.withChildren(merge(left, right.left), right.right);
+    }
+  }
+
+  private static int length(Node node) {
+    return node == null ? 0 : node.subtreeLength;
+  }
+
+  private static int lineBreaks(Node node) {
+    return node == null ? 0 : node.subtreeLineBreaks;
+  }
+
+  private static int size(Node node) {
+    return node == null ? 0 : node.subtreeSize;
+  }
+}
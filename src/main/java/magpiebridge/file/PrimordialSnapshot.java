@@ -0,0 +1,394 @@
+package magpiebridge.file;
+
+import com.ibm.wala.classLoader.Module;
+import com.ibm.wala.classLoader.ModuleEntry;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+import magpiebridge.util.CacheUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A snapshot of the classes of the JDK, which are usually loaded by the primordial loader of a WALA
+ * analysis. The first time a JDK is used, the class files of its jars are decompressed into one
+ * uncompressed pack file in the background. Later, e.g. when the server starts again, the pack is
+ * memory-mapped and the classes are read straight from the mapping instead of inflating them from
+ * the jars again. The pack is keyed by the Java version and the paths, sizes and modification times
+ * of the jars, only the pack of the latest key is kept in the directory.
+ *
+ * <p>WALA can't persist a class hierarchy, so the snapshot holds the class files, which the loader
+ * still reads and parses all of when it is initialized, the pack only saves their decompression.
+ */
+public class PrimordialSnapshot implements Module {
+
+  private static final Logger LOG = Logger.getLogger("main");
+
+  /** "MBCP" followed by the format version. */
+  private static final int MAGIC = 0x4d424350;
+
+  private static final int VERSION = 1;
+
+  /** Writes the packs, the thread doesn't keep the JVM alive. */
+  private static final ExecutorService EXECUTOR =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            Thread thread = new Thread(r, "magpie-class-pack");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** Temporary files of packs which weren't moved for this long are left over from a crash. */
+  private static final long TEMP_FILE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final Map<Path, CompletableFuture<PrimordialSnapshot>> snapshots =
+      new LinkedHashMap<>();
+
+  private final Path file;
+  private final ByteBuffer buffer;
+  private final List<ClassEntry> entries;
+
+  /** A class file in the pack. */
+  private class ClassEntry implements ModuleEntry {
+    private final String name;
+    private final int offset;
+    private final int length;
+
+    ClassEntry(String name, int offset, int length) {
+      this.name = name;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean isClassFile() {
+      return true;
+    }
+
+    @Override
+    public boolean isSourceFile() {
+      return false;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      ByteBuffer content = buffer.duplicate();
+      content.position(offset);
+      content.limit(offset + length);
+      return new ByteBufferInputStream(content.slice());
+    }
+
+    @Override
+    public boolean isModuleFile() {
+      return false;
+    }
+
+    @Override
+    public Module asModule() {
+      throw new UnsupportedOperationException(name + " is no module");
+    }
+
+    @Override
+    public String getClassName() {
+      return name.substring(0, name.length() - ".class".length());
+    }
+
+    @Override
+    public Module getContainer() {
+      return PrimordialSnapshot.this;
+    }
+
+    @Override
+    public String toString() {
+      return "ClassEntry:" + name;
+    }
+  }
+
+  /** An input stream over a slice of the mapped pack. */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  private PrimordialSnapshot(Path file, ByteBuffer buffer) throws IOException {
+    this.file = file;
+    this.buffer = buffer;
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      throw new IOException("not a class pack: " + file);
+    }
+    int count = buffer.getInt();
+    List<ClassEntry> classes = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte[] name = new byte[Short.toUnsignedInt(buffer.getShort())];
+      buffer.get(name);
+      int offset = buffer.getInt();
+      int length = buffer.getInt();
+      if (offset < 0 || length < 0 || (long) offset + length > buffer.limit()) {
+        throw new IOException("corrupt class pack: " + file);
+      }
+      classes.add(new ClassEntry(new String(name, StandardCharsets.UTF_8), offset, length));
+    }
+    this.entries = Collections.unmodifiableList(classes);
+  }
+
+  /**
+   * Gets the snapshot of the JDK jars. If there is no pack yet, it is written to the directory in
+   * the background and the jars should be used until the snapshot is done. A pack which can't be
+   * read, e.g. a truncated one, is deleted and written again, and so is a pack whose writing failed
+   * before. The snapshot is shared while the server runs.
+   *
+   * @param jars the jars of the JDK, e.g. from {@link
+   *     com.ibm.wala.properties.WalaProperties#getJ2SEJarFiles()}
+   * @param directory the directory of the snapshots
+   * @return the snapshot, which fails if the pack can't be written or read
+   */
+  public static synchronized CompletableFuture<PrimordialSnapshot> of(
+      List<Path> jars, Path directory) {
+    Path file;
+    try {
+      file = directory.resolve(key(jars) + ".pack");
+    } catch (IOException e) {
+      LOG.warning("Can't use a snapshot of the JDK: " + e.getMessage());
+      return failed(e);
+    }
+    CompletableFuture<PrimordialSnapshot> snapshot = snapshots.get(file);
+    if (snapshot != null && !snapshot.isCompletedExceptionally()) {
+      return snapshot;
+    }
+    if (Files.isRegularFile(file)) {
+      try {
+        snapshot = CompletableFuture.completedFuture(read(file));
+        snapshots.put(file, snapshot);
+        return snapshot;
+      } catch (IOException e) {
+        LOG.warning("Can't read the class pack " + file + ", writing it again: " + e.getMessage());
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException ex) {
+          LOG.warning("Can't delete the class pack " + file + ": " + ex.getMessage());
+          return failed(ex);
+        }
+      }
+    }
+    snapshot =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                long start = System.currentTimeMillis();
+                write(jars, file);
+                LOG.info(
+                    "Wrote the class pack of "
+                        + jars
+                        + " in "
+                        + (System.currentTimeMillis() - start)
+                        + " ms.");
+                evict(file);
+                return read(file);
+              } catch (IOException e) {
+                LOG.warning("Can't write a snapshot of the JDK: " + e.getMessage());
+                throw new UncheckedIOException(e);
+              }
+            },
+            EXECUTOR);
+    snapshots.put(file, snapshot);
+    return snapshot;
+  }
+
+  private static <T> CompletableFuture<T> failed(Throwable e) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(e);
+    return future;
+  }
+
+  private static PrimordialSnapshot read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new PrimordialSnapshot(
+          file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } catch (RuntimeException e) {
+      // e.g. a pack which was truncated.
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Deletes the packs of other keys, e.g. of a JDK which was updated, and temporary files left over
+   * by crashed writes. Files which can't be deleted, e.g. packs still mapped on Windows, are
+   * deleted next time.
+   */
+  private static void evict(Path file) {
+    long now = System.currentTimeMillis();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(file.getParent())) {
+      for (Path other : files) {
+        String name = other.getFileName().toString();
+        try {
+          if (name.endsWith(".pack") && !other.equals(file)
+              || name.endsWith(".tmp")
+                  && now - Files.getLastModifiedTime(other).toMillis() > TEMP_FILE_MILLIS) {
+            Files.deleteIfExists(other);
+          }
+        } catch (IOException e) {
+          LOG.fine(() -> "Can't delete " + other + ": " + e.getMessage());
+        }
+      }
+    } catch (IOException e) {
+      LOG.fine(() -> "Can't list " + file.getParent() + ": " + e.getMessage());
+    }
+  }
+
+  private static String key(List<Path> jars) throws IOException {
+    StringBuilder content = new StringBuilder();
+    content.append(System.getProperty("java.version")).append('\n');
+    for (Path jar : jars) {
+      BasicFileAttributes attributes = Files.readAttributes(jar, BasicFileAttributes.class);
+      content
+          .append(jar.toAbsolutePath().normalize())
+          .append('\t')
+          .append(attributes.size())
+          .append('\t')
+          .append(attributes.lastModifiedTime().toMillis())
+          .append('\n');
+    }
+    return CacheUtils.sha256(content.toString());
+  }
+
+  /**
+   * Writes the class files of the jars into a pack, the first jar wins for duplicate classes. The
+   * sizes are taken from the central directories, so the contents are streamed into the pack.
+   */
+  private static void write(List<Path> jars, Path file) throws IOException {
+    List<JarFile> jarFiles = new ArrayList<>();
+    try {
+      Map<String, JarEntry> classes = new LinkedHashMap<>();
+      Map<String, JarFile> containers = new LinkedHashMap<>();
+      long headerSize = 12;
+      for (Path jar : jars) {
+        JarFile jarFile = new JarFile(jar.toFile(), false);
+        jarFiles.add(jarFile);
+        Enumeration<JarEntry> it = jarFile.entries();
+        while (it.hasMoreElements()) {
+          JarEntry entry = it.nextElement();
+          if (entry.getName().endsWith(".class") && !classes.containsKey(entry.getName())) {
+            if (entry.getSize() < 0) {
+              throw new IOException("unknown size of " + entry.getName() + " in " + jar);
+            }
+            classes.put(entry.getName(), entry);
+            containers.put(entry.getName(), jarFile);
+            headerSize += 2 + entry.getName().getBytes(StandardCharsets.UTF_8).length + 8;
+          }
+        }
+      }
+      Files.createDirectories(file.getParent());
+      Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      try {
+        try (DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.writeInt(classes.size());
+          long offset = headerSize;
+          for (JarEntry entry : classes.values()) {
+            if (offset + entry.getSize() > Integer.MAX_VALUE) {
+              throw new IOException("the classes of " + jars + " are too large for a pack");
+            }
+            byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(name.length);
+            out.write(name);
+            out.writeInt((int) offset);
+            out.writeInt((int) entry.getSize());
+            offset += entry.getSize();
+          }
+          for (JarEntry entry : classes.values()) {
+            try (InputStream in = containers.get(entry.getName()).getInputStream(entry)) {
+              if (IOUtils.copyLarge(in, out) != entry.getSize()) {
+                throw new IOException("the size of " + entry.getName() + " changed");
+              }
+            }
+          }
+        }
+        try {
+          Files.move(
+              temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } finally {
+      for (JarFile jarFile : jarFiles) {
+        jarFile.close();
+      }
+    }
+  }
+
+  /** @return the pack file of the snapshot. */
+  public Path getFile() {
+    return file;
+  }
+
+  @Override
+  public Iterator<? extends ModuleEntry> getEntries() {
+    return entries.iterator();
+  }
+
+  @Override
+  public String toString() {
+    return "PrimordialSnapshot:" + file;
+  }
+}
@@ -1,45 +1,80 @@
 package magpiebridge.file;
 
 import com.ibm.wala.classLoader.SourceFileModule;
-import com.ibm.wala.util.io.TemporaryFile;
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
 import magpiebridge.core.MagpieServer;
+import org.apache.commons.io.FileUtils;
 import org.eclipse.lsp4j.DidChangeTextDocumentParams;
+import org.eclipse.lsp4j.DidCloseTextDocumentParams;
 import org.eclipse.lsp4j.DidOpenTextDocumentParams;
 import org.eclipse.lsp4j.DidSaveTextDocumentParams;
-import org.eclipse.lsp4j.Range;
-import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.eclipse.lsp4j.TextDocumentIdentifier;
 import org.eclipse.lsp4j.TextDocumentItem;
 import org.eclipse.lsp4j.VersionedTextDocumentIdentifier;
 
 /**
- * This class manages all source files of a given language sent from client to server.
+ * This class manages all source files of a given language sent from client to server. The files are
+ * published as immutable {@link SourceFileSnapshot}s: each change creates a new generation of the
+ * snapshot, while analyses keep working on the generation they started with.
  *
  * @author Linghui Luo
  */
 public class SourceFileManager {
 
+  private static final Logger LOG = Logger.getLogger("main");
+
+  /**
+   * The maximal number of characters of closed files which are kept for a quick reopen. Closed
+   * files beyond this limit are evicted, least recently closed first.
+   */
+  private static final long MAX_CLOSED_CHARACTERS = 4L * 1024 * 1024;
+
+  /**
+   * The documents opened in any source file manager, keyed by both their client-side and
+   * server-side locations. Utilities which need the text at a source position use this instead of
+   * reading and scanning the file again.
+   */
+  private static final Map<String, VersionedSourceFile> openDocuments = new ConcurrentHashMap<>();
+
   /** The language. */
   private String language;
-  /** Client-side URI mapped to versioned source file. */
-  private Map<URI, VersionedSourceFile> versionedFiles;
+  /** The current snapshot of the opened files. */
+  private volatile SourceFileSnapshot snapshot;
   /** Client-side URI mapped to source file module. */
   private Map<URI, SourceFileModule> sourceFileModules;
+  /** Client-side URI mapped to the versioned source file last written to disk. */
+  private Map<URI, VersionedSourceFile> materializedFiles;
+  /** Client-side URI mapped to the generation of the snapshot last written to disk. */
+  private Map<URI, Long> materializedGenerations;
+  /** The directory of this session where shadow files of the client-side files are written. */
+  private Path sessionDirectory;
   /** Server-side URI string mapped to client-side URI string. */
   private Map<String, String> serverClientUri;
 
   private Map<URI, FileState> fileStates;
+  /** Client-side URI mapped to closed versioned source file, in the order they were closed. */
+  private LinkedHashMap<URI, VersionedSourceFile> closedFiles;
+  /** Client-side URI mapped to the source file module of a closed file. */
+  private Map<URI, SourceFileModule> closedSourceFileModules;
+  /** The number of characters of all closed files. */
+  private long closedCharacters;
 
   /**
    * Instantiates a new source file manager.
@@ -49,58 +84,199 @@ public class SourceFileManager {
    */
   public SourceFileManager(String language, Map<String, String> serverClientUri) {
     this.language = language;
-    this.versionedFiles = new HashMap<>();
+    this.snapshot = new SourceFileSnapshot(this, 0, new HashMap<>(), new HashMap<>());
     this.sourceFileModules = new HashMap<>();
+    this.materializedFiles = new HashMap<>();
+    this.materializedGenerations = new HashMap<>();
     this.serverClientUri = serverClientUri;
-    this.fileStates = new HashMap<>();
+    this.fileStates = new ConcurrentHashMap<>();
+    this.closedFiles = new LinkedHashMap<>();
+    this.closedSourceFileModules = new HashMap<>();
   }
 
   /**
-   * Add the opened file to versionedFiles and generate source file module for it.
+   * Add the opened file to a new snapshot and generate in-memory source module for it.
    *
    * @param params the params
    */
-  public void didOpen(DidOpenTextDocumentParams params) {
+  public synchronized void didOpen(DidOpenTextDocumentParams params) {
     TextDocumentItem doc = params.getTextDocument();
     if (doc.getLanguageId().equals(language)) {
       String uri = doc.getUri();
-      VersionedSourceFile sourceFile = new VersionedSourceFile(doc.getText(), doc.getVersion());
       URI clientUri = URI.create(uri);
+      VersionedSourceFile sourceFile = reopen(clientUri, doc);
       this.fileStates.put(clientUri, FileState.OPENED);
-      this.versionedFiles.put(clientUri, sourceFile);
-      generateSourceFileModule(clientUri, sourceFile);
+      update(clientUri, sourceFile);
+      openDocuments.put(documentKey(clientUri.toString()), sourceFile);
+      // in-memory source modules report results with the client-side URI.
+      this.serverClientUri.putIfAbsent(clientUri.toString(), clientUri.toString());
     }
   }
 
   /**
-   * Update the changed file and generate source file module for updated file.
+   * Update the changed file in a new snapshot and generate in-memory source module for updated
+   * file. Nothing is written to disk here, see {@link #getSourceFileModules()}.
    *
    * @param params the params
    */
-  public void didChange(DidChangeTextDocumentParams params) {
+  public synchronized void didChange(DidChangeTextDocumentParams params) {
     VersionedTextDocumentIdentifier doc = params.getTextDocument();
     String uri = doc.getUri();
     URI clientUri = URI.create(uri);
+    VersionedSourceFile existFile = snapshot.getFiles().get(clientUri);
+    if (existFile == null) {
+      // e.g. a change which arrives after the file was closed.
+      LOG.fine("Ignored a change of " + uri + ", the file isn't open.");
+      return;
+    }
     this.fileStates.put(clientUri, FileState.CHANGED);
-    VersionedSourceFile existFile = versionedFiles.get(URI.create(uri));
     int newVersion = doc.getVersion();
     if (newVersion > existFile.getVersion()) {
-      String existText = existFile.getText();
-      String newText = existText;
-      for (TextDocumentContentChangeEvent change : params.getContentChanges()) {
-        if (change.getRange() == null) {
-          // the nextText should be the full context of the file.
-          newText = change.getText();
-        } else {
-          newText = replaceText(newText, change);
-        }
+      VersionedSourceFile newFile = existFile.applyChanges(params.getContentChanges(), newVersion);
+      update(clientUri, newFile);
+      openDocuments.put(documentKey(clientUri.toString()), newFile);
+    }
+  }
+
+  /**
+   * Publish a new generation of the snapshot in which the given file is replaced.
+   *
+   * @param clientUri the client uri
+   * @param file the new file or null if the file was closed
+   */
+  private void update(URI clientUri, VersionedSourceFile file) {
+    Map<URI, VersionedSourceFile> files = new HashMap<>(snapshot.getFiles());
+    Map<URI, InMemorySourceModule> modules = new HashMap<>(snapshot.getSourceModules());
+    if (file == null) {
+      files.remove(clientUri);
+      modules.remove(clientUri);
+    } else {
+      files.put(clientUri, file);
+      modules.put(clientUri, new InMemorySourceModule(clientUri, file));
+    }
+    this.snapshot = new SourceFileSnapshot(this, snapshot.getGeneration() + 1, files, modules);
+  }
+
+  /**
+   * Creates the versioned source file of an opened file. If the file was closed recently and its
+   * text didn't change in the meantime, the closed file and its shadow file are reused.
+   *
+   * @param clientUri the client uri
+   * @param doc the opened document
+   * @return the versioned source file
+   */
+  private VersionedSourceFile reopen(URI clientUri, TextDocumentItem doc) {
+    VersionedSourceFile closedFile = this.closedFiles.remove(clientUri);
+    SourceFileModule closedModule = this.closedSourceFileModules.remove(clientUri);
+    if (closedFile == null) {
+      return new VersionedSourceFile(doc.getText(), doc.getVersion());
+    }
+    this.closedCharacters -= closedFile.getDocument().length();
+    if (closedModule != null) {
+      this.sourceFileModules.put(clientUri, closedModule);
+    }
+    if (!closedFile.getText().equals(doc.getText())) {
+      return new VersionedSourceFile(doc.getText(), doc.getVersion());
+    }
+    VersionedSourceFile sourceFile =
+        new VersionedSourceFile(closedFile.getDocument(), doc.getVersion());
+    if (this.materializedFiles.get(clientUri) == closedFile) {
+      // the shadow file still has this text.
+      this.materializedFiles.put(clientUri, sourceFile);
+    }
+    return sourceFile;
+  }
+
+  /**
+   * Release the closed file. The file is kept for a quick reopen until the closed files exceed
+   * {@link #MAX_CLOSED_CHARACTERS}, then the least recently closed files are evicted together with
+   * their shadow files.
+   *
+   * @param params the params
+   */
+  public synchronized void didClose(DidCloseTextDocumentParams params) {
+    URI clientUri = URI.create(params.getTextDocument().getUri());
+    VersionedSourceFile closedFile = snapshot.getFiles().get(clientUri);
+    if (closedFile == null) {
+      LOG.fine("Ignored closing " + clientUri + ", the file isn't open.");
+      return;
+    }
+    update(clientUri, null);
+    this.fileStates.remove(clientUri);
+    openDocuments.remove(documentKey(clientUri.toString()));
+    SourceFileModule module = this.sourceFileModules.remove(clientUri);
+    if (module != null) {
+      this.closedSourceFileModules.put(clientUri, module);
+    }
+    this.closedFiles.put(clientUri, closedFile);
+    this.closedCharacters += closedFile.getDocument().length();
+    Iterator<Map.Entry<URI, VersionedSourceFile>> it = this.closedFiles.entrySet().iterator();
+    while (this.closedCharacters > MAX_CLOSED_CHARACTERS && it.hasNext()) {
+      Map.Entry<URI, VersionedSourceFile> eldest = it.next();
+      it.remove();
+      this.closedCharacters -= eldest.getValue().getDocument().length();
+      evict(eldest.getKey());
+    }
+    LOG.info(
+        "Closed "
+            + clientUri
+            + ", "
+            + language
+            + " file manager holds "
+            + snapshot.getFiles().size()
+            + " open and "
+            + closedFiles.size()
+            + " closed files, about "
+            + estimatedHeapUsage() / 1024
+            + " KB");
+  }
+
+  /**
+   * Forget everything about a closed file and delete its shadow file.
+   *
+   * @param clientUri the client uri
+   */
+  private void evict(URI clientUri) {
+    this.serverClientUri.remove(clientUri.toString(), clientUri.toString());
+    this.materializedFiles.remove(clientUri);
+    this.materializedGenerations.remove(clientUri);
+    if (this.closedSourceFileModules.remove(clientUri) == null) {
+      // the file was never written to disk.
+      return;
+    }
+    try {
+      Path shadowFile = getShadowFile(clientUri);
+      String serverUri = shadowFile.toUri().toString();
+      openDocuments.remove(documentKey(serverUri));
+      this.serverClientUri.remove(serverUri);
+      if (serverUri.startsWith("file:///")) {
+        this.serverClientUri.remove("file:/" + serverUri.substring(8));
       }
-      if (newText != null) {
-        VersionedSourceFile newFile = new VersionedSourceFile(newText, newVersion);
-        this.versionedFiles.put(clientUri, newFile);
-        generateSourceFileModule(clientUri, newFile);
+      Files.deleteIfExists(shadowFile);
+    } catch (IOException e) {
+      MagpieServer.ExceptionLogger.log(e);
+    }
+  }
+
+  /**
+   * Estimates the heap used by the texts of the open and closed files of this manager. A character
+   * is counted with two bytes, the pieces of edited files are not counted.
+   *
+   * @return the estimated heap usage in bytes
+   */
+  public synchronized long estimatedHeapUsage() {
+    long characters = this.closedCharacters;
+    Map<URI, VersionedSourceFile> files = snapshot.getFiles();
+    for (VersionedSourceFile file : files.values()) {
+      characters += file.getDocument().length();
+    }
+    for (Map.Entry<URI, VersionedSourceFile> entry : this.materializedFiles.entrySet()) {
+      if (entry.getValue() != files.get(entry.getKey())
+          && entry.getValue() != this.closedFiles.get(entry.getKey())) {
+        characters += entry.getValue().getDocument().length();
       }
     }
+    return 2 * characters;
   }
 
   public void didSave(DidSaveTextDocumentParams params) {
@@ -119,77 +295,108 @@ public class SourceFileManager {
   }
 
   /**
-   * Replace the old text according to the change.
+   * Generate source file module from a versioned source file. Each client-side file has one stable
+   * shadow file in the session directory of this manager, the shadow file is overwritten in place
+   * whenever a new version is written and its URI mapping is only registered once.
    *
-   * @param text the text
-   * @param change the change
-   * @return the string
+   * @param clientUri the client uri
+   * @param versionedFile the versioned file
    */
-  private String replaceText(String text, TextDocumentContentChangeEvent change) {
+  public synchronized void generateSourceFileModule(
+      URI clientUri, VersionedSourceFile versionedFile) {
+    generateSourceFileModule(clientUri, versionedFile, snapshot.getGeneration());
+  }
+
+  private void generateSourceFileModule(
+      URI clientUri, VersionedSourceFile versionedFile, long generation) {
     try {
-      Range range = change.getRange();
-      BufferedReader reader = new BufferedReader(new StringReader(text));
-      StringWriter writer = new StringWriter();
-      int line = 0;
-      while (line < range.getStart().getLine()) {
-        writer.write(reader.readLine() + '\n');
-        line++;
-      }
-      for (int character = 0; character < range.getStart().getCharacter(); character++) {
-        writer.write(reader.read());
-      }
-      // write the changed text
-      writer.write(change.getText());
-      // skip the old text
-      reader.skip(change.getRangeLength());
-      int next = reader.read();
-      while (next != -1) {
-        writer.write(next);
-        next = reader.read();
+      Path shadowFile = getShadowFile(clientUri);
+      writeAtomically(shadowFile, versionedFile.getText());
+      if (!this.sourceFileModules.containsKey(clientUri)) {
+        String[] strs = clientUri.toString().split("/");
+        String className = strs[strs.length - 1];
+        SourceFileModule sourceFile = new SourceFileModule(shadowFile.toFile(), className, null);
+        this.sourceFileModules.put(clientUri, sourceFile);
+        URI serverUri = shadowFile.toUri();
+        // store the mapping from server-side URI to client-side URI.
+        this.serverClientUri.put(serverUri.toString(), clientUri.toString());
+        if (serverUri.toString().startsWith("file:///")) {
+          this.serverClientUri.put(
+              "file:/" + serverUri.toString().substring(8), clientUri.toString());
+        }
       }
-      return writer.toString();
+      this.materializedFiles.put(clientUri, versionedFile);
+      this.materializedGenerations.put(clientUri, generation);
+      // positions reported on the shadow file refer to the version written to disk.
+      openDocuments.put(documentKey(shadowFile.toUri().toString()), versionedFile);
     } catch (IOException e) {
       MagpieServer.ExceptionLogger.log(e);
     }
-    return null;
   }
 
   /**
-   * Generate source file module from a versioned source file.
+   * Gets the shadow file of the given client-side file. The session directory mirrors the path of
+   * the client-side file, so the package layout of the sources is preserved.
    *
    * @param clientUri the client uri
-   * @param versionedFile the versioned file
+   * @return the shadow file
+   * @throws IOException if the session directory couldn't be created
+   */
+  private Path getShadowFile(URI clientUri) throws IOException {
+    if (this.sessionDirectory == null) {
+      this.sessionDirectory = Files.createTempDirectory("magpie_" + language + "_");
+    }
+    String path = clientUri.getPath();
+    if (path == null) {
+      // e.g. untitled:Untitled-1
+      path = clientUri.getSchemeSpecificPart();
+    }
+    // drop the drive letter separator of windows paths and make the path relative.
+    path = path.replace(":", "").replaceAll("^/+", "");
+    if (path.isEmpty()) {
+      path = "unnamed";
+    }
+    if (!path.endsWith(getFileSuffix())) {
+      path = path + getFileSuffix();
+    }
+    Path shadowFile = this.sessionDirectory.resolve(path).normalize();
+    if (!shadowFile.startsWith(this.sessionDirectory)) {
+      // never write outside of the session directory.
+      shadowFile = this.sessionDirectory.resolve(shadowFile.getFileName());
+    }
+    return shadowFile;
+  }
+
+  /**
+   * Write the text to a temporary file next to the target and rename it to the target, so that an
+   * analysis reading the target never sees a partially written file.
+   *
+   * @param target the target file
+   * @param text the text
+   * @throws IOException Signals that an I/O exception has occurred.
    */
-  public void generateSourceFileModule(URI clientUri, VersionedSourceFile versionedFile) {
-    SourceFileModule sourceFile = null;
+  private static void writeAtomically(Path target, String text) throws IOException {
+    Files.createDirectories(target.getParent());
+    Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
     try {
-      File file = File.createTempFile("temp", getFileSuffix());
-      file.deleteOnExit();
-      String text = versionedFile.getText();
-      TemporaryFile.stringToFile(file, text);
-      String[] strs = clientUri.toString().split("/");
-      String className = strs[strs.length - 1];
-      sourceFile = new SourceFileModule(file, className, null);
-      this.sourceFileModules.put(clientUri, sourceFile);
-      URI serverUri = Paths.get(file.toURI()).toUri();
-      // store the mapping from server-side URI to client-side URI.
-      this.serverClientUri.put(serverUri.toString(), clientUri.toString());
-      if (serverUri.toString().startsWith("file:///")) {
-        this.serverClientUri.put(
-            "file:/" + serverUri.toString().substring(8), clientUri.toString());
+      Files.write(temp, text.getBytes(StandardCharsets.UTF_8));
+      try {
+        Files.move(
+            temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
       }
-    } catch (IOException e) {
-      MagpieServer.ExceptionLogger.log(e);
-      e.printStackTrace();
+    } finally {
+      Files.deleteIfExists(temp);
     }
   }
 
   /**
-   * Gets the file suffix.
+   * Gets the file suffix of the language.
    *
    * @return the file suffix
    */
-  private String getFileSuffix() {
+  public String getFileSuffix() {
     if (language.equals("java")) {
       return ".java";
     } else if (language.equals("python") || language.equals("py")) {
@@ -204,32 +411,144 @@ public class SourceFileManager {
     }
   }
 
+  /** @return the language of the files managed by this manager. */
+  public String getLanguage() {
+    return language;
+  }
+
+  /**
+   * Gets the current snapshot of the opened files. The snapshot never changes, later changes of the
+   * files are published in new snapshots.
+   *
+   * @return the snapshot
+   */
+  public SourceFileSnapshot getSnapshot() {
+    return snapshot;
+  }
+
   /**
-   * Gets the versioned files.
+   * Gets the versioned files of the current snapshot.
    *
    * @return the versioned files
    */
   public Map<URI, VersionedSourceFile> getVersionedFiles() {
-    return versionedFiles;
+    return snapshot.getFiles();
   }
 
   /**
-   * Gets the source file modules.
+   * Gets the source file modules of the current snapshot, see {@link
+   * SourceFileSnapshot#getSourceFileModules()}. Use {@link #getSourceModules()} if the files are
+   * not needed on disk.
    *
    * @return the source file modules
    */
   public Map<URI, SourceFileModule> getSourceFileModules() {
-    return sourceFileModules;
+    return snapshot.getSourceFileModules();
+  }
+
+  /**
+   * Write the shadow files of the given snapshot which are older than the snapshot.
+   *
+   * @param snapshot the snapshot
+   * @return the source file modules of the files of the snapshot
+   */
+  synchronized Map<URI, SourceFileModule> materialize(SourceFileSnapshot snapshot) {
+    Map<URI, SourceFileModule> modules = new HashMap<>();
+    Map<URI, VersionedSourceFile> openFiles = this.snapshot.getFiles();
+    for (Map.Entry<URI, VersionedSourceFile> entry : snapshot.getFiles().entrySet()) {
+      URI clientUri = entry.getKey();
+      if (!openFiles.containsKey(clientUri)) {
+        // the file was closed in the meantime, its shadow file is kept until it is evicted.
+        SourceFileModule closedModule = this.closedSourceFileModules.get(clientUri);
+        if (closedModule != null) {
+          modules.put(clientUri, closedModule);
+        }
+        continue;
+      }
+      Long written = this.materializedGenerations.get(clientUri);
+      if (this.materializedFiles.get(clientUri) != entry.getValue()
+          && (written == null || written < snapshot.getGeneration())) {
+        generateSourceFileModule(clientUri, entry.getValue(), snapshot.getGeneration());
+      }
+      SourceFileModule module = this.sourceFileModules.get(clientUri);
+      if (module != null) {
+        modules.put(clientUri, module);
+      }
+    }
+    for (Map.Entry<URI, SourceFileModule> entry : this.sourceFileModules.entrySet()) {
+      if (!openFiles.containsKey(entry.getKey())) {
+        // generated with generateSourceFileModule for a file which isn't opened.
+        modules.putIfAbsent(entry.getKey(), entry.getValue());
+      }
+    }
+    return Collections.unmodifiableMap(modules);
+  }
+
+  /**
+   * Gets the fingerprint of the current snapshot, see {@link SourceFileSnapshot#getFingerprint()}.
+   *
+   * @return the fingerprint
+   */
+  public String getFingerprint() {
+    return snapshot.getFingerprint();
+  }
+
+  /**
+   * Gets the in-memory source modules of the current snapshot, which serve the text of each file
+   * without writing it to disk.
+   *
+   * @return the in-memory source modules
+   */
+  public Map<URI, InMemorySourceModule> getSourceModules() {
+    return snapshot.getSourceModules();
+  }
+
+  /**
+   * Gets the open document at the given client-side or server-side location.
+   *
+   * @param url the location of the document
+   * @return the document or null if no document is open at this location
+   */
+  public static VersionedSourceFile getOpenDocument(URL url) {
+    if (url == null || openDocuments.isEmpty()) {
+      return null;
+    }
+    return openDocuments.get(documentKey(url.toString()));
+  }
+
+  /**
+   * Normalizes the different spellings of a file URL (e.g. file:/a and file:///a) to the path of
+   * the file, other URLs are used as they are.
+   */
+  private static String documentKey(String url) {
+    try {
+      URI uri = new URI(url);
+      if ("file".equalsIgnoreCase(uri.getScheme())) {
+        return Paths.get(uri).toString();
+      }
+    } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+      // not a well-formed file URI, use it as it is.
+    }
+    return url;
   }
 
   /** Delete all server-side source files sent by the client. */
-  public void cleanUp() {
-    for (String file : this.serverClientUri.keySet()) {
+  public synchronized void cleanUp() {
+    for (URI clientUri : materializedFiles.keySet()) {
+      try {
+        openDocuments.remove(documentKey(getShadowFile(clientUri).toUri().toString()));
+      } catch (IOException e) {
+        MagpieServer.ExceptionLogger.log(e);
+      }
+    }
+    // the shadow files are written again when they are needed the next time.
+    this.materializedFiles.clear();
+    this.materializedGenerations.clear();
+    if (this.sessionDirectory != null) {
       try {
-        Files.deleteIfExists(Paths.get(new URI(file)));
-      } catch (IOException | URISyntaxException e) {
+        FileUtils.deleteDirectory(this.sessionDirectory.toFile());
+      } catch (IOException e) {
         MagpieServer.ExceptionLogger.log(e);
-        e.printStackTrace();
       }
     }
   }
@@ -0,0 +1,85 @@
+package magpiebridge.file;
+
+import com.ibm.wala.classLoader.SourceFileModule;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import magpiebridge.util.CacheUtils;
+
+/**
+ * An immutable view of all files held by a {@link SourceFileManager} at one point in time. Each
+ * change of the files creates a new generation of the snapshot, thus an analysis can iterate the
+ * files of its snapshot while the user keeps typing, without copying or locking.
+ */
+public final class SourceFileSnapshot {
+
+  private final SourceFileManager fileManager;
+  private final long generation;
+  /** Client-side URI mapped to versioned source file. */
+  private final Map<URI, VersionedSourceFile> files;
+  /** Client-side URI mapped to in-memory source module. */
+  private final Map<URI, InMemorySourceModule> sourceModules;
+  /** The fingerprint of the files, computed lazily. */
+  private volatile String fingerprint;
+
+  SourceFileSnapshot(
+      SourceFileManager fileManager,
+      long generation,
+      Map<URI, VersionedSourceFile> files,
+      Map<URI, InMemorySourceModule> sourceModules) {
+    this.fileManager = fileManager;
+    this.generation = generation;
+    this.files = Collections.unmodifiableMap(files);
+    this.sourceModules = Collections.unmodifiableMap(sourceModules);
+  }
+
+  /** @return the generation of this snapshot, later snapshots have higher generations. */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /** @return the versioned files of this snapshot. */
+  public Map<URI, VersionedSourceFile> getFiles() {
+    return files;
+  }
+
+  /** @return the in-memory source modules of the files of this snapshot. */
+  public Map<URI, InMemorySourceModule> getSourceModules() {
+    return sourceModules;
+  }
+
+  /**
+   * Gets the source file modules of the files of this snapshot. The shadow files are written if
+   * they are older than this snapshot. They are never overwritten with the text of an older
+   * snapshot, so an analysis of an older snapshot may read the text of a newer one from disk.
+   *
+   * @return the source file modules
+   */
+  public Map<URI, SourceFileModule> getSourceFileModules() {
+    return fileManager.materialize(this);
+  }
+
+  /**
+   * Gets the fingerprint of this snapshot. The fingerprint only depends on the URIs and texts of
+   * the files, so it doesn't change when a file is saved without changes or when an edit is undone.
+   *
+   * @return the fingerprint
+   */
+  public String getFingerprint() {
+    String result = this.fingerprint;
+    if (result == null) {
+      Map<String, String> hashes = new TreeMap<>();
+      for (Map.Entry<URI, VersionedSourceFile> entry : files.entrySet()) {
+        hashes.put(entry.getKey().toString(), entry.getValue().getContentHash());
+      }
+      StringBuilder content = new StringBuilder(fileManager.getLanguage());
+      for (Map.Entry<String, String> entry : hashes.entrySet()) {
+        content.append('\n').append(entry.getKey()).append('\t').append(entry.getValue());
+      }
+      result = CacheUtils.sha256(content.toString());
+      this.fingerprint = result;
+    }
+    return result;
+  }
+}
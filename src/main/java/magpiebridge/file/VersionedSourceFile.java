@@ -1,21 +1,131 @@
 package magpiebridge.file;
 
+import java.util.List;
+import magpiebridge.util.CacheUtils;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+
 /**
- * This class represents a versioned source file.
+ * This class represents a versioned source file. The text is stored in a {@link PieceTable}, so
+ * that incremental changes sent by the client can be applied without copying the whole text.
+ * Instances are immutable, applying changes creates a new versioned source file. The piece table
+ * also indexes the line breaks of the text, so conversions between line/character positions and
+ * offsets take O(log n) time and the index is updated incrementally on each change.
  *
  * @author Linghui Luo
  */
 public class VersionedSourceFile {
-  private final String text;
+  private final PieceTable document;
   private final int version;
+  /** The hash of the text, computed lazily. */
+  private volatile String contentHash;
 
   public VersionedSourceFile(String text, int version) {
-    this.text = text;
+    this(PieceTable.of(text), version);
+  }
+
+  public VersionedSourceFile(PieceTable document, int version) {
+    this.document = document;
     this.version = version;
   }
 
+  /**
+   * Apply the content changes sent by the client in the given order.
+   *
+   * @param changes the content changes
+   * @param newVersion the version of the document after the changes
+   * @return the changed source file
+   */
+  public VersionedSourceFile applyChanges(
+      List<TextDocumentContentChangeEvent> changes, int newVersion) {
+    PieceTable newDocument = document;
+    for (TextDocumentContentChangeEvent change : changes) {
+      Range range = change.getRange();
+      if (range == null) {
+        // the text should be the full content of the file.
+        newDocument = PieceTable.of(change.getText());
+      } else {
+        newDocument =
+            newDocument.replace(
+                range.getStart().getLine(),
+                range.getStart().getCharacter(),
+                range.getEnd().getLine(),
+                range.getEnd().getCharacter(),
+                change.getText());
+      }
+    }
+    return new VersionedSourceFile(newDocument, newVersion);
+  }
+
   public String getText() {
-    return text;
+    return document.getText();
+  }
+
+  /** @return the number of lines in the file. */
+  public int getLineCount() {
+    return document.getLineCount();
+  }
+
+  /**
+   * Gets the text of the given zero-based line without the line break.
+   *
+   * @param line the zero-based line
+   * @return the text of the line, empty if the line doesn't exist
+   */
+  public String getLine(int line) {
+    return document.getLine(line);
+  }
+
+  /**
+   * Converts a zero-based line and character position to an offset in the file.
+   *
+   * @param line the zero-based line
+   * @param character the zero-based character in the line
+   * @return the offset
+   */
+  public int offsetAt(int line, int character) {
+    return document.offsetAt(line, character);
+  }
+
+  /**
+   * Gets the zero-based line which contains the given offset.
+   *
+   * @param offset the offset
+   * @return the zero-based line
+   */
+  public int lineAt(int offset) {
+    return document.lineAt(offset);
+  }
+
+  /**
+   * Gets the text in the range [start, end).
+   *
+   * @param start the start offset
+   * @param end the end offset
+   * @return the text
+   */
+  public String substring(int start, int end) {
+    int length = document.length();
+    start = Math.max(0, Math.min(start, length));
+    return document.substring(start, Math.max(start, Math.min(end, length)));
+  }
+
+  /**
+   * Gets the hash of the text. Two versions of a file with the same text have the same hash.
+   *
+   * @return the SHA-256 hash of the text in hex
+   */
+  public String getContentHash() {
+    String hash = this.contentHash;
+    if (hash == null) {
+      hash = CacheUtils.sha256(getText());
+      this.contentHash = hash;
+    }
+    return hash;
+  }
+
+  public PieceTable getDocument() {
+    return document;
   }
 
   public int getVersion() {
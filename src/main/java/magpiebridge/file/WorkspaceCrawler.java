@@ -0,0 +1,500 @@
+package magpiebridge.file;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import magpiebridge.core.MagpieServer;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.FileChangeType;
+import org.eclipse.lsp4j.FileEvent;
+
+/**
+ * This class crawls a workspace once and publishes the files as an {@link Inventory}, which is
+ * shared by all consumers, e.g. the inference of the source path and of the class path. The
+ * directories are crawled in parallel. Files and directories ignored by .gitignore files and by the
+ * configured excludes are skipped, by default the directories of version control and of
+ * dependencies. The build output directories target/ and build/ are skipped as well, but only next
+ * to a build file like pom.xml or build.gradle, so that packages with these names are still
+ * crawled. The inventory is kept until files are created or deleted.
+ */
+public class WorkspaceCrawler {
+
+  private static final Logger LOG = Logger.getLogger("main");
+
+  /** The directories which are never crawled, in .gitignore syntax. */
+  public static final List<String> DEFAULT_EXCLUDES =
+      Collections.unmodifiableList(Arrays.asList(".git/", ".gradle/", "node_modules/"));
+
+  /** The names of build output directories, which are skipped next to a build file. */
+  public static final List<String> BUILD_OUTPUT_DIRECTORIES =
+      Collections.unmodifiableList(Arrays.asList("target", "build"));
+
+  /** The build files next to which the {@link #BUILD_OUTPUT_DIRECTORIES} are skipped. */
+  private static final List<String> BUILD_FILES =
+      Arrays.asList(
+          "pom.xml",
+          "build.gradle",
+          "build.gradle.kts",
+          "settings.gradle",
+          "settings.gradle.kts",
+          "build.xml",
+          "build.sbt");
+
+  /** The system property with additional excludes, separated by commas, in .gitignore syntax. */
+  public static final String EXCLUDES_PROPERTY = "magpiebridge.excludes";
+
+  private static final Map<Path, WorkspaceCrawler> crawlers = new ConcurrentHashMap<>();
+
+  private final Path root;
+  private final List<String> excludes;
+  private Inventory inventory;
+
+  /**
+   * Instantiates a new crawler which isn't shared.
+   *
+   * @param root the root directory
+   * @param excludes the excluded files and directories in .gitignore syntax, relative to the root
+   */
+  public WorkspaceCrawler(Path root, Collection<String> excludes) {
+    this.root = root.toAbsolutePath().normalize();
+    this.excludes = new ArrayList<>(excludes);
+  }
+
+  /**
+   * Gets the shared crawler of a directory, which excludes the {@link #DEFAULT_EXCLUDES} and the
+   * excludes of the system property {@value #EXCLUDES_PROPERTY}.
+   *
+   * @param root the root directory
+   * @return the crawler
+   */
+  public static WorkspaceCrawler of(Path root) {
+    return crawlers.computeIfAbsent(
+        root.toAbsolutePath().normalize(),
+        r -> {
+          List<String> excludes = new ArrayList<>(DEFAULT_EXCLUDES);
+          String property = System.getProperty(EXCLUDES_PROPERTY);
+          if (property != null) {
+            for (String exclude : property.split(",")) {
+              if (!exclude.trim().isEmpty()) {
+                excludes.add(exclude.trim());
+              }
+            }
+          }
+          return new WorkspaceCrawler(r, excludes);
+        });
+  }
+
+  /**
+   * Forget the inventories of the shared crawlers in which files were created or deleted, they are
+   * crawled again when they are used the next time. Changed files don't change the inventories.
+   *
+   * @param params the params
+   */
+  public static void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+    for (FileEvent event : params.getChanges()) {
+      if (event.getType() == FileChangeType.Changed) {
+        continue;
+      }
+      try {
+        URI uri = URI.create(event.getUri());
+        if ("file".equalsIgnoreCase(uri.getScheme())) {
+          Path file = Paths.get(uri).toAbsolutePath().normalize();
+          for (WorkspaceCrawler crawler : crawlers.values()) {
+            if (file.startsWith(crawler.root)) {
+              crawler.invalidate();
+            }
+          }
+        }
+      } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+        // not a file on disk.
+      }
+    }
+  }
+
+  /** @return the root directory. */
+  public Path getRoot() {
+    return root;
+  }
+
+  /**
+   * Gets the inventory of the root directory, it is crawled on the first call.
+   *
+   * @return the inventory
+   */
+  public synchronized Inventory inventory() {
+    if (inventory == null) {
+      long start = System.currentTimeMillis();
+      inventory = new Inventory(crawl(root));
+      LOG.info(
+          "Crawled "
+              + inventory.getFiles().size()
+              + " files in "
+              + root
+              + " in "
+              + (System.currentTimeMillis() - start)
+              + "ms");
+    }
+    return inventory;
+  }
+
+  /** Forget the inventory, the root directory is crawled again when it is used the next time. */
+  public synchronized void invalidate() {
+    inventory = null;
+  }
+
+  /**
+   * Crawls a directory below the root without changing the inventory, e.g. a directory which was
+   * just created. The .gitignore files of its parent directories are honoured.
+   *
+   * @param directory the directory
+   * @return the files which aren't ignored, sorted by path
+   */
+  public List<Path> crawl(Path directory) {
+    Path dir = directory.toAbsolutePath().normalize();
+    IgnoreRules rules = Files.isDirectory(dir) ? rulesOf(dir) : null;
+    if (rules == null) {
+      return Collections.emptyList();
+    }
+    Queue<Path> files = new ConcurrentLinkedQueue<>();
+    ForkJoinPool.commonPool().invoke(new CrawlAction(dir, rules, files));
+    List<Path> result = new ArrayList<>(files);
+    Collections.sort(result);
+    return result;
+  }
+
+  /**
+   * Checks if a file below the root is left out of the inventory, e.g. a file which was just
+   * created in a build output directory.
+   *
+   * @param file the file
+   * @return true if the file or one of its parent directories is ignored, or if the file isn't
+   *     below the root
+   */
+  public boolean isIgnored(Path file) {
+    Path path = file.toAbsolutePath().normalize();
+    if (path.equals(root)) {
+      return false;
+    }
+    IgnoreRules rules = path.getParent() != null ? rulesOf(path.getParent()) : null;
+    return rules == null || rules.isIgnored(path, Files.isDirectory(path));
+  }
+
+  /**
+   * Loads the rules of a directory below the root from the .gitignore files of the directory and
+   * its parents.
+   *
+   * @return the rules, null if the directory or one of its parents is ignored or if it isn't below
+   *     the root
+   */
+  private IgnoreRules rulesOf(Path dir) {
+    if (!dir.startsWith(root)) {
+      return null;
+    }
+    IgnoreRules rules = IgnoreRules.of(root, excludes).load(root);
+    Path current = root;
+    for (Path name : root.relativize(dir)) {
+      if (name.toString().isEmpty()) {
+        // the root itself.
+        break;
+      }
+      current = current.resolve(name);
+      if (rules.isIgnored(current, true)) {
+        return null;
+      }
+      rules = rules.load(current);
+    }
+    return rules;
+  }
+
+  /** Lists a directory and crawls its subdirectories in parallel. */
+  private static class CrawlAction extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path directory;
+    private final IgnoreRules rules;
+    private final Queue<Path> files;
+
+    CrawlAction(Path directory, IgnoreRules rules, Queue<Path> files) {
+      this.directory = directory;
+      this.rules = rules;
+      this.files = files;
+    }
+
+    @Override
+    protected void compute() {
+      List<CrawlAction> subdirectories = new ArrayList<>();
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+        for (Path child : children) {
+          BasicFileAttributes attributes;
+          try {
+            attributes =
+                Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          } catch (IOException e) {
+            // deleted meanwhile.
+            continue;
+          }
+          if (attributes.isDirectory()) {
+            if (!rules.isIgnored(child, true)) {
+              subdirectories.add(new CrawlAction(child, rules.load(child), files));
+            }
+          } else if ((attributes.isRegularFile() || attributes.isSymbolicLink())
+              && !rules.isIgnored(child, false)) {
+            files.add(child);
+          }
+        }
+      } catch (IOException e) {
+        MagpieServer.ExceptionLogger.log(e);
+      }
+      invokeAll(subdirectories);
+    }
+  }
+
+  /**
+   * The rules of the .gitignore files of a directory and its parents, the last matching rule
+   * decides.
+   */
+  private static class IgnoreRules {
+
+    private final List<Rule> rules;
+
+    private IgnoreRules(List<Rule> rules) {
+      this.rules = rules;
+    }
+
+    static IgnoreRules of(Path root, List<String> excludes) {
+      List<Rule> rules = new ArrayList<>();
+      for (String exclude : excludes) {
+        Rule rule = Rule.parse(root, exclude);
+        if (rule != null) {
+          rules.add(rule);
+        }
+      }
+      return new IgnoreRules(rules);
+    }
+
+    /** Adds the rules of the .gitignore file of the directory, if there is one. */
+    IgnoreRules load(Path directory) {
+      Path gitignore = directory.resolve(".gitignore");
+      if (!Files.isRegularFile(gitignore)) {
+        return this;
+      }
+      List<Rule> added = new ArrayList<>(rules);
+      try {
+        for (String line : Files.readAllLines(gitignore, StandardCharsets.UTF_8)) {
+          Rule rule = Rule.parse(directory, line);
+          if (rule != null) {
+            added.add(rule);
+          }
+        }
+      } catch (IOException e) {
+        MagpieServer.ExceptionLogger.log(e);
+      }
+      return new IgnoreRules(added);
+    }
+
+    boolean isIgnored(Path path, boolean directory) {
+      // a rule like !build/ can still include a build output directory.
+      boolean ignored = directory && isBuildOutput(path);
+      for (Rule rule : rules) {
+        if (rule.matches(path, directory)) {
+          ignored = !rule.negated;
+        }
+      }
+      return ignored;
+    }
+  }
+
+  /** Checks if the directory is a build output directory next to a build file. */
+  private static boolean isBuildOutput(Path directory) {
+    Path name = directory.getFileName();
+    if (name == null || !BUILD_OUTPUT_DIRECTORIES.contains(name.toString())) {
+      return false;
+    }
+    Path parent = directory.getParent();
+    if (parent == null) {
+      return false;
+    }
+    for (String buildFile : BUILD_FILES) {
+      if (Files.isRegularFile(parent.resolve(buildFile))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** A pattern of a .gitignore file. */
+  private static class Rule {
+
+    /** The directory of the .gitignore file, the pattern is relative to it. */
+    private final Path base;
+
+    private final Pattern pattern;
+    private final boolean negated;
+    private final boolean directoryOnly;
+
+    private Rule(Path base, Pattern pattern, boolean negated, boolean directoryOnly) {
+      this.base = base;
+      this.pattern = pattern;
+      this.negated = negated;
+      this.directoryOnly = directoryOnly;
+    }
+
+    /** Parses a line of a .gitignore file, null for blank lines and comments. */
+    static Rule parse(Path base, String line) {
+      String text = line.trim();
+      if (text.isEmpty() || text.startsWith("#")) {
+        return null;
+      }
+      boolean negated = text.startsWith("!");
+      if (negated) {
+        text = text.substring(1);
+      } else if (text.startsWith("\\")) {
+        // an escaped # or !
+        text = text.substring(1);
+      }
+      boolean directoryOnly = text.endsWith("/");
+      if (directoryOnly) {
+        text = text.substring(0, text.length() - 1);
+      }
+      // a pattern with a slash is relative to the base, others match in any directory.
+      boolean anchored = text.contains("/");
+      if (text.startsWith("/")) {
+        text = text.substring(1);
+      }
+      if (text.isEmpty()) {
+        return null;
+      }
+      String regex = (anchored ? "" : "(?:.*/)?") + toRegex(text);
+      return new Rule(base, Pattern.compile(regex), negated, directoryOnly);
+    }
+
+    private static String toRegex(String glob) {
+      StringBuilder regex = new StringBuilder();
+      int i = 0;
+      while (i < glob.length()) {
+        char c = glob.charAt(i);
+        if (glob.startsWith("**/", i)) {
+          regex.append("(?:.*/)?");
+          i += 3;
+          continue;
+        }
+        if (glob.startsWith("**", i)) {
+          regex.append(".*");
+          i += 2;
+          continue;
+        }
+        switch (c) {
+          case '*':
+            regex.append("[^/]*");
+            break;
+          case '?':
+            regex.append("[^/]");
+            break;
+          case '[':
+            int end = glob.indexOf(']', i + 1);
+            if (end > i + 1) {
+              String set = glob.substring(i + 1, end);
+              if (set.startsWith("!")) {
+                set = "^" + set.substring(1);
+              }
+              regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+              i = end;
+            } else {
+              regex.append("\\[");
+            }
+            break;
+          default:
+            regex.append(Pattern.quote(String.valueOf(c)));
+            break;
+        }
+        i++;
+      }
+      return regex.toString();
+    }
+
+    boolean matches(Path path, boolean directory) {
+      if ((directoryOnly && !directory) || !path.startsWith(base) || path.equals(base)) {
+        return false;
+      }
+      String relative = base.relativize(path).toString().replace('\\', '/');
+      return pattern.matcher(relative).matches();
+    }
+  }
+
+  /** The files of a workspace, indexed by name and extension. */
+  public static class Inventory {
+
+    private final List<Path> files;
+    private final Map<String, List<Path>> byName = new HashMap<>();
+    private final Map<String, List<Path>> byExtension = new HashMap<>();
+
+    Inventory(List<Path> files) {
+      this.files = Collections.unmodifiableList(files);
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        byName.computeIfAbsent(name, n -> new ArrayList<>()).add(file);
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+          byExtension.computeIfAbsent(name.substring(dot), e -> new ArrayList<>()).add(file);
+        }
+      }
+    }
+
+    /** @return all files, sorted by path. */
+    public List<Path> getFiles() {
+      return files;
+    }
+
+    /**
+     * Gets the files with the given name, e.g. pom.xml.
+     *
+     * @param name the file name
+     * @return the files, sorted by path
+     */
+    public List<Path> getFilesNamed(String name) {
+      return Collections.unmodifiableList(byName.getOrDefault(name, Collections.emptyList()));
+    }
+
+    /**
+     * Gets the files whose names end with the given suffix, e.g. .java.
+     *
+     * @param suffix the suffix
+     * @return the files, sorted by path
+     */
+    public List<Path> getFilesWithSuffix(String suffix) {
+      if (suffix.lastIndexOf('.') == 0) {
+        return Collections.unmodifiableList(
+            byExtension.getOrDefault(suffix, Collections.emptyList()));
+      }
+      List<Path> result = new ArrayList<>();
+      for (Path file : files) {
+        if (file.getFileName().toString().endsWith(suffix)) {
+          result.add(file);
+        }
+      }
+      return result;
+    }
+  }
+}
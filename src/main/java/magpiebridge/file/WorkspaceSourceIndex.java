@@ -0,0 +1,242 @@
+package magpiebridge.file;
+
+import com.ibm.wala.classLoader.Module;
+import com.ibm.wala.classLoader.SourceFileModule;
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.FileChangeType;
+import org.eclipse.lsp4j.FileEvent;
+
+/**
+ * This class indexes all source files of a given language in the source roots of a workspace, so
+ * that analyses of the whole project don't need to walk the disk on each run. The files are taken
+ * from the {@link WorkspaceCrawler} of the workspace, i.e. ignored directories like build outputs
+ * and node_modules are left out. The index is built once and then kept up to date with the changes
+ * of watched files sent by the client. The files opened in the {@link SourceFileManager} are
+ * overlaid on top of the files on disk, thus analyses always see the unsaved text of the editor.
+ */
+public class WorkspaceSourceIndex {
+
+  /** The source file manager which holds the opened files. */
+  private final SourceFileManager fileManager;
+  /** Supplies the source roots, e.g. the source path of the project service. */
+  private final Supplier<Collection<Path>> sourceRoots;
+  /** Supplies the workspace root, whose crawler serves the source roots below it. */
+  private final Supplier<Optional<Path>> workspaceRoot;
+  /** The source roots the index was built from. */
+  private Set<Path> roots;
+  /** Source file on disk mapped to its module, null if the index needs to be built. */
+  private Map<Path, SourceFileModule> diskModules;
+
+  /**
+   * Instantiates a new workspace source index.
+   *
+   * @param fileManager the source file manager of the language
+   * @param sourceRoots supplies the source roots of the workspace
+   */
+  public WorkspaceSourceIndex(
+      SourceFileManager fileManager, Supplier<Collection<Path>> sourceRoots) {
+    this(fileManager, sourceRoots, Optional::empty);
+  }
+
+  /**
+   * Instantiates a new workspace source index.
+   *
+   * @param fileManager the source file manager of the language
+   * @param sourceRoots supplies the source roots of the workspace
+   * @param workspaceRoot supplies the workspace root, the .gitignore files and excludes of its
+   *     {@link WorkspaceCrawler} apply to the source roots below it. Other source roots are crawled
+   *     on their own.
+   */
+  public WorkspaceSourceIndex(
+      SourceFileManager fileManager,
+      Supplier<Collection<Path>> sourceRoots,
+      Supplier<Optional<Path>> workspaceRoot) {
+    this.fileManager = fileManager;
+    this.sourceRoots = sourceRoots;
+    this.workspaceRoot = workspaceRoot;
+  }
+
+  /**
+   * Gets the source file modules of all source files in the workspace. Opened files are served by
+   * their shadow files, see {@link SourceFileManager#getSourceFileModules()}.
+   *
+   * @return the source file modules
+   */
+  public synchronized Collection<Module> getSourceFileModules() {
+    return overlay(fileManager.getSourceFileModules());
+  }
+
+  /**
+   * Gets the modules of all source files in the workspace. Opened files are served from memory, see
+   * {@link SourceFileManager#getSourceModules()}.
+   *
+   * @return the modules
+   */
+  public synchronized Collection<Module> getSourceModules() {
+    return overlay(fileManager.getSourceModules());
+  }
+
+  /** @return the source roots of the index. */
+  public synchronized Set<Path> getSourceRoots() {
+    build();
+    return Collections.unmodifiableSet(roots);
+  }
+
+  /**
+   * Update the index with the changes of watched files. Changes of files which are not source files
+   * of the language in one of the source roots are ignored.
+   *
+   * @param params the params
+   */
+  public synchronized void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+    if (diskModules == null) {
+      // the index is built on demand.
+      return;
+    }
+    if (!normalizedSourceRoots().equals(roots)) {
+      // e.g. a source root was added to the inferred source path.
+      invalidate();
+      return;
+    }
+    for (FileEvent event : params.getChanges()) {
+      Path file = toPath(event.getUri());
+      if (file == null) {
+        continue;
+      }
+      if (roots.contains(file)) {
+        // a source root itself was created or deleted.
+        invalidate();
+        return;
+      }
+      Path root = findRoot(file);
+      if (root == null) {
+        continue;
+      }
+      if (event.getType() == FileChangeType.Deleted) {
+        // the file or a whole directory was deleted.
+        diskModules.keySet().removeIf(p -> p.startsWith(file));
+      } else if (Files.isDirectory(file)) {
+        index(root, file);
+      } else if (file.toString().endsWith(fileManager.getFileSuffix())
+          && !crawlerOf(root).isIgnored(file)) {
+        // a changed file is read again by the existing module.
+        diskModules.computeIfAbsent(file, p -> makeModule(root, p));
+      }
+    }
+  }
+
+  /** Forget the indexed files, the index is built again when it is used the next time. */
+  public synchronized void invalidate() {
+    this.diskModules = null;
+    this.roots = null;
+  }
+
+  private Collection<Module> overlay(Map<URI, ? extends Module> openedModules) {
+    build();
+    Map<Path, Module> modules = new TreeMap<>(diskModules);
+    List<Module> others = new ArrayList<>();
+    for (Map.Entry<URI, ? extends Module> entry : openedModules.entrySet()) {
+      Path file = toPath(entry.getKey().toString());
+      if (file != null && modules.containsKey(file)) {
+        modules.put(file, entry.getValue());
+      } else {
+        // opened files outside of the source roots are analyzed as well.
+        others.add(entry.getValue());
+      }
+    }
+    List<Module> result = new ArrayList<>(modules.values());
+    result.addAll(others);
+    return result;
+  }
+
+  private void build() {
+    if (diskModules != null) {
+      return;
+    }
+    roots = normalizedSourceRoots();
+    diskModules = new HashMap<>();
+    String suffix = fileManager.getFileSuffix();
+    for (Path root : roots) {
+      if (!Files.isDirectory(root)) {
+        continue;
+      }
+      // the inventory is crawled once and shared, e.g. with the inference of the source path.
+      for (Path file : crawlerOf(root).inventory().getFilesWithSuffix(suffix)) {
+        if (file.startsWith(root) && Files.isRegularFile(file)) {
+          diskModules.putIfAbsent(file, makeModule(root, file));
+        }
+      }
+    }
+  }
+
+  private Set<Path> normalizedSourceRoots() {
+    Set<Path> normalized = new LinkedHashSet<>();
+    for (Path root : sourceRoots.get()) {
+      normalized.add(root.toAbsolutePath().normalize());
+    }
+    return normalized;
+  }
+
+  /** Index all source files in the given directory of the given source root. */
+  private void index(Path root, Path directory) {
+    String suffix = fileManager.getFileSuffix();
+    for (Path file : crawlerOf(root).crawl(directory)) {
+      if (file.toString().endsWith(suffix) && Files.isRegularFile(file)) {
+        diskModules.putIfAbsent(file, makeModule(root, file));
+      }
+    }
+  }
+
+  /** Gets the crawler of the workspace if it contains the source root, else of the source root. */
+  private WorkspaceCrawler crawlerOf(Path root) {
+    Optional<Path> workspace = workspaceRoot.get().map(p -> p.toAbsolutePath().normalize());
+    return WorkspaceCrawler.of(
+        workspace.isPresent() && root.startsWith(workspace.get()) ? workspace.get() : root);
+  }
+
+  /**
+   * Creates the module of a source file, named with its path relative to the source root like the
+   * files of a {@link com.ibm.wala.classLoader.SourceDirectoryTreeModule}.
+   */
+  private static SourceFileModule makeModule(Path root, Path file) {
+    String name = root.relativize(file).toString().replace('\\', '/');
+    return new SourceFileModule(file.toFile(), name, null);
+  }
+
+  private Path findRoot(Path file) {
+    for (Path root : roots) {
+      if (file.startsWith(root)) {
+        return root;
+      }
+    }
+    return null;
+  }
+
+  private static Path toPath(String uri) {
+    try {
+      URI u = URI.create(uri);
+      if ("file".equalsIgnoreCase(u.getScheme())) {
+        return Paths.get(u).toAbsolutePath().normalize();
+      }
+    } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+      // not a file on disk.
+    }
+    return null;
+  }
+}
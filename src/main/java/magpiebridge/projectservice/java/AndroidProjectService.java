@@ -37,7 +37,8 @@ public class AndroidProjectService extends JavaProjectService {
   }
 
   /**
-   * Search an apk file in the given directory .
+   * Search an apk file in the given directory. Only the apk output directory of the build is
+   * searched, which the {@link magpiebridge.file.WorkspaceCrawler} skips as a build output.
    *
    * @param dir directory where to search apk
    * @return the apk file
@@ -46,8 +47,9 @@ public class AndroidProjectService extends JavaProjectService {
     if (dir.isFile() && dir.getName().endsWith(".apk")) {
       return Optional.of(dir);
     } else {
-      if (dir.isDirectory()) {
-        for (File f : dir.listFiles()) {
+      File[] children = dir.listFiles();
+      if (children != null) {
+        for (File f : children) {
           Optional<File> op = searchAPKFile(f);
           if (op.isPresent()) return op;
         }
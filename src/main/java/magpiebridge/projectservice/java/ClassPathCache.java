@@ -0,0 +1,352 @@
+package magpiebridge.projectservice.java;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import magpiebridge.core.MagpieServer;
+import magpiebridge.file.WorkspaceCrawler;
+import magpiebridge.util.CacheUtils;
+
+/**
+ * This class caches the build class path of workspaces on disk, so that Maven and Gradle don't need
+ * to run again when a workspace is opened the next time. A cache entry is keyed by a fingerprint of
+ * all build files of the workspace (e.g. pom.xml, build.gradle, settings files and lock files), the
+ * locations of the local repositories and the external dependencies. A hit is only revalidated in
+ * the background if it can't be trusted, i.e. if the build files declare SNAPSHOT or dynamic
+ * versions or if the entry is older than a time to live, the result is used from the next time on.
+ */
+public class ClassPathCache {
+
+  private static final Logger LOG = Logger.getLogger("main");
+
+  /** The names of the files which determine the build class path. */
+  private static final Set<String> BUILD_FILES =
+      new HashSet<>(
+          Arrays.asList(
+              "pom.xml",
+              "build.gradle",
+              "build.gradle.kts",
+              "settings.gradle",
+              "settings.gradle.kts",
+              "gradle.properties",
+              "gradle.lockfile",
+              "libs.versions.toml",
+              "WORKSPACE",
+              ".classpath"));
+
+  /**
+   * Versions which can resolve to other jars while the build files stay the same, e.g. Maven
+   * SNAPSHOT, LATEST, RELEASE and version ranges or Gradle dynamic versions like 1.+ and
+   * latest.release.
+   */
+  private static final Pattern DYNAMIC_VERSION =
+      Pattern.compile(
+          "-SNAPSHOT"
+              + "|<version>\\s*(LATEST|RELEASE|[\\[(])"
+              + "|latest\\.(release|integration|milestone)"
+              + "|[:'\"][\\w.-]*\\+['\"]"
+              + "|:[\\[(][^'\"\\s]*,");
+
+  /** The default time to live of an entry in milliseconds, given by magpiebridge.classpath.ttl. */
+  private static final long DEFAULT_TTL =
+      Long.getLong("magpiebridge.classpath.ttl", TimeUnit.DAYS.toMillis(1));
+
+  private static final ExecutorService REVALIDATION =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            Thread thread = new Thread(r, "magpie-classpath-revalidation");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** The workspaces which are being revalidated. */
+  private static final Set<Path> revalidating = ConcurrentHashMap.newKeySet();
+
+  /** The content of a cache file. */
+  private static class Entry {
+    String workspace;
+    String fingerprint;
+    /** When the class path was computed, in milliseconds since the epoch. */
+    long stored;
+
+    List<String> classPath;
+  }
+
+  /** The directory of the cache files. */
+  private final Path directory;
+
+  /** The time to live of an entry in milliseconds. */
+  private final long ttl;
+
+  /**
+   * Instantiates a new class path cache.
+   *
+   * @param directory the directory of the cache files
+   */
+  public ClassPathCache(Path directory) {
+    this(directory, DEFAULT_TTL);
+  }
+
+  /**
+   * Instantiates a new class path cache.
+   *
+   * @param directory the directory of the cache files
+   * @param ttl the time in milliseconds after which a hit is revalidated
+   */
+  ClassPathCache(Path directory, long ttl) {
+    this.directory = directory;
+    this.ttl = ttl;
+  }
+
+  /**
+   * The default cache in the directory given by {@link CacheUtils#cacheDirectory()}.
+   *
+   * @return the default cache
+   */
+  public static ClassPathCache defaultCache() {
+    return new ClassPathCache(CacheUtils.cacheDirectory().resolve("classpath"));
+  }
+
+  /**
+   * Computes the fingerprint of the build configuration of a workspace.
+   *
+   * @param workspaceRoot the workspace root
+   * @param repositories the locations of the local repositories, e.g. ~/.m2 and ~/.gradle
+   * @param externalDependencies the external dependencies specified by the user
+   * @return the fingerprint
+   */
+  public static String fingerprint(
+      Path workspaceRoot, Collection<Path> repositories, Collection<String> externalDependencies) {
+    StringBuilder content = new StringBuilder();
+    for (Path repository : repositories) {
+      content.append("repository\t").append(repository.toAbsolutePath()).append('\n');
+    }
+    for (String dependency : new TreeSet<>(externalDependencies)) {
+      content.append("dependency\t").append(dependency).append('\n');
+    }
+    for (String buildFile : buildFiles(workspaceRoot)) {
+      content.append(buildFile).append('\n');
+    }
+    return CacheUtils.sha256(content.toString());
+  }
+
+  /**
+   * Checks if the file is a build file which determines the build class path.
+   *
+   * @param file the file
+   * @return true if it is a build file
+   */
+  static boolean isBuildFile(Path file) {
+    Path name = file.getFileName();
+    return name != null
+        && (BUILD_FILES.contains(name.toString()) || name.toString().endsWith(".lockfile"));
+  }
+
+  /** @return the glob patterns of the build files which determine the build class path. */
+  static List<String> buildFilePatterns() {
+    List<String> patterns = new ArrayList<>();
+    for (String name : new TreeSet<>(BUILD_FILES)) {
+      patterns.add("**/" + name);
+    }
+    patterns.add("**/*.lockfile");
+    return patterns;
+  }
+
+  /**
+   * Lists the build files of the workspace with their sizes and modification times, sorted by path.
+   */
+  private static Set<String> buildFiles(Path workspaceRoot) {
+    Set<String> buildFiles = new TreeSet<>();
+    for (Path file : findBuildFiles(workspaceRoot)) {
+      try {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        buildFiles.add(
+            workspaceRoot.relativize(file)
+                + "\t"
+                + attrs.size()
+                + "\t"
+                + attrs.lastModifiedTime().toMillis());
+      } catch (IOException e) {
+        // deleted meanwhile, the inventory is updated by the watched file events.
+      }
+    }
+    return buildFiles;
+  }
+
+  /**
+   * Checks if a build file of the workspace declares a version which can resolve to other jars
+   * without a change of the build files, e.g. a SNAPSHOT version.
+   *
+   * @param workspaceRoot the workspace root
+   * @return true if some build file declares such a version
+   */
+  static boolean hasDynamicVersions(Path workspaceRoot) {
+    for (Path file : findBuildFiles(workspaceRoot)) {
+      try {
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        if (DYNAMIC_VERSION.matcher(text).find()) {
+          return true;
+        }
+      } catch (IOException e) {
+        // e.g. deleted meanwhile, the fingerprint changes anyway.
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds the build files of the workspace in the inventory of its {@link WorkspaceCrawler}, i.e.
+   * ignored directories like build outputs are left out.
+   */
+  private static List<Path> findBuildFiles(Path workspaceRoot) {
+    WorkspaceCrawler.Inventory inventory = WorkspaceCrawler.of(workspaceRoot).inventory();
+    List<Path> buildFiles = new ArrayList<>();
+    for (String name : BUILD_FILES) {
+      buildFiles.addAll(inventory.getFilesNamed(name));
+    }
+    for (Path file : inventory.getFilesWithSuffix(".lockfile")) {
+      if (!BUILD_FILES.contains(file.getFileName().toString())) {
+        buildFiles.add(file);
+      }
+    }
+    return buildFiles;
+  }
+
+  /**
+   * Load the cached class path of the workspace.
+   *
+   * @param workspaceRoot the workspace root
+   * @param fingerprint the current fingerprint of the workspace
+   * @return the cached class path, empty if there is no entry with this fingerprint or if some jar
+   *     of the class path doesn't exist anymore
+   */
+  public Optional<Set<Path>> load(Path workspaceRoot, String fingerprint) {
+    Optional<Entry> entry = read(workspaceRoot);
+    if (!entry.isPresent()
+        || !fingerprint.equals(entry.get().fingerprint)
+        || entry.get().classPath == null) {
+      return Optional.empty();
+    }
+    Set<Path> classPath = new LinkedHashSet<>();
+    for (String path : entry.get().classPath) {
+      Path p = Paths.get(path);
+      if (!Files.exists(p)) {
+        // e.g. the local repository was cleaned.
+        return Optional.empty();
+      }
+      classPath.add(p);
+    }
+    return Optional.of(classPath);
+  }
+
+  /**
+   * Checks if the cached class path of the workspace can't be trusted without running the build
+   * tool again, i.e. if the build files declare SNAPSHOT or dynamic versions or if the entry is
+   * older than the time to live.
+   *
+   * @param workspaceRoot the workspace root
+   * @return true if the cached class path should be revalidated
+   */
+  public boolean needsRevalidation(Path workspaceRoot) {
+    Optional<Entry> entry = read(workspaceRoot);
+    if (!entry.isPresent() || System.currentTimeMillis() - entry.get().stored >= ttl) {
+      return true;
+    }
+    return hasDynamicVersions(workspaceRoot);
+  }
+
+  private Optional<Entry> read(Path workspaceRoot) {
+    Path file = cacheFile(workspaceRoot);
+    if (!Files.exists(file)) {
+      return Optional.empty();
+    }
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      return Optional.ofNullable(new Gson().fromJson(reader, Entry.class));
+    } catch (IOException | JsonParseException e) {
+      MagpieServer.ExceptionLogger.log(e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Store the class path of the workspace.
+   *
+   * @param workspaceRoot the workspace root
+   * @param fingerprint the fingerprint of the workspace the class path was computed for
+   * @param classPath the class path
+   */
+  public void store(Path workspaceRoot, String fingerprint, Set<Path> classPath) {
+    Entry entry = new Entry();
+    entry.workspace = workspaceRoot.toAbsolutePath().toString();
+    entry.fingerprint = fingerprint;
+    entry.stored = System.currentTimeMillis();
+    entry.classPath = new ArrayList<>();
+    for (Path path : classPath) {
+      entry.classPath.add(path.toAbsolutePath().toString());
+    }
+    Collections.sort(entry.classPath);
+    CacheUtils.writeJson(cacheFile(workspaceRoot), entry);
+  }
+
+  /**
+   * Compute the class path of the workspace again in the background and store it, if it isn't
+   * empty. A changed class path is used from the next time on, an unchanged one restarts the time
+   * to live of the entry. Only one revalidation per workspace runs at a time.
+   *
+   * @param workspaceRoot the workspace root
+   * @param fingerprint the fingerprint of the workspace
+   * @param cached the cached class path
+   * @param compute computes the class path
+   */
+  public void revalidate(
+      Path workspaceRoot, String fingerprint, Set<Path> cached, Supplier<Set<Path>> compute) {
+    Path key = workspaceRoot.toAbsolutePath();
+    if (!revalidating.add(key)) {
+      return;
+    }
+    REVALIDATION.submit(
+        () -> {
+          try {
+            Set<Path> classPath = compute.get();
+            if (!classPath.isEmpty()) {
+              if (!classPath.equals(cached)) {
+                LOG.info("Class path of " + workspaceRoot + " changed, updating the cache");
+              }
+              store(workspaceRoot, fingerprint, classPath);
+            }
+          } catch (RuntimeException e) {
+            MagpieServer.ExceptionLogger.log(e);
+          } finally {
+            revalidating.remove(key);
+          }
+        });
+  }
+
+  private Path cacheFile(Path workspaceRoot) {
+    return directory.resolve(
+        CacheUtils.sha256(workspaceRoot.toAbsolutePath().toString()) + ".json");
+  }
+}
@@ -0,0 +1,297 @@
+package magpiebridge.projectservice.java;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import magpiebridge.core.MagpieServer;
+import magpiebridge.util.CacheUtils;
+
+/**
+ * This class indexes the jar and aar files of a Gradle module cache, i.e.
+ * caches/modules-*&#47;files-*&#47;groupId/artifactId/version/hash/file, or of a Maven repository
+ * layout like the extras of the Android SDK. The index is built in one walk and persisted. When it
+ * is refreshed, the files of a directory are only listed again if its modification time changed.
+ */
+public class GradleCacheIndex {
+
+  private static final Logger LOG = Logger.getLogger("main");
+
+  /** How long an index is used without checking the file system for changes. */
+  private static final long REFRESH_INTERVAL_MILLIS = 10_000;
+
+  /** Directories modified this recently may still change within the same mtime tick. */
+  private static final long MTIME_GRANULARITY_MILLIS = 2_000;
+
+  private static final Map<Path, GradleCacheIndex> indexes = new ConcurrentHashMap<>();
+
+  /** The layouts of the indexed directories. */
+  enum Layout {
+    /** groupId/artifactId/version/hash/file */
+    GRADLE,
+    /** group/path/artifactId/version/file */
+    MAVEN
+  }
+
+  /** The persisted content of a directory. */
+  private static class DirectoryEntry {
+    long lastModified;
+    List<String> directories;
+    List<String> files;
+  }
+
+  private final Path root;
+  private final Layout layout;
+  private final Path cacheFile;
+  /** Directory relative to the root mapped to its content. */
+  private Map<String, DirectoryEntry> directories;
+  /** File name mapped to the paths of the files with this name. */
+  private volatile Map<String, List<Path>> filesByName;
+
+  private long lastRefresh;
+
+  private GradleCacheIndex(Path root, Layout layout, Path cacheFile) {
+    this.root = root;
+    this.layout = layout;
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * Gets the shared index of a directory, the index is persisted in the directory given by {@link
+   * CacheUtils#cacheDirectory()}.
+   *
+   * @param root the indexed directory
+   * @param layout the layout of the directory
+   * @return the index
+   */
+  static GradleCacheIndex of(Path root, Layout layout) {
+    Path normalized = root.toAbsolutePath().normalize();
+    return indexes.computeIfAbsent(
+        normalized,
+        r ->
+            new GradleCacheIndex(
+                r,
+                layout,
+                CacheUtils.cacheDirectory()
+                    .resolve("gradle-index")
+                    .resolve(CacheUtils.sha256(r.toString()) + ".json")));
+  }
+
+  /**
+   * Creates an index which is not shared, for tests.
+   *
+   * @param root the indexed directory
+   * @param layout the layout of the directory
+   * @param cacheFile the file the index is persisted in
+   * @return the index
+   */
+  static GradleCacheIndex create(Path root, Layout layout, Path cacheFile) {
+    return new GradleCacheIndex(root.toAbsolutePath().normalize(), layout, cacheFile);
+  }
+
+  /**
+   * Find the jar or aar file of the artifact in the Gradle cache of the given Gradle home.
+   *
+   * @param gradleHome the Gradle home, usually ~/.gradle
+   * @param artifact the artifact
+   * @param source true if the sources jar should be found
+   * @return the file
+   */
+  static Optional<Path> findInGradleHome(Path gradleHome, Artifact artifact, boolean source) {
+    Path caches = gradleHome.resolve("caches");
+    for (Path files : childDirectories(caches, "modules-", "files-")) {
+      Optional<Path> found = of(files, Layout.GRADLE).find(artifact, source);
+      if (found.isPresent()) {
+        return found;
+      }
+    }
+    return Optional.empty();
+  }
+
+  /** Lists the directories caches/modules-*&#47;files-*. */
+  private static List<Path> childDirectories(Path caches, String modules, String files) {
+    List<Path> result = new ArrayList<>();
+    for (Path m : list(caches)) {
+      if (m.getFileName().toString().startsWith(modules) && Files.isDirectory(m)) {
+        for (Path f : list(m)) {
+          if (f.getFileName().toString().startsWith(files) && Files.isDirectory(f)) {
+            result.add(f);
+          }
+        }
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  private static List<Path> list(Path directory) {
+    List<Path> result = new ArrayList<>();
+    if (Files.isDirectory(directory)) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        stream.forEach(result::add);
+      } catch (IOException e) {
+        MagpieServer.ExceptionLogger.log(e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Find the jar or aar file of the artifact.
+   *
+   * @param artifact the artifact
+   * @param source true if the sources jar should be found
+   * @return the file
+   */
+  public Optional<Path> find(Artifact artifact, boolean source) {
+    Map<String, List<Path>> files = refreshIfStale();
+    String name = artifact.artifactId + '-' + artifact.version + (source ? "-sources" : "");
+    for (String extension : new String[] {".aar", ".jar"}) {
+      for (Path file : files.getOrDefault(name + extension, Collections.emptyList())) {
+        if (matches(file, artifact)) {
+          return Optional.of(file);
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
+  /** Checks that the directories of the file are the coordinates of the artifact. */
+  private boolean matches(Path file, Artifact artifact) {
+    Path versionDir = layout == Layout.GRADLE ? file.getParent().getParent() : file.getParent();
+    if (versionDir == null || !versionDir.getFileName().toString().equals(artifact.version)) {
+      return false;
+    }
+    Path artifactDir = versionDir.getParent();
+    if (artifactDir == null || !artifactDir.getFileName().toString().equals(artifact.artifactId)) {
+      return false;
+    }
+    if (layout == Layout.GRADLE) {
+      Path groupDir = artifactDir.getParent();
+      return groupDir != null && groupDir.getFileName().toString().equals(artifact.groupId);
+    }
+    Path dir = artifactDir.getParent();
+    String[] groupParts = artifact.groupId.split("\\.");
+    for (int i = groupParts.length - 1; i >= 0; i--) {
+      if (dir == null || !dir.getFileName().toString().equals(groupParts[i])) {
+        return false;
+      }
+      dir = dir.getParent();
+    }
+    return true;
+  }
+
+  private synchronized Map<String, List<Path>> refreshIfStale() {
+    if (filesByName == null || System.currentTimeMillis() - lastRefresh > REFRESH_INTERVAL_MILLIS) {
+      refresh();
+    }
+    return filesByName;
+  }
+
+  /** Bring the index up to date with the file system. */
+  public synchronized void refresh() {
+    boolean loaded = false;
+    if (directories == null) {
+      directories = load();
+      loaded = !directories.isEmpty();
+    }
+    long start = System.currentTimeMillis();
+    Map<String, DirectoryEntry> updated = new HashMap<>();
+    int[] listed = new int[1];
+    visit("", updated, listed);
+    boolean changed = listed[0] > 0 || updated.size() != directories.size();
+    directories = updated;
+    Map<String, List<Path>> names = new HashMap<>();
+    for (Map.Entry<String, DirectoryEntry> entry : updated.entrySet()) {
+      Path directory = root.resolve(entry.getKey());
+      for (String file : entry.getValue().files) {
+        names.computeIfAbsent(file, f -> new ArrayList<>()).add(directory.resolve(file));
+      }
+    }
+    for (List<Path> paths : names.values()) {
+      Collections.sort(paths);
+    }
+    filesByName = names;
+    lastRefresh = System.currentTimeMillis();
+    if (changed) {
+      CacheUtils.writeJson(cacheFile, directories);
+    }
+    LOG.info(
+        "Indexed "
+            + root
+            + (loaded ? " incrementally" : "")
+            + ", listed "
+            + listed[0]
+            + " of "
+            + updated.size()
+            + " directories in "
+            + (lastRefresh - start)
+            + "ms");
+  }
+
+  /** Visits a directory, it is only listed again if it was modified since the last refresh. */
+  private void visit(String relative, Map<String, DirectoryEntry> updated, int[] listed) {
+    Path directory = relative.isEmpty() ? root : root.resolve(relative);
+    long lastModified;
+    try {
+      lastModified =
+          Files.readAttributes(directory, BasicFileAttributes.class).lastModifiedTime().toMillis();
+    } catch (IOException e) {
+      // the directory was deleted.
+      return;
+    }
+    DirectoryEntry entry = directories.get(relative);
+    if (entry == null || entry.lastModified != lastModified || entry.lastModified < 0) {
+      entry = new DirectoryEntry();
+      entry.directories = new ArrayList<>();
+      entry.files = new ArrayList<>();
+      // a directory modified just now might change again without a new modification time.
+      entry.lastModified =
+          System.currentTimeMillis() - lastModified < MTIME_GRANULARITY_MILLIS ? -1 : lastModified;
+      for (Path child : list(directory)) {
+        String name = child.getFileName().toString();
+        if (Files.isDirectory(child)) {
+          entry.directories.add(name);
+        } else if (name.endsWith(".jar") || name.endsWith(".aar")) {
+          entry.files.add(name);
+        }
+      }
+      listed[0]++;
+    }
+    updated.put(relative, entry);
+    for (String child : entry.directories) {
+      visit(relative.isEmpty() ? child : relative + "/" + child, updated, listed);
+    }
+  }
+
+  private Map<String, DirectoryEntry> load() {
+    if (Files.exists(cacheFile)) {
+      Type type = new TypeToken<Map<String, DirectoryEntry>>() {}.getType();
+      try (Reader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+        Map<String, DirectoryEntry> loaded = new Gson().fromJson(reader, type);
+        if (loaded != null) {
+          loaded.values().removeIf(e -> e == null || e.directories == null || e.files == null);
+          return loaded;
+        }
+      } catch (IOException | JsonParseException e) {
+        MagpieServer.ExceptionLogger.log(e);
+      }
+    }
+    return new HashMap<>();
+  }
+}
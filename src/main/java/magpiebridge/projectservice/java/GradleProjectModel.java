@@ -0,0 +1,289 @@
+package magpiebridge.projectservice.java;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import magpiebridge.core.MagpieServer;
+import magpiebridge.util.CacheUtils;
+
+/**
+ * This class holds the projects of a Gradle build with their resolved dependencies, the files of
+ * the dependencies and the output directories. They are obtained in a single Gradle run: an init
+ * script adds a task to every project which prints the model in a machine-readable format. The
+ * model is cached in memory and on disk until a build file of the workspace changes.
+ */
+public class GradleProjectModel {
+
+  private static final Logger LOG = Logger.getLogger("main");
+
+  private static final String TASK = "magpieModel";
+
+  private static final String PREFIX = "MAGPIE\t";
+
+  /** The init script, it works with Gradle 3 up to the current versions. */
+  private static final String INIT_SCRIPT =
+      String.join(
+          "\n",
+          "allprojects { p ->",
+          "  p.tasks.create('" + TASK + "') {",
+          "    doLast {",
+          "      println \"" + PREFIX + "project\\t${p.path}\\t${p.projectDir}\"",
+          "      p.configurations.each { c ->",
+          "        if (c.hasProperty('canBeResolved') && !c.canBeResolved) return",
+          "        try {",
+          "          c.incoming.resolutionResult.allComponents.each { component ->",
+          "            def id = component.id",
+          "            if (id instanceof org.gradle.api.artifacts.component.ModuleComponentIdentifier) {",
+          "              println \""
+              + PREFIX
+              + "dependency\\t${p.path}\\t${id.group}:${id.module}:${id.version}\"",
+          "            }",
+          "          }",
+          "          c.incoming.artifactView { lenient = true }.files.each { f ->",
+          "            println \"" + PREFIX + "file\\t${p.path}\\t${f}\"",
+          "          }",
+          "        } catch (Exception e) {",
+          "          // e.g. ambiguous variants of Android configurations.",
+          "        }",
+          "      }",
+          "      if (p.hasProperty('sourceSets')) {",
+          "        p.sourceSets.each { s ->",
+          "          def dirs = s.output.hasProperty('classesDirs')"
+              + " ? s.output.classesDirs.files : [s.output.classesDir]",
+          "          dirs.each { println \"" + PREFIX + "output\\t${p.path}\\t${it}\" }",
+          "        }",
+          "      }",
+          "    }",
+          "  }",
+          "}",
+          "");
+
+  private static final Map<Path, GradleProjectModel> models = new ConcurrentHashMap<>();
+
+  /** A project of the build. */
+  private static class Project {
+    String path;
+    String directory;
+    List<String> dependencies = new ArrayList<>();
+    List<String> files = new ArrayList<>();
+    List<String> outputDirectories = new ArrayList<>();
+  }
+
+  /** The fingerprint of the build files the model was obtained for. */
+  private String fingerprint;
+  /** The projects by path, the root project has the path ":". */
+  private Map<String, Project> projects = new LinkedHashMap<>();
+
+  /**
+   * Gets the model of the Gradle build in the workspace. Gradle is only run if a build file changed
+   * since the last run.
+   *
+   * @param workspaceRoot the workspace root
+   * @return the model, empty if Gradle couldn't be run
+   */
+  static Optional<GradleProjectModel> of(Path workspaceRoot) {
+    Path root = workspaceRoot.toAbsolutePath().normalize();
+    String fingerprint =
+        ClassPathCache.fingerprint(root, Collections.emptyList(), Collections.emptySet());
+    GradleProjectModel model = models.get(root);
+    if (model == null || !fingerprint.equals(model.fingerprint)) {
+      Path cacheFile = cacheFile(root);
+      model = load(cacheFile);
+      if (model == null || !fingerprint.equals(model.fingerprint)) {
+        model = run(root);
+        if (model == null) {
+          return Optional.empty();
+        }
+        model.fingerprint = fingerprint;
+        CacheUtils.writeJson(cacheFile, model);
+      }
+      models.put(root, model);
+    }
+    return Optional.of(model);
+  }
+
+  private static Path cacheFile(Path root) {
+    return CacheUtils.cacheDirectory()
+        .resolve("gradle-model")
+        .resolve(CacheUtils.sha256(root.toString()) + ".json");
+  }
+
+  private static GradleProjectModel load(Path cacheFile) {
+    if (!Files.exists(cacheFile)) {
+      return null;
+    }
+    try (Reader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+      GradleProjectModel model = new Gson().fromJson(reader, GradleProjectModel.class);
+      return model != null && model.projects != null ? model : null;
+    } catch (IOException | JsonParseException e) {
+      MagpieServer.ExceptionLogger.log(e);
+      return null;
+    }
+  }
+
+  /** Runs Gradle with the init script, null if the run failed. */
+  private static GradleProjectModel run(Path workspaceRoot) {
+    Path gradle = InferConfigGradle.getGradleBinary(workspaceRoot);
+    if (gradle == null) {
+      return null;
+    }
+    Path initScript = null;
+    try {
+      initScript = Files.createTempFile("magpie-init", ".gradle");
+      Files.write(initScript, INIT_SCRIPT.getBytes(StandardCharsets.UTF_8));
+      LOG.info("Running " + gradle + " " + TASK + " with an init script");
+      Process process =
+          InferConfigGradle.newProcessBuilderWithEnv(workspaceRoot)
+              .directory(workspaceRoot.toFile())
+              .command(gradle.toString(), "--init-script", initScript.toString(), "-q", TASK)
+              .redirectErrorStream(true)
+              .start();
+      List<String> lines = new ArrayList<>();
+      try (BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines.add(line);
+        }
+      }
+      int exitCode = process.waitFor();
+      GradleProjectModel model = parse(lines);
+      if (exitCode != 0 || model.projects.isEmpty()) {
+        LOG.info("Gradle failed with exit code " + exitCode + ": " + String.join("\n", lines));
+        return null;
+      }
+      return model;
+    } catch (IOException e) {
+      MagpieServer.ExceptionLogger.log(e);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      if (initScript != null) {
+        try {
+          Files.deleteIfExists(initScript);
+        } catch (IOException e) {
+          MagpieServer.ExceptionLogger.log(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses the output of the init script. Lines which are not printed by the init script are
+   * ignored.
+   *
+   * @param lines the lines of the output
+   * @return the model
+   */
+  static GradleProjectModel parse(List<String> lines) {
+    GradleProjectModel model = new GradleProjectModel();
+    for (String line : lines) {
+      if (!line.startsWith(PREFIX)) {
+        continue;
+      }
+      String[] parts = line.split("\t", 4);
+      if (parts.length != 4) {
+        continue;
+      }
+      Project project =
+          model.projects.computeIfAbsent(
+              parts[2],
+              path -> {
+                Project p = new Project();
+                p.path = path;
+                return p;
+              });
+      switch (parts[1]) {
+        case "project":
+          project.directory = parts[3];
+          break;
+        case "dependency":
+          if (!project.dependencies.contains(parts[3])) {
+            project.dependencies.add(parts[3]);
+          }
+          break;
+        case "file":
+          if (!project.files.contains(parts[3])) {
+            project.files.add(parts[3]);
+          }
+          break;
+        case "output":
+          project.outputDirectories.add(parts[3]);
+          break;
+        default:
+          break;
+      }
+    }
+    return model;
+  }
+
+  /** @return the resolved dependencies of all projects. */
+  public Collection<Artifact> getDependencies() {
+    Set<Artifact> dependencies = new LinkedHashSet<>();
+    for (Project project : projects.values()) {
+      for (String id : project.dependencies) {
+        Artifact artifact = Artifact.parse(id);
+        if (artifact != null) {
+          dependencies.add(artifact);
+        }
+      }
+    }
+    return dependencies;
+  }
+
+  /** @return the resolved jar and aar files of the dependencies of all projects. */
+  public Set<Path> getDependencyFiles() {
+    Set<Path> files = new LinkedHashSet<>();
+    for (Project project : projects.values()) {
+      for (String file : project.files) {
+        if (file.endsWith(".jar") || file.endsWith(".aar")) {
+          files.add(Paths.get(file));
+        }
+      }
+    }
+    return files;
+  }
+
+  /** @return the directories of all projects. */
+  public Set<Path> getProjectDirectories() {
+    Set<Path> directories = new LinkedHashSet<>();
+    for (Project project : projects.values()) {
+      if (project.directory != null) {
+        directories.add(Paths.get(project.directory));
+      }
+    }
+    return directories;
+  }
+
+  /** @return the class output directories of the source sets of all projects. */
+  public Set<Path> getOutputDirectories() {
+    Set<Path> directories = new LinkedHashSet<>();
+    for (Project project : projects.values()) {
+      for (String directory : project.outputDirectories) {
+        directories.add(Paths.get(directory));
+      }
+    }
+    return directories;
+  }
+}
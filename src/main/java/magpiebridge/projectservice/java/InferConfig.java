@@ -12,10 +12,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
@@ -26,6 +28,7 @@ import java.util.stream.Stream;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import magpiebridge.core.MagpieServer;
+import magpiebridge.file.WorkspaceCrawler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -52,9 +55,14 @@ public class InferConfig {
   private final Path mavenHome;
   /** Location of the gradle cache, usually ~/.gradle */
   private final Path gradleHome;
+  /** The on-disk cache of build class paths, null if the class path shouldn't be cached */
+  private final ClassPathCache classPathCache;
 
   private Set<Path> cachedBuildClassPath;
 
+  /** The model of the Gradle build, empty if Gradle couldn't be run, null until it is needed. */
+  private Optional<GradleProjectModel> gradleModel;
+
   private JavaProjectType projectType;
 
   InferConfig(
@@ -62,10 +70,20 @@ public class InferConfig {
       Collection<String> externalDependencies,
       Path mavenHome,
       Path gradleHome) {
+    this(workspaceRoot, externalDependencies, mavenHome, gradleHome, ClassPathCache.defaultCache());
+  }
+
+  InferConfig(
+      Path workspaceRoot,
+      Collection<String> externalDependencies,
+      Path mavenHome,
+      Path gradleHome,
+      ClassPathCache classPathCache) {
     this.workspaceRoot = workspaceRoot;
     this.externalDependencies = externalDependencies;
     this.mavenHome = mavenHome;
     this.gradleHome = gradleHome;
+    this.classPathCache = classPathCache;
   }
 
   public InferConfig(Path workspaceRoot, Collection<String> externalDependencies) {
@@ -102,6 +120,24 @@ public class InferConfig {
     return buildClassPath();
   }
 
+  /**
+   * Infers the modules of the project, each with its own source path, output directories and
+   * dependencies. Currently the modules of Maven reactors are supported, they are resolved from the
+   * local repository. Call {@link #classPath()} first, so that Maven downloads missing
+   * dependencies.
+   *
+   * @return the modules, empty if the project isn't split into modules or they can't be resolved
+   */
+  public List<JavaModule> modules() {
+    Path pomXml = workspaceRoot.resolve("pom.xml");
+    if (!externalDependencies.isEmpty() || !Files.exists(pomXml)) {
+      return Collections.emptyList();
+    }
+    return new MavenPomResolver(mavenHome.resolve("repository"))
+        .resolveModules(pomXml)
+        .orElse(Collections.emptyList());
+  }
+
   /**
    * Find directories that contain java .class files in the workspace, for example files generated
    * by maven in target/classes
@@ -117,15 +153,10 @@ public class InferConfig {
     // Maven
     if (Files.exists(workspaceRoot.resolve("pom.xml"))) {
       this.projectType = JavaProjectType.Maven;
-      try {
-        return Files.walk(workspaceRoot)
-            .flatMap(this::mavenOutputDirectory)
-            .collect(Collectors.toSet());
-      } catch (IOException e) {
-        MagpieServer.ExceptionLogger.log(
-            "Couldn't infer Maven project configuration, because Maven is not installed. Install Maven, or add its location to the system PATH variable.");
-        MagpieServer.ExceptionLogger.log(e);
-      }
+      // the pom.xml files of the modules, build outputs are not crawled.
+      return WorkspaceCrawler.of(workspaceRoot).inventory().getFilesNamed("pom.xml").stream()
+          .flatMap(this::mavenOutputDirectory)
+          .collect(Collectors.toSet());
     }
 
     // Bazel
@@ -141,7 +172,7 @@ public class InferConfig {
     // Gradle
     if (InferConfigGradle.hasGradleProject(workspaceRoot)) {
       this.projectType = JavaProjectType.Gradle;
-      return InferConfigGradle.workspaceClassPath(workspaceRoot);
+      return InferConfigGradle.workspaceClassPath(workspaceRoot, gradleModel());
     }
 
     // Eclipse Java Project
@@ -214,7 +245,56 @@ public class InferConfig {
     if (cachedBuildClassPath != null) {
       return cachedBuildClassPath;
     }
+    if (classPathCache == null || !runsBuildTool()) {
+      cachedBuildClassPath = computeBuildClassPath();
+      return cachedBuildClassPath;
+    }
+    // Maven and Gradle are only run if a build file changed since the last time.
+    String fingerprint =
+        ClassPathCache.fingerprint(
+            workspaceRoot, Arrays.asList(mavenHome, gradleHome), externalDependencies);
+    Optional<Set<Path>> cached = classPathCache.load(workspaceRoot, fingerprint);
+    if (cached.isPresent()) {
+      cachedBuildClassPath = cached.get();
+      if (classPathCache.needsRevalidation(workspaceRoot)) {
+        classPathCache.revalidate(
+            workspaceRoot, fingerprint, cachedBuildClassPath, this::computeBuildClassPath);
+      }
+      return cachedBuildClassPath;
+    }
+    Set<Path> result = computeBuildClassPath();
+    if (!result.isEmpty()) {
+      // an empty class path is not cached, since Maven or Gradle might not be installed.
+      classPathCache.store(workspaceRoot, fingerprint, result);
+    }
+    cachedBuildClassPath = result;
+    return result;
+  }
+
+  /**
+   * Gets the model of the Gradle build once per inference, a failure to run Gradle is remembered as
+   * well.
+   */
+  private synchronized Optional<GradleProjectModel> gradleModel() {
+    if (gradleModel == null) {
+      gradleModel = GradleProjectModel.of(workspaceRoot);
+    }
+    return gradleModel;
+  }
 
+  /** @return true if the build class path is computed by running Maven or Gradle. */
+  private boolean runsBuildTool() {
+    if (!externalDependencies.isEmpty()) {
+      return false;
+    }
+    if (Files.exists(workspaceRoot.resolve("pom.xml"))) {
+      return true;
+    }
+    return !Files.exists(workspaceRoot.resolve("WORKSPACE"))
+        && InferConfigGradle.hasGradleProject(workspaceRoot);
+  }
+
+  private Set<Path> computeBuildClassPath() {
     // externalDependencies
     if (!externalDependencies.isEmpty()) {
       Set<Path> result = new HashSet<Path>();
@@ -230,14 +310,13 @@ public class InferConfig {
           }
         }
       }
-      cachedBuildClassPath = result;
       return result;
     }
 
     // Maven
     if (Files.exists(workspaceRoot.resolve("pom.xml"))) {
       Set<Path> result = new HashSet<Path>();
-      for (Artifact a : mvnDependencies()) {
+      for (Artifact a : mavenDependencies()) {
         Optional<Path> found = findMavenJar(a, false);
         if (found.isPresent()) {
           result.add(found.get());
@@ -245,7 +324,6 @@ public class InferConfig {
           logger.warn(String.format("Couldn't find jar for %s in %s", a, mavenHome));
         }
       }
-      cachedBuildClassPath = result;
       return result;
     }
 
@@ -257,18 +335,16 @@ public class InferConfig {
         Set<Path> jars = bazelJars(bazelGenFiles);
         result.addAll(jars);
       }
-      cachedBuildClassPath = result;
       return result;
     }
 
     // Gradle
     if (InferConfigGradle.hasGradleProject(workspaceRoot)) {
-      Set<Path> result = InferConfigGradle.gradleBuildClassPath(workspaceRoot, gradleHome);
-      cachedBuildClassPath = result;
+      Set<Path> result =
+          InferConfigGradle.gradleBuildClassPath(workspaceRoot, gradleHome, gradleModel());
       return result;
     }
 
-    cachedBuildClassPath = Collections.emptySet();
     return Collections.emptySet();
   }
 
@@ -277,11 +353,8 @@ public class InferConfig {
     File javac = new File(bazelRoot, "_javac");
     if (javac.exists()) {
       PathMatcher match = FileSystems.getDefault().getPathMatcher("glob:**/lib*_classes");
-      try {
-        Files.walk(javac.toPath())
-            .filter(match::matches)
-            .filter(Files::isDirectory)
-            .forEach(acc::add);
+      try (Stream<Path> paths = Files.walk(javac.toPath())) {
+        paths.filter(match::matches).filter(Files::isDirectory).forEach(acc::add);
       } catch (IOException e) {
         MagpieServer.ExceptionLogger.log(e);
       }
@@ -301,6 +374,9 @@ public class InferConfig {
    * Search bazel-bin for per-module output directories matching the pattern:
    *
    * <p>bazel-bin/path/to/module/_javac/rule/lib*_classes
+   *
+   * <p>bazel-bin links to the output tree of Bazel outside of the workspace, which the {@link
+   * WorkspaceCrawler} doesn't follow. Only its _javac directories are walked.
    */
   private Set<Path> bazelOutputDirectories(Path bazelBin) {
     try {
@@ -314,14 +390,18 @@ public class InferConfig {
     return Collections.emptySet();
   }
 
-  /** Search bazel-genfiles for jars */
+  /**
+   * Search bazel-genfiles for jars. Like bazel-bin, it links to the output tree of Bazel, which the
+   * {@link WorkspaceCrawler} doesn't follow.
+   */
   private Set<Path> bazelJars(Path bazelGenFiles) {
     try {
       Path target = Files.readSymbolicLink(bazelGenFiles);
-
-      return Files.walk(target)
-          .filter(file -> file.getFileName().toString().endsWith(".jar"))
-          .collect(Collectors.toSet());
+      try (Stream<Path> paths = Files.walk(target)) {
+        return paths
+            .filter(file -> file.getFileName().toString().endsWith(".jar"))
+            .collect(Collectors.toSet());
+      }
     } catch (IOException e) {
       MagpieServer.ExceptionLogger.log(e);
     }
@@ -367,6 +447,22 @@ public class InferConfig {
     return artifact.artifactId + '-' + artifact.version + (source ? "-sources" : "") + ".{aar,jar}";
   }
 
+  /**
+   * Gets all dependencies of the Maven project. They are resolved from the local repository if all
+   * POMs and jars are downloaded already, otherwise Maven is run.
+   *
+   * @return the collection
+   */
+  private Collection<Artifact> mavenDependencies() {
+    Optional<Set<Artifact>> resolved =
+        new MavenPomResolver(mavenHome.resolve("repository"))
+            .resolve(workspaceRoot.resolve("pom.xml"));
+    if (resolved.isPresent()) {
+      return resolved.get();
+    }
+    return mvnDependencies();
+  }
+
   /**
    * This method runs the command <code>mvn dependency:list</code> to get all dependencies.
    *
@@ -5,10 +5,8 @@ import com.google.common.base.Strings;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.Collections;
@@ -22,7 +20,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 import magpiebridge.core.MagpieServer;
 
 @VisibleForTesting
@@ -32,16 +29,6 @@ public class InferConfigGradle {
 
   private InferConfigGradle() {}
 
-  private static String toGlobPathPart(Path path) {
-    Path absolutePath = path.toAbsolutePath();
-    String root = Strings.nullToEmpty(absolutePath.getRoot().toString()).replace('\\', '/');
-
-    return root
-        + StreamSupport.stream(absolutePath.spliterator(), false)
-            .map(p -> p.getFileName().toString())
-            .collect(Collectors.joining("/"));
-  }
-
   @VisibleForTesting
   public static ProcessBuilder newProcessBuilderWithEnv(Path workspaceRoot) {
     ProcessBuilder pb = new ProcessBuilder();
@@ -66,7 +53,7 @@ public class InferConfigGradle {
                 .map(matcher -> matcher.group(1))
                 .findFirst();
         if (!op.isPresent()) {
-          return null;
+          return Optional.empty();
         } else {
           String path = op.get();
           String os = System.getProperty("os.name");
@@ -115,60 +102,37 @@ public class InferConfigGradle {
       Path gradleHome, Artifact artifact, boolean source, Path workspaceRoot) {
     // Search for
     // caches/modules-*/files-*/groupId/artifactId/version/*/artifactId-version[-sources].jar
-    Path base = gradleHome.resolve("caches");
-    String gradleCachePattern =
-        "glob:"
-            + String.join(
-                "/", // File.separator does *not* work on Windows
-                toGlobPathPart(base),
-                "modules-*",
-                "files-*",
-                artifact.groupId,
-                artifact.artifactId,
-                artifact.version,
-                "*",
-                InferConfig.fileNameJarOrAar(artifact, source));
-    PathMatcher match = FileSystems.getDefault().getPathMatcher(gradleCachePattern);
-
-    try {
-      Optional<Path> gradleCacheMatch = Files.walk(base, 7).filter(match::matches).findFirst();
-      if (gradleCacheMatch.isPresent()) {
-        return gradleCacheMatch;
-      }
-    } catch (IOException e) {
-      MagpieServer.ExceptionLogger.log(e);
+    Optional<Path> gradleCacheMatch =
+        GradleCacheIndex.findInGradleHome(gradleHome, artifact, source);
+    if (gradleCacheMatch.isPresent()) {
+      return gradleCacheMatch;
     }
 
     // Try Android SDK paths
     Path androidSdkPath = androidSdkPath(workspaceRoot).orElse(null);
     if (androidSdkPath != null) {
       Path extrasPath = androidSdkPath.resolve("extras");
-      Stream<String> patternPart1 = Stream.of(toGlobPathPart(extrasPath), "**");
-      Stream<String> patternPart2 = Stream.of(artifact.groupId.split("\\."));
-      Stream<String> patternPart3 =
-          Stream.of(
-              artifact.artifactId,
-              artifact.version,
-              InferConfig.fileNameJarOrAar(artifact, source));
-      String pattern =
-          "glob:"
-              + Stream.concat(Stream.concat(patternPart1, patternPart2), patternPart3)
-                  .collect(Collectors.joining("/"));
-      PathMatcher androidSdkMatch = FileSystems.getDefault().getPathMatcher(pattern);
-
-      try {
-        if (Files.exists(extrasPath)) {
-          return Files.walk(extrasPath).filter(androidSdkMatch::matches).findFirst();
-        }
-      } catch (IOException e) {
-        MagpieServer.ExceptionLogger.log(e);
+      if (Files.exists(extrasPath)) {
+        return GradleCacheIndex.of(extrasPath, GradleCacheIndex.Layout.MAVEN)
+            .find(artifact, source);
       }
     }
 
     return Optional.empty();
   }
 
-  static Collection<Artifact> gradleDependencies(Path workspaceRoot) {
+  static Collection<Artifact> gradleDependencies(
+      Path workspaceRoot, Optional<GradleProjectModel> model) {
+    if (model.isPresent()) {
+      Collection<Artifact> dependencies = model.get().getDependencies();
+      LOG.info("Gradle dependencies: " + dependencies);
+      return dependencies;
+    }
+    // the init script couldn't be run, e.g. with an old Gradle version.
+    return gradleDependenciesPerSubproject(workspaceRoot);
+  }
+
+  private static Collection<Artifact> gradleDependenciesPerSubproject(Path workspaceRoot) {
     Path gradle = getGradleBinary(workspaceRoot);
     if (gradle != null) {
       String gradleBinary = gradle.toString();
@@ -244,7 +208,7 @@ public class InferConfigGradle {
     return Collections.emptySet();
   }
 
-  private static Path getGradleBinary(Path workspaceRoot) {
+  static Path getGradleBinary(Path workspaceRoot) {
     boolean isWindows = System.getProperty("os.name").startsWith("Windows");
 
     // Try gradle wrapper
@@ -274,51 +238,64 @@ public class InferConfigGradle {
     return Files.exists(workspaceRoot.resolve("build.gradle"));
   }
 
-  static Set<Path> workspaceClassPath(Path workspaceRoot) {
+  static Set<Path> workspaceClassPath(Path workspaceRoot, Optional<GradleProjectModel> model) {
+    Stream<Path> projectDirs =
+        model.isPresent()
+            ? model.get().getProjectDirectories().stream()
+            : InferConfigGradle.gradleSubprojects(workspaceRoot).stream()
+                .filter(subproject -> !subproject.isEmpty())
+                .map(subproject -> workspaceRoot.resolve(removePrefix(subproject, ":")));
     Stream<Path> subprojectDirs =
-        InferConfigGradle.gradleSubprojects(workspaceRoot).stream()
-            .filter(subproject -> !subproject.isEmpty())
-            .map(subproject -> removePrefix(subproject, ":"))
-            .flatMap(
-                subproject ->
-                    Stream.of(
-                        workspaceRoot
-                            .resolve(subproject)
-                            .resolve("build")
-                            .resolve("intermediates")
-                            .resolve("javac"),
-                        workspaceRoot
-                            .resolve(subproject)
-                            .resolve("build")
-                            .resolve("intermediates")
-                            .resolve("classes"),
-                        workspaceRoot.resolve(subproject).resolve("build").resolve("classes")));
+        projectDirs.flatMap(
+            projectDir ->
+                Stream.of(
+                    projectDir.resolve("build").resolve("intermediates").resolve("javac"),
+                    projectDir.resolve("build").resolve("intermediates").resolve("classes"),
+                    projectDir.resolve("build").resolve("classes")));
 
     Stream<Path> rootProjectDirs =
         Stream.of(
             workspaceRoot.resolve("build").resolve("intermediates").resolve("javac"),
             workspaceRoot.resolve("build").resolve("intermediates").resolve("classes"),
             workspaceRoot.resolve("build").resolve("classes"));
-    return Stream.concat(rootProjectDirs, subprojectDirs)
-        .filter(Files::exists)
-        .collect(Collectors.toSet());
+    Set<Path> result =
+        Stream.concat(rootProjectDirs, subprojectDirs)
+            .filter(Files::exists)
+            .collect(Collectors.toSet());
+    if (model.isPresent()) {
+      // output directories outside of the default ones, e.g. of custom source sets.
+      Set<Path> defaults = new LinkedHashSet<>(result);
+      model.get().getOutputDirectories().stream()
+          .filter(Files::exists)
+          .filter(dir -> defaults.stream().noneMatch(dir::startsWith))
+          .forEach(result::add);
+    }
+    return result;
   }
 
   private static String removePrefix(String str, String prefix) {
     return str.startsWith(prefix) ? str.substring(prefix.length()) : str;
   }
 
-  static Set<Path> gradleBuildClassPath(Path workspaceRoot, Path gradleHome) {
+  static Set<Path> gradleBuildClassPath(
+      Path workspaceRoot, Path gradleHome, Optional<GradleProjectModel> model) {
     LOG.info("Looking up gradle dependencies");
-    Collection<Artifact> artifacts = gradleDependencies(workspaceRoot);
+    Collection<Artifact> artifacts = gradleDependencies(workspaceRoot, model);
     int depCount = artifacts.size();
     AtomicInteger c = new AtomicInteger();
-    return artifacts
-        .parallelStream()
-        .map(dep -> findGradleJar(gradleHome, dep, false, workspaceRoot))
-        .peek(__ -> LOG.info("Processed " + c.incrementAndGet() + "/" + depCount + " dependencies"))
-        .filter(Optional::isPresent)
-        .map(Optional::get)
-        .collect(Collectors.toSet());
+    Set<Path> result =
+        artifacts
+            .parallelStream()
+            .map(dep -> findGradleJar(gradleHome, dep, false, workspaceRoot))
+            .peek(
+                __ ->
+                    LOG.info("Processed " + c.incrementAndGet() + "/" + depCount + " dependencies"))
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .collect(Collectors.toSet());
+    // the files resolved by Gradle, e.g. of dependencies from flat directories.
+    model.ifPresent(
+        m -> m.getDependencyFiles().stream().filter(Files::exists).forEach(result::add));
+    return result;
   }
 }
@@ -2,22 +2,35 @@ package magpiebridge.projectservice.java;
 
 import com.github.javaparser.JavaParser;
 import com.github.javaparser.ast.CompilationUnit;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.function.Consumer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import magpiebridge.core.MagpieServer;
+import magpiebridge.file.WorkspaceCrawler;
+import magpiebridge.util.CacheUtils;
 
 /**
  * Infer the source path from a given project root path. Instead using the Parser from Java JDK
@@ -30,93 +43,323 @@ import magpiebridge.core.MagpieServer;
 public class InferSourcePath {
 
   private static final Logger LOG = Logger.getLogger("main");
-  private Set<String> packageNames;
-  private Set<String> classFullQualifiedNames;
 
+  private static final ScheduledExecutorService PERSISTENCE =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "magpie-source-path-cache");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** The cached header of a Java source file. */
+  private static class FileEntry {
+    long lastModified;
+    long size;
+    /** The package name, null if the file couldn't be parsed. */
+    String packageName;
+  }
+
+  private Path workspaceRoot;
+  /** True if the cache file is chosen by the workspace root. */
+  private final boolean defaultCacheFile;
+  /** The file the cache is persisted in, null if it isn't persisted. */
+  private Path cacheFile;
+  /** The Java source files in the workspace with their headers. */
+  private final Map<Path, FileEntry> files = new HashMap<>();
+  /** The source roots mapped to the number of files in them. */
+  private final Map<Path, Integer> sourceRoots = new HashMap<>();
+  /** The package names mapped to the number of files in them. */
+  private final Map<String, Integer> packageNames = new HashMap<>();
+  /** The full qualified names of the primary classes mapped to the number of their files. */
+  private final Map<String, Integer> classFullQualifiedNames = new HashMap<>();
+
+  private boolean persistScheduled;
+
+  /** Instantiates a new inference, whose cache is persisted in the default cache directory. */
+  public InferSourcePath() {
+    this.defaultCacheFile = true;
+  }
+
+  /**
+   * Instantiates a new inference whose cache is persisted in the given file.
+   *
+   * @param cacheFile the cache file, null if the cache shouldn't be persisted
+   */
+  InferSourcePath(Path cacheFile) {
+    this.defaultCacheFile = false;
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * Gets the Java source files in the directory from the inventory of the shared {@link
+   * WorkspaceCrawler}, i.e. ignored directories like build outputs are left out.
+   *
+   * @param dir the directory
+   * @return the Java source files
+   */
   protected static Stream<Path> allJavaFiles(Path dir) {
-    PathMatcher match = FileSystems.getDefault().getPathMatcher("glob:*.java");
+    return WorkspaceCrawler.of(dir).inventory().getFilesWithSuffix(".java").stream();
+  }
+
+  /**
+   * Reads the package name of a Java source file. The header of the file is scanned, only files
+   * which the {@link JavaHeaderScanner} doesn't understand are parsed completely.
+   *
+   * @param java the Java source file
+   * @return the package name, the empty string for the default package, or empty if the file
+   *     couldn't be parsed
+   */
+  static Optional<String> packageName(Path java) {
+    try (Reader reader = Files.newBufferedReader(java, StandardCharsets.UTF_8)) {
+      Optional<String> packageName = JavaHeaderScanner.scanPackage(reader);
+      if (packageName.isPresent()) {
+        return packageName;
+      }
+    } catch (IOException e) {
+      // e.g. malformed input, the parser decides.
+    }
     try {
-      return Files.walk(dir).filter(java -> match.matches(java.getFileName()));
+      Optional<CompilationUnit> result = new JavaParser().parse(java).getResult();
+      if (result.isPresent()) {
+        return Optional.of(
+            result.get().getPackageDeclaration().map(p -> p.getNameAsString()).orElse(""));
+      }
     } catch (IOException e) {
       MagpieServer.ExceptionLogger.log(e);
     }
-    return null;
+    return Optional.empty();
   }
 
-  public Set<Path> sourcePath(Path workspaceRoot) {
+  /**
+   * The name of the primary type of a Java source file, i.e. its file name without the extension.
+   */
+  static String primaryTypeName(Path java) {
+    String fileName = java.getFileName().toString();
+    return fileName.substring(0, fileName.length() - ".java".length());
+  }
+
+  /**
+   * Infers the source roots of the workspace. The headers of the Java source files are cached by
+   * their modification time and size, only new and modified files are read again. Afterwards the
+   * inferred source path is kept up to date with {@link #update(Path, boolean)}.
+   *
+   * @param workspaceRoot the workspace root
+   * @return the source roots
+   */
+  public synchronized Set<Path> sourcePath(Path workspaceRoot) {
     LOG.info("Searching for source roots in " + workspaceRoot);
-    packageNames = new HashSet<String>();
-    classFullQualifiedNames = new HashSet<String>();
-    class SourcePaths implements Consumer<Path> {
-      Map<Path, Integer> sourceRoots = new HashMap<>();
-
-      Optional<Path> infer(Path java) {
-        JavaParser javaParser = new JavaParser();
-        Optional<CompilationUnit> result = null;
-        try {
-          result = javaParser.parse(java).getResult();
-        } catch (IOException e) {
-          MagpieServer.ExceptionLogger.log(e);
-          e.printStackTrace();
+    Map<Path, FileEntry> cached = new HashMap<>(files);
+    if (!workspaceRoot.equals(this.workspaceRoot)) {
+      if (defaultCacheFile) {
+        cacheFile =
+            CacheUtils.cacheDirectory()
+                .resolve("source-path")
+                .resolve(CacheUtils.sha256(workspaceRoot.toAbsolutePath().toString()) + ".json");
+      }
+      cached = load();
+    }
+    this.workspaceRoot = workspaceRoot;
+    files.clear();
+    sourceRoots.clear();
+    packageNames.clear();
+    classFullQualifiedNames.clear();
+    List<Path> paths =
+        allJavaFiles(workspaceRoot)
+            .filter(java -> !java.getFileName().toString().equals("module-info.java"))
+            .collect(Collectors.toList());
+    Map<Path, FileEntry> previous = cached;
+    // the headers are read in parallel, the results are collected in the order of the files.
+    List<FileEntry> entries =
+        paths
+            .parallelStream()
+            .map(java -> readEntry(java, previous.get(java)))
+            .collect(Collectors.toList());
+    int read = 0;
+    for (int i = 0; i < paths.size(); i++) {
+      FileEntry entry = entries.get(i);
+      if (entry != null) {
+        if (entry != cached.get(paths.get(i))) {
+          read++;
         }
-        String packageName = "";
-        if (result.isPresent()) {
-          CompilationUnit cu = result.get();
-          if (cu.getPackageDeclaration().isPresent()) {
-            packageName = cu.getPackageDeclaration().get().getNameAsString();
-            packageNames.add(packageName);
-            classFullQualifiedNames.add(packageName + "." + cu.getPrimaryTypeName().get());
-          } else {
-            classFullQualifiedNames.add(cu.getPrimaryTypeName().get());
-          }
+        files.put(paths.get(i), entry);
+        add(paths.get(i), entry, 1);
+      }
+    }
+    LOG.info("Read the headers of " + read + " of " + paths.size() + " Java source files");
+    if (read > 0 || cached.size() != files.size()) {
+      persist();
+    }
+    return getSourceRoots();
+  }
+
+  /**
+   * Updates the inferred source path with a created, changed or deleted file. Only the given file
+   * is read, unless a whole directory was created or deleted.
+   *
+   * @param file the file or directory
+   * @param deleted true if the file was deleted
+   */
+  public synchronized void update(Path file, boolean deleted) {
+    if (workspaceRoot == null || !file.startsWith(workspaceRoot)) {
+      return;
+    }
+    boolean javaFile =
+        file.getFileName().toString().endsWith(".java")
+            && !file.getFileName().toString().equals("module-info.java");
+    if (javaFile) {
+      FileEntry old = files.remove(file);
+      if (old != null) {
+        add(file, old, -1);
+      }
+      if (!deleted) {
+        FileEntry entry = readEntry(file, null);
+        if (entry != null) {
+          files.put(file, entry);
+          add(file, entry, 1);
         }
-        if (packageName.length() == 0) {
-          return Optional.of(java.getParent());
+      }
+    } else if (deleted) {
+      // a directory might have been deleted.
+      for (Path java : new ArrayList<>(files.keySet())) {
+        if (java.startsWith(file)) {
+          add(java, files.remove(java), -1);
         }
-        String packagePath = packageName.replace('.', File.separatorChar);
-        Path dir = java.getParent();
-        if (!dir.endsWith(packagePath)) {
-          LOG.warning("Java source file " + java + " is not in " + packagePath);
-          return Optional.empty();
-        } else {
-          int up = Paths.get(packagePath).getNameCount();
-          Path truncate = dir;
-          for (int i = 0; i < up; i++) {
-            truncate = truncate.getParent();
-          }
-          return Optional.of(truncate);
+      }
+    } else if (Files.isDirectory(file)) {
+      for (Path java : WorkspaceCrawler.of(workspaceRoot).crawl(file)) {
+        if (java.getFileName().toString().endsWith(".java")) {
+          update(java, false);
         }
       }
+      return;
+    } else {
+      return;
+    }
+    persist();
+  }
 
-      @Override
-      public void accept(Path java) {
-        if (java.getFileName().toString().equals("module-info.java")) {
-          return;
+  /** Reads the header of the file, the cached entry is returned if the file wasn't modified. */
+  private static FileEntry readEntry(Path java, FileEntry cached) {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(java, BasicFileAttributes.class);
+    } catch (IOException e) {
+      // the file was deleted meanwhile.
+      return null;
+    }
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    if (cached != null && cached.lastModified == lastModified && cached.size == attributes.size()) {
+      return cached;
+    }
+    FileEntry entry = new FileEntry();
+    entry.lastModified = lastModified;
+    entry.size = attributes.size();
+    entry.packageName = packageName(java).orElse(null);
+    return entry;
+  }
+
+  /** Adds the contribution of a file to the source roots, package names and class names. */
+  private void add(Path java, FileEntry entry, int delta) {
+    String packageName = "";
+    if (entry.packageName != null) {
+      packageName = entry.packageName;
+      if (packageName.length() > 0) {
+        count(packageNames, packageName, delta);
+        count(classFullQualifiedNames, packageName + "." + primaryTypeName(java), delta);
+      } else {
+        count(classFullQualifiedNames, primaryTypeName(java), delta);
+      }
+    }
+    Path root;
+    if (packageName.length() == 0) {
+      root = java.getParent();
+    } else {
+      String packagePath = packageName.replace('.', File.separatorChar);
+      Path dir = java.getParent();
+      if (!dir.endsWith(packagePath)) {
+        if (delta > 0) {
+          LOG.warning("Java source file " + java + " is not in " + packagePath);
         }
+        return;
+      }
+      int up = Paths.get(packagePath).getNameCount();
+      root = dir;
+      for (int i = 0; i < up; i++) {
+        root = root.getParent();
+      }
+    }
+    // filter generated java files of maven projects.
+    if (!root.startsWith(workspaceRoot + File.separator + "target")) {
+      count(sourceRoots, root, delta);
+    }
+  }
+
+  private static <T> void count(Map<T, Integer> counts, T key, int delta) {
+    int count = counts.getOrDefault(key, 0) + delta;
+    if (count > 0) {
+      counts.put(key, count);
+    } else {
+      counts.remove(key);
+    }
+  }
 
-        infer(java)
-            .ifPresent(
-                root -> {
-                  int count = sourceRoots.getOrDefault(root, 0);
-                  if (!root.startsWith(
-                      workspaceRoot
-                          + File.separator
-                          + "target")) // filter generated java files of maven projects.
-                  sourceRoots.put(root, count + 1);
-                });
+  private Map<Path, FileEntry> load() {
+    Map<Path, FileEntry> result = new HashMap<>();
+    if (cacheFile == null || !Files.exists(cacheFile)) {
+      return result;
+    }
+    Type type = new TypeToken<Map<String, FileEntry>>() {}.getType();
+    try (Reader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+      Map<String, FileEntry> loaded = new Gson().fromJson(reader, type);
+      if (loaded != null) {
+        for (Map.Entry<String, FileEntry> entry : loaded.entrySet()) {
+          if (entry.getValue() != null) {
+            result.put(Paths.get(entry.getKey()), entry.getValue());
+          }
+        }
       }
+    } catch (IOException | JsonParseException | InvalidPathException e) {
+      MagpieServer.ExceptionLogger.log(e);
+    }
+    return result;
+  }
+
+  /** Writes the cache in the background, consecutive updates are written together. */
+  private void persist() {
+    if (persistScheduled || cacheFile == null) {
+      return;
     }
-    SourcePaths checker = new SourcePaths();
-    Stream<Path> javaFiles = allJavaFiles(workspaceRoot);
-    if (javaFiles != null) javaFiles.forEach(checker);
-    return checker.sourceRoots.keySet();
+    persistScheduled = true;
+    PERSISTENCE.schedule(
+        () -> {
+          Map<String, FileEntry> content = new HashMap<>();
+          Path file;
+          synchronized (this) {
+            persistScheduled = false;
+            file = cacheFile;
+            for (Map.Entry<Path, FileEntry> entry : files.entrySet()) {
+              content.put(entry.getKey().toString(), entry.getValue());
+            }
+          }
+          CacheUtils.writeJson(file, content);
+        },
+        1,
+        TimeUnit.SECONDS);
+  }
+
+  /** @return the source roots inferred so far. */
+  public synchronized Set<Path> getSourceRoots() {
+    return new HashSet<>(sourceRoots.keySet());
   }
 
-  public Set<String> getPackageNames() {
-    return this.packageNames;
+  /** @return the package names. */
+  public synchronized Set<String> getPackageNames() {
+    return new HashSet<>(packageNames.keySet());
   }
 
-  public Set<String> getClassFullQualifiedNames() {
-    return this.classFullQualifiedNames;
+  /** @return the full qualified names of the primary classes. */
+  public synchronized Set<String> getClassFullQualifiedNames() {
+    return new HashSet<>(classFullQualifiedNames.keySet());
   }
 }
@@ -0,0 +1,279 @@
+package magpiebridge.projectservice.java;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * This class reads the package declaration and the imports of a Java source file without parsing
+ * the whole file. It skips whitespace, comments and annotations at the beginning of the file and
+ * stops at the package declaration or at the first other token, e.g. an import or a type
+ * declaration, respectively after the last import. Files it doesn't understand, e.g. with unicode
+ * escapes in the header, are reported as such, so that they can be parsed completely instead.
+ */
+public class JavaHeaderScanner {
+
+  private static final int EOF = -1;
+
+  private final Reader reader;
+  private int peeked = -2;
+  /** The word after which the package declaration was missing, e.g. import. */
+  private String pendingWord;
+
+  private JavaHeaderScanner(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Scans the package declaration of a Java source file.
+   *
+   * @param reader the reader of the file, it is not closed
+   * @return the package name, the empty string for the default package, or empty if the header
+   *     couldn't be scanned
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static Optional<String> scanPackage(Reader reader) throws IOException {
+    return new JavaHeaderScanner(reader).scan();
+  }
+
+  /**
+   * Scans the imports of a Java source file. Static imports are returned as the imported member,
+   * e.g. java.util.Collections.emptyList, on-demand imports end with .*, e.g. java.util.*.
+   *
+   * @param reader the reader of the file, it is not closed
+   * @return the imported names in the order of the file, or empty if the header couldn't be scanned
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static Optional<List<String>> scanImports(Reader reader) throws IOException {
+    JavaHeaderScanner scanner = new JavaHeaderScanner(reader);
+    if (!scanner.scan().isPresent()) {
+      return Optional.empty();
+    }
+    return scanner.imports();
+  }
+
+  private Optional<List<String>> imports() throws IOException {
+    List<String> imports = new ArrayList<>();
+    String word = pendingWord;
+    while (true) {
+      if (word == null) {
+        if (!skipWhitespaceAndComments()) {
+          return Optional.empty();
+        }
+        int c = peek();
+        if (c == ';') {
+          next();
+          continue;
+        }
+        if (c == EOF || c == '\\' || !Character.isJavaIdentifierStart(c)) {
+          return Optional.of(imports);
+        }
+        word = identifier();
+      }
+      if (!word.equals("import")) {
+        // a type or module declaration follows the imports.
+        return Optional.of(imports);
+      }
+      word = null;
+      if (!skipWhitespaceAndComments()) {
+        return Optional.empty();
+      }
+      String name = qualifiedName(true);
+      if ("static".equals(name)) {
+        name = qualifiedName(true);
+      }
+      if (name == null || !skipWhitespaceAndComments() || next() != ';') {
+        return Optional.empty();
+      }
+      imports.add(name);
+    }
+  }
+
+  private Optional<String> scan() throws IOException {
+    if (peek() == '\uFEFF') {
+      // the byte order mark.
+      next();
+    }
+    while (true) {
+      if (!skipWhitespaceAndComments()) {
+        return Optional.empty();
+      }
+      int c = peek();
+      if (c == EOF) {
+        return Optional.of("");
+      }
+      if (c == '@') {
+        next();
+        if (!skipWhitespaceAndComments()) {
+          return Optional.empty();
+        }
+        String name = qualifiedName(false);
+        if (name == null) {
+          return Optional.empty();
+        }
+        if (name.equals("interface")) {
+          // an annotation type declaration.
+          return Optional.of("");
+        }
+        if (!skipWhitespaceAndComments()) {
+          return Optional.empty();
+        }
+        if (peek() == '(' && !skipParentheses()) {
+          return Optional.empty();
+        }
+        continue;
+      }
+      if (Character.isJavaIdentifierStart(c) && c != '\\') {
+        String word = identifier();
+        if (!word.equals("package")) {
+          // an import, a module or a type declaration: the file is in the default package.
+          pendingWord = word;
+          return Optional.of("");
+        }
+        if (!skipWhitespaceAndComments()) {
+          return Optional.empty();
+        }
+        String name = qualifiedName(false);
+        if (name == null || !skipWhitespaceAndComments() || next() != ';') {
+          return Optional.empty();
+        }
+        return Optional.of(name);
+      }
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Reads a qualified name, which may contain whitespace and comments around the dots. If wildcard
+   * is true, the name may end with .* like an on-demand import.
+   */
+  private String qualifiedName(boolean wildcard) throws IOException {
+    StringBuilder name = new StringBuilder();
+    while (true) {
+      int c = peek();
+      if (wildcard && c == '*' && name.length() > 0) {
+        next();
+        name.append('*');
+        return skipWhitespaceAndComments() ? name.toString() : null;
+      }
+      if (c == EOF || c == '\\' || !Character.isJavaIdentifierStart(c)) {
+        return null;
+      }
+      name.append(identifier());
+      if (!skipWhitespaceAndComments()) {
+        return null;
+      }
+      if (peek() != '.') {
+        return name.toString();
+      }
+      next();
+      name.append('.');
+      if (!skipWhitespaceAndComments()) {
+        return null;
+      }
+    }
+  }
+
+  private String identifier() throws IOException {
+    StringBuilder word = new StringBuilder();
+    while (peek() != EOF && peek() != '\\' && Character.isJavaIdentifierPart(peek())) {
+      word.append((char) next());
+    }
+    return word.toString();
+  }
+
+  /** Skips the arguments of an annotation, false if they don't end. */
+  private boolean skipParentheses() throws IOException {
+    int depth = 0;
+    while (true) {
+      if (!skipWhitespaceAndComments()) {
+        return false;
+      }
+      int c = next();
+      switch (c) {
+        case EOF:
+          return false;
+        case '(':
+          depth++;
+          break;
+        case ')':
+          depth--;
+          if (depth == 0) {
+            return true;
+          }
+          break;
+        case '"':
+        case '\'':
+          if (!skipLiteral(c)) {
+            return false;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private boolean skipLiteral(int quote) throws IOException {
+    while (true) {
+      int c = next();
+      if (c == EOF || c == '\n') {
+        return false;
+      }
+      if (c == '\\') {
+        next();
+      } else if (c == quote) {
+        return true;
+      }
+    }
+  }
+
+  /** Skips whitespace and comments, false if a comment doesn't end. */
+  private boolean skipWhitespaceAndComments() throws IOException {
+    while (true) {
+      int c = peek();
+      if (c != EOF && Character.isWhitespace(c)) {
+        next();
+      } else if (c == '/') {
+        next();
+        int d = next();
+        if (d == '/') {
+          while (peek() != EOF && peek() != '\n' && peek() != '\r') {
+            next();
+          }
+        } else if (d == '*') {
+          int previous = 0;
+          while (true) {
+            int e = next();
+            if (e == EOF) {
+              return false;
+            }
+            if (previous == '*' && e == '/') {
+              break;
+            }
+            previous = e;
+          }
+        } else {
+          return false;
+        }
+      } else {
+        return true;
+      }
+    }
+  }
+
+  private int peek() throws IOException {
+    if (peeked == -2) {
+      peeked = reader.read();
+    }
+    return peeked;
+  }
+
+  private int next() throws IOException {
+    int c = peek();
+    peeked = -2;
+    return c;
+  }
+}
@@ -0,0 +1,106 @@
+package magpiebridge.projectservice.java;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A module of a Java project, e.g. a module of a Maven reactor, with its own source path, output
+ * directories and dependencies. Analyses can scope their work to the module of a changed file
+ * instead of using the class path of the whole project.
+ */
+public class JavaModule {
+
+  private final String name;
+  private final Path root;
+  private final Set<Path> sourcePath;
+  private final Set<Path> outputDirectories;
+  private final Set<Path> libraryPath;
+  private final Set<String> moduleDependencies;
+  private final Set<Path> classPath;
+
+  /**
+   * Instantiates a new module.
+   *
+   * @param name the name of the module, e.g. groupId:artifactId
+   * @param root the root directory of the module
+   * @param sourcePath the source roots of the module
+   * @param outputDirectories the class output directories of the module
+   * @param libraryPath the jars of the dependencies which are not modules of the project
+   * @param moduleDependencies the names of the modules the module depends on
+   * @param dependencyOutputDirectories the class output directories of these modules
+   */
+  JavaModule(
+      String name,
+      Path root,
+      Set<Path> sourcePath,
+      Set<Path> outputDirectories,
+      Set<Path> libraryPath,
+      Set<String> moduleDependencies,
+      Set<Path> dependencyOutputDirectories) {
+    this.name = name;
+    this.root = root;
+    this.sourcePath = Collections.unmodifiableSet(sourcePath);
+    this.outputDirectories = Collections.unmodifiableSet(outputDirectories);
+    this.libraryPath = Collections.unmodifiableSet(libraryPath);
+    this.moduleDependencies = Collections.unmodifiableSet(moduleDependencies);
+    Set<Path> classes = new LinkedHashSet<>(outputDirectories);
+    classes.addAll(dependencyOutputDirectories);
+    classes.addAll(libraryPath);
+    this.classPath = Collections.unmodifiableSet(classes);
+  }
+
+  /** @return the name of the module, e.g. groupId:artifactId. */
+  public String getName() {
+    return name;
+  }
+
+  /** @return the root directory of the module. */
+  public Path getRoot() {
+    return root;
+  }
+
+  /** @return the source roots of the module which exist. */
+  public Set<Path> getSourcePath() {
+    return sourcePath;
+  }
+
+  /** @return the class output directories of the module which exist. */
+  public Set<Path> getOutputDirectories() {
+    return outputDirectories;
+  }
+
+  /** @return the jars of the dependencies which are not modules of the project. */
+  public Set<Path> getLibraryPath() {
+    return libraryPath;
+  }
+
+  /** @return the names of the modules of the project the module depends on. */
+  public Set<String> getModuleDependencies() {
+    return moduleDependencies;
+  }
+
+  /**
+   * @return the class path of the module: its output directories, the output directories of the
+   *     modules it depends on and its library path.
+   */
+  public Set<Path> getClassPath() {
+    return classPath;
+  }
+
+  /**
+   * Checks if the file belongs to this module.
+   *
+   * @param file the absolute path of the file
+   * @return true if the file is in the root directory of the module
+   */
+  public boolean contains(Path file) {
+    return file.startsWith(root);
+  }
+
+  @Override
+  public String toString() {
+    return name + " (" + root + ")";
+  }
+}
@@ -0,0 +1,167 @@
+package magpiebridge.projectservice.java;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The configuration of a Java project: its source path, class path, library path, the classes of
+ * its sources and its build system. A model is computed once per root path by the {@link
+ * JavaProjectService} and shared by all its callers. It is immutable, changes result in a new
+ * model.
+ */
+public class JavaProjectModel {
+
+  private final Optional<Path> rootPath;
+  private final Set<Path> sourcePath;
+  private final Set<String> sourceClassFullQualifiedNames;
+  private final Set<Path> classPath;
+  private final Set<Path> libraryPath;
+  /** The build system, null if it is unknown. */
+  private final JavaProjectType projectType;
+  /** The modules of the project, empty if it isn't split into modules. */
+  private final List<JavaModule> modules;
+  /** The index of the library path, created on first use. */
+  private volatile LibraryIndex libraryIndex;
+
+  JavaProjectModel(
+      Optional<Path> rootPath,
+      Set<Path> sourcePath,
+      Set<String> sourceClassFullQualifiedNames,
+      Set<Path> classPath,
+      Set<Path> libraryPath,
+      JavaProjectType projectType,
+      List<JavaModule> modules) {
+    this.rootPath = rootPath;
+    this.sourcePath = Collections.unmodifiableSet(sourcePath);
+    this.sourceClassFullQualifiedNames = Collections.unmodifiableSet(sourceClassFullQualifiedNames);
+    this.classPath = Collections.unmodifiableSet(classPath);
+    this.libraryPath = Collections.unmodifiableSet(libraryPath);
+    this.projectType = projectType;
+    this.modules = Collections.unmodifiableList(modules);
+  }
+
+  /**
+   * Creates a copy of this model with other sources, e.g. after a source file was added.
+   *
+   * @param sourcePath the source path
+   * @param sourceClassFullQualifiedNames the source class full qualified names
+   * @return the new model
+   */
+  JavaProjectModel withSources(Set<Path> sourcePath, Set<String> sourceClassFullQualifiedNames) {
+    return new JavaProjectModel(
+        rootPath,
+        sourcePath,
+        sourceClassFullQualifiedNames,
+        classPath,
+        libraryPath,
+        projectType,
+        modules);
+  }
+
+  /**
+   * Creates a copy of this model with the parts which depend on the build files, e.g. after a
+   * pom.xml changed.
+   *
+   * @param classPath the class path
+   * @param libraryPath the library path
+   * @param projectType the build system, null if it is unknown
+   * @param modules the modules
+   * @return the new model
+   */
+  JavaProjectModel withBuild(
+      Set<Path> classPath,
+      Set<Path> libraryPath,
+      JavaProjectType projectType,
+      List<JavaModule> modules) {
+    return new JavaProjectModel(
+        rootPath,
+        sourcePath,
+        sourceClassFullQualifiedNames,
+        classPath,
+        libraryPath,
+        projectType,
+        modules);
+  }
+
+  /** @return the root path of the project. */
+  public Optional<Path> getRootPath() {
+    return rootPath;
+  }
+
+  /** @return the source path. */
+  public Set<Path> getSourcePath() {
+    return sourcePath;
+  }
+
+  /** @return the full qualified names of the classes in the source path. */
+  public Set<String> getSourceClassFullQualifiedNames() {
+    return sourceClassFullQualifiedNames;
+  }
+
+  /** @return the class path, i.e. the library path and the class directories of the project. */
+  public Set<Path> getClassPath() {
+    return classPath;
+  }
+
+  /** @return the library path. */
+  public Set<Path> getLibraryPath() {
+    return libraryPath;
+  }
+
+  /**
+   * Gets the index of the classes and packages in the library path, which is created on first use
+   * and shared by all users of this model.
+   *
+   * @return the library index
+   */
+  public LibraryIndex getLibraryIndex() {
+    LibraryIndex index = libraryIndex;
+    if (index == null) {
+      synchronized (this) {
+        index = libraryIndex;
+        if (index == null) {
+          index = LibraryIndex.of(libraryPath);
+          libraryIndex = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  /** @return the build system of the project, empty if it is unknown. */
+  public Optional<JavaProjectType> getProjectType() {
+    return Optional.ofNullable(projectType);
+  }
+
+  /**
+   * Gets the modules of the project, e.g. of a Maven reactor. The class path of the project
+   * contains the class paths of all modules, while the class path of a module only contains what
+   * the module itself depends on.
+   *
+   * @return the modules, empty if the project isn't split into modules
+   */
+  public List<JavaModule> getModules() {
+    return modules;
+  }
+
+  /**
+   * Finds the module a file belongs to. If modules are nested, the innermost one is returned.
+   *
+   * @param file the file
+   * @return the module, empty if the file doesn't belong to a module
+   */
+  public Optional<JavaModule> findModule(Path file) {
+    Path absolute = file.toAbsolutePath().normalize();
+    JavaModule result = null;
+    for (JavaModule module : modules) {
+      if (module.contains(absolute)
+          && (result == null || module.getRoot().startsWith(result.getRoot()))) {
+        result = module;
+      }
+    }
+    return Optional.ofNullable(result);
+  }
+}
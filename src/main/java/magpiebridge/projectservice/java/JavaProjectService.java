@@ -1,44 +1,77 @@
 package magpiebridge.projectservice.java;
 
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import magpiebridge.core.IProjectService;
+import magpiebridge.file.WorkspaceCrawler;
+import magpiebridge.util.Debouncer;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.FileChangeType;
+import org.eclipse.lsp4j.FileEvent;
 
 /**
- * The Class JavaProjectService provides the configuration information of a java project.
+ * The Class JavaProjectService provides the configuration information of a java project. The
+ * configuration is inferred once per root path as a {@link JavaProjectModel}, which is shared by
+ * all callers. The source path is inferred first, the class path is computed from the build files
+ * afterwards, so callers which only need the sources don't wait for Maven or Gradle. The service is
+ * thread-safe: concurrent callers wait for the same computation.
  *
  * @author Linghui Luo
  */
 public class JavaProjectService implements IProjectService {
 
+  /** Computes the project models, the threads don't keep the JVM alive. */
+  private static final ExecutorService EXECUTOR =
+      Executors.newCachedThreadPool(
+          r -> {
+            Thread thread = new Thread(r, "magpie-java-project-model");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** How long the build files must not change until the class path is computed again. */
+  private static final long BUILD_FILE_DEBOUNCE_MILLIS = 1_000;
+
   /** The root path. */
   private Optional<Path> rootPath;
 
-  /** The source path. */
+  /** The source path specified by the user. */
   private Set<Path> sourcePath;
 
-  /** The source class full qualified names. */
-  private Set<String> sourceClassFullQualifiedNames;
-
-  /** The class path. */
+  /** The class path specified by the user. */
   private Set<Path> classPath;
 
-  /** The library path. */
-  private Set<Path> libraryPath;
-
   /** The external dependencies. */
   private Set<String> externalDependencies;
 
-  private JavaProjectType projectType;
+  /** The inference of the source path, null if the source path is not inferred. */
+  private InferSourcePath inferSourcePath;
+
+  /** The project model with the sources only, null if it needs to be computed. */
+  private CompletableFuture<JavaProjectModel> sources;
+
+  /** The project model, which is computed after the sources, null if it needs to be computed. */
+  private CompletableFuture<JavaProjectModel> model;
+
+  /** Completes when the build files stopped changing, null if they didn't change. */
+  private CompletableFuture<Void> buildFilesSettled;
+
+  private final Debouncer buildFileDebouncer = new Debouncer(BUILD_FILE_DEBOUNCE_MILLIS);
 
   /** Instantiates a new java project service. */
   public JavaProjectService() {
     this.sourcePath = Collections.emptySet();
-    this.sourceClassFullQualifiedNames = Collections.emptySet();
     this.classPath = Collections.emptySet();
-    this.libraryPath = Collections.emptySet();
     this.externalDependencies = Collections.emptySet();
     this.rootPath = Optional.empty();
   }
@@ -60,32 +93,181 @@ public class JavaProjectService implements IProjectService {
   }
 
   /**
-   * Gets the source path.
+   * Gets the project model. It is computed in the background on the first call, later calls return
+   * the same future until the model is invalidated.
    *
-   * @return the source path
+   * @return the future of the project model
    */
-  public Set<Path> getSourcePath() {
-    if (this.sourcePath.isEmpty()) {
-      if (rootPath.isPresent()) {
-        // if source path is not specified by the user, infer the source path.
-        InferSourcePath infer = new InferSourcePath();
-        this.sourcePath = infer.sourcePath(rootPath.get());
-        this.sourceClassFullQualifiedNames = infer.getClassFullQualifiedNames();
+  public synchronized CompletableFuture<JavaProjectModel> getProjectModelAsync() {
+    if (sources == null) {
+      // the model of failed sources fails as well.
+      setSources(CompletableFuture.supplyAsync(this::computeSources, EXECUTOR));
+      model = null;
+    }
+    if (model == null) {
+      setModel(sources.thenApplyAsync(this::computeBuild, EXECUTOR));
+    }
+    return model;
+  }
+
+  /**
+   * Gets the project model with the sources only, i.e. the class path, the library path, the
+   * project type and the modules are empty. It completes before the build files are evaluated.
+   *
+   * @return the future of the project model with the sources
+   */
+  public synchronized CompletableFuture<JavaProjectModel> getSourceModelAsync() {
+    getProjectModelAsync();
+    return sources;
+  }
+
+  private synchronized void setSources(CompletableFuture<JavaProjectModel> future) {
+    sources = future;
+    future.whenComplete(
+        (m, e) -> {
+          if (e != null) {
+            synchronized (this) {
+              if (sources == future) {
+                sources = null;
+              }
+            }
+          }
+        });
+  }
+
+  private synchronized void setModel(CompletableFuture<JavaProjectModel> future) {
+    model = future;
+    future.whenComplete(
+        (m, e) -> {
+          if (e != null) {
+            // a failed computation is repeated by the next caller.
+            synchronized (this) {
+              if (model == future) {
+                model = null;
+              }
+            }
+          }
+        });
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see magpiebridge.core.IProjectService#loadAsync()
+   */
+  @Override
+  public CompletableFuture<?> loadAsync() {
+    return getProjectModelAsync();
+  }
+
+  /**
+   * Gets the project model, waits until it is computed.
+   *
+   * @return the project model
+   */
+  public JavaProjectModel getProjectModel() {
+    return getProjectModelAsync().join();
+  }
+
+  /**
+   * Forget the project model, it is computed again when it is used the next time. Computations
+   * which are still running are not used afterwards.
+   */
+  public synchronized void invalidate() {
+    // the workspace is crawled again as well.
+    rootPath.ifPresent(root -> WorkspaceCrawler.of(root).invalidate());
+    this.model = null;
+    this.sources = null;
+    this.inferSourcePath = null;
+    buildFilesSettled();
+  }
+
+  /** Computes the sources of the model, the parts which depend on the build files are empty. */
+  private JavaProjectModel computeSources() {
+    Optional<Path> root;
+    Set<Path> userSourcePath;
+    InferSourcePath inferSources = null;
+    synchronized (this) {
+      root = rootPath;
+      userSourcePath = sourcePath;
+      if (userSourcePath.isEmpty() && root.isPresent()) {
+        // watched files are passed to the inference while it is running.
+        inferSources = new InferSourcePath();
+        inferSourcePath = inferSources;
+      }
+    }
+    Set<Path> sources = userSourcePath;
+    Set<String> classNames = Collections.emptySet();
+    if (inferSources != null) {
+      // if source path is not specified by the user, infer the source path.
+      sources = inferSources.sourcePath(root.get());
+      classNames = inferSources.getClassFullQualifiedNames();
+    }
+    return new JavaProjectModel(
+        root,
+        sources,
+        classNames,
+        Collections.emptySet(),
+        Collections.emptySet(),
+        null,
+        Collections.emptyList());
+  }
+
+  /** Computes the parts of the model which depend on the build files, the sources are kept. */
+  private JavaProjectModel computeBuild(JavaProjectModel sources) {
+    Set<Path> userClassPath;
+    Set<String> dependencies;
+    synchronized (this) {
+      userClassPath = classPath;
+      dependencies = externalDependencies;
+    }
+    Optional<Path> root = sources.getRootPath();
+    Set<Path> classes = userClassPath;
+    Set<Path> libraries = Collections.emptySet();
+    JavaProjectType projectType = null;
+    List<JavaModule> modules = Collections.emptyList();
+    if (root.isPresent()) {
+      InferConfig infer = new InferConfig(root.get(), dependencies);
+      if (classes.isEmpty()) {
+        // if class path is not specified by the user, infer the class path.
+        classes = infer.classPath();
       }
+      libraries = infer.libraryClassPath();
+      projectType = infer.getProjectType();
+      // after the class path, since Maven downloads the missing dependencies meanwhile.
+      modules = infer.modules();
     }
-    return sourcePath;
+    return sources.withBuild(classes, libraries, projectType, modules);
+  }
+
+  /**
+   * Gets the source path, waits only until the source path is inferred.
+   *
+   * @return the source path
+   */
+  @Override
+  public Set<Path> getSourcePath() {
+    return getSourceModelAsync().join().getSourcePath();
   }
 
   /**
-   * Gets the source class full qualified names.
+   * Gets the source class full qualified names, waits only until the source path is inferred.
    *
    * @return the source class full qualified names
    */
   public Set<String> getSourceClassFullQualifiedNames() {
-    if (this.sourcePath.isEmpty()) {
-      getSourcePath();
-    }
-    return this.sourceClassFullQualifiedNames;
+    return getSourceModelAsync().join().getSourceClassFullQualifiedNames();
+  }
+
+  /**
+   * Gets the module of the project a file belongs to, so that an analysis of the file only needs
+   * the class path of its module.
+   *
+   * @param file the file
+   * @return the module, empty if the project isn't split into modules
+   */
+  public Optional<JavaModule> getModule(Path file) {
+    return getProjectModel().findModule(file);
   }
 
   /**
@@ -94,15 +276,7 @@ public class JavaProjectService implements IProjectService {
    * @return the class path
    */
   public Set<Path> getClassPath() {
-    if (this.classPath.isEmpty()) {
-      // if class path is not specified by the user, infer the source path.
-      if (rootPath.isPresent()) {
-        InferConfig infer = new InferConfig(rootPath.get(), externalDependencies);
-        this.classPath = infer.classPath();
-        this.libraryPath = infer.libraryClassPath();
-      }
-    }
-    return classPath;
+    return getProjectModel().getClassPath();
   }
 
   /**
@@ -111,14 +285,17 @@ public class JavaProjectService implements IProjectService {
    * @return the library path
    */
   public Set<Path> getLibraryPath() {
-    if (this.libraryPath.isEmpty()) {
-      if (rootPath.isPresent()) {
-        InferConfig infer = new InferConfig(rootPath.get(), externalDependencies);
-        this.classPath = infer.classPath();
-        this.libraryPath = infer.libraryClassPath();
-      }
-    }
-    return this.libraryPath;
+    return getProjectModel().getLibraryPath();
+  }
+
+  /**
+   * Gets the index of the library path, so that an analysis can load only the jars containing the
+   * classes and packages its code references.
+   *
+   * @return the library index
+   */
+  public LibraryIndex getLibraryIndex() {
+    return getProjectModel().getLibraryIndex();
   }
 
   /**
@@ -136,8 +313,12 @@ public class JavaProjectService implements IProjectService {
    * @see magpiebridge.core.IProjectService#setRootPath(java.nio.file.Path)
    */
   @Override
-  public void setRootPath(Path rootPath) {
-    this.rootPath = Optional.ofNullable(rootPath);
+  public synchronized void setRootPath(Path rootPath) {
+    Optional<Path> newRootPath = Optional.ofNullable(rootPath);
+    if (!newRootPath.equals(this.rootPath)) {
+      this.rootPath = newRootPath;
+      invalidate();
+    }
   }
 
   /**
@@ -145,8 +326,9 @@ public class JavaProjectService implements IProjectService {
    *
    * @param sourcePath the new source path
    */
-  public void setSourcePath(Set<Path> sourcePath) {
+  public synchronized void setSourcePath(Set<Path> sourcePath) {
     this.sourcePath = sourcePath;
+    invalidate();
   }
 
   /**
@@ -154,8 +336,9 @@ public class JavaProjectService implements IProjectService {
    *
    * @param classPath the new class path, usually called by user.
    */
-  public void setClassPath(Set<Path> classPath) {
+  public synchronized void setClassPath(Set<Path> classPath) {
     this.classPath = classPath;
+    invalidate();
   }
 
   /**
@@ -163,16 +346,99 @@ public class JavaProjectService implements IProjectService {
    *
    * @param dependences the new external dependencies
    */
-  public void setExternalDependencies(Set<String> dependences) {
+  public synchronized void setExternalDependencies(Set<String> dependences) {
     this.externalDependencies = dependences;
+    invalidate();
   }
 
+  /**
+   * Gets the build files of Maven, Gradle, Bazel and Eclipse projects, whose changes affect the
+   * class path.
+   *
+   * @return the glob patterns of the build files
+   */
   @Override
-  public String getProjectType() {
-    if (projectType == null) {
-      InferConfig infer = new InferConfig(rootPath.get(), externalDependencies);
-      projectType = infer.getProjectType();
+  public Collection<String> getWatchedBuildFiles() {
+    return ClassPathCache.buildFilePatterns();
+  }
+
+  /**
+   * Update the project model with the changes of watched files. Changed source files update the
+   * inferred source path, only the changed files are read again. Changed build files cause the
+   * class path to be computed again once they stopped changing, while the source path is kept.
+   *
+   * @param params the params
+   */
+  @Override
+  public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+    InferSourcePath infer;
+    synchronized (this) {
+      infer = this.inferSourcePath;
     }
-    return this.projectType.toString();
+    boolean sourcesChanged = false;
+    boolean buildChanged = false;
+    for (FileEvent event : params.getChanges()) {
+      try {
+        URI uri = URI.create(event.getUri());
+        if ("file".equalsIgnoreCase(uri.getScheme())) {
+          Path file = Paths.get(uri).toAbsolutePath().normalize();
+          if (ClassPathCache.isBuildFile(file)) {
+            buildChanged = true;
+          } else if (infer != null) {
+            infer.update(file, event.getType() == FileChangeType.Deleted);
+            sourcesChanged = true;
+          }
+        }
+      } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+        // not a file on disk.
+      }
+    }
+    synchronized (this) {
+      if (sourcesChanged && model != null && sources != null && infer == this.inferSourcePath) {
+        setSources(
+            sources.thenApply(
+                m -> m.withSources(infer.getSourceRoots(), infer.getClassFullQualifiedNames())));
+        setModel(
+            model.thenApply(
+                m -> m.withSources(infer.getSourceRoots(), infer.getClassFullQualifiedNames())));
+      }
+      if (buildChanged) {
+        didChangeBuildFiles();
+      }
+    }
+  }
+
+  /**
+   * The model waits until the build files stopped changing, then the class path is computed again.
+   * Callers of the model meanwhile wait for the new class path.
+   */
+  private synchronized void didChangeBuildFiles() {
+    if (model == null) {
+      // the model is computed from the current build files when it is used the next time.
+      return;
+    }
+    if (buildFilesSettled == null) {
+      CompletableFuture<Void> settled = new CompletableFuture<>();
+      buildFilesSettled = settled;
+      setModel(
+          model.thenCombine(settled, (m, v) -> m).thenApplyAsync(this::computeBuild, EXECUTOR));
+    }
+    buildFileDebouncer.schedule(this::buildFilesSettled);
+  }
+
+  private void buildFilesSettled() {
+    CompletableFuture<Void> settled;
+    synchronized (this) {
+      settled = buildFilesSettled;
+      buildFilesSettled = null;
+    }
+    if (settled != null) {
+      settled.complete(null);
+    }
+  }
+
+  @Override
+  public String getProjectType() {
+    return getProjectModel().getProjectType().map(JavaProjectType::toString).orElse(null);
   }
 }
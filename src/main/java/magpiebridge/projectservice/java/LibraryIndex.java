@@ -0,0 +1,474 @@
+package magpiebridge.projectservice.java;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * This class indexes the classes and packages of the jars in a library path, so that an analysis
+ * can load only the jars which the analyzed code references instead of the whole library path. The
+ * entries of a jar are read from its ZIP central directory, which is memory-mapped, the jars are
+ * read in parallel. The content of a jar is cached by its path, size and modification time and
+ * shared by all indexes.
+ */
+public class LibraryIndex {
+
+  private static final Logger LOG = Logger.getLogger("main");
+
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+  private static final int ZIP64_LOCATOR = 0x07064b50;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int UTF8_FLAG = 1 << 11;
+  private static final String VERSIONS = "META-INF/versions/";
+
+  /** The cached content of the jars. */
+  private static final Map<Path, JarContent> jars = new ConcurrentHashMap<>();
+
+  /** Class names in descriptors and signatures, e.g. Ljava/util/List; in (Ljava/util/List;)V. */
+  private static final Pattern DESCRIPTOR_CLASS = Pattern.compile("L([\\w$]+(?:/[\\w$]+)+)[;<]");
+
+  /** The classes of a jar at the time it was read. */
+  private static class JarContent {
+    final long size;
+    final long lastModified;
+    /** The full qualified names of the classes, nested classes are separated by $. */
+    final Set<String> classes;
+    /** The packages the classes reference, read from their constant pools on demand. */
+    volatile Set<String> referencedPackages;
+
+    JarContent(long size, long lastModified, Set<String> classes) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.classes = Collections.unmodifiableSet(classes);
+    }
+  }
+
+  private final Set<Path> libraryPath;
+  /** Package name mapped to the jars containing classes of the package. */
+  private final Map<String, Set<Path>> packages = new HashMap<>();
+  /** Class name mapped to the first jar containing the class. */
+  private final Map<String, Path> classes = new HashMap<>();
+
+  private LibraryIndex(Set<Path> libraryPath, List<Set<String>> contents) {
+    this.libraryPath = Collections.unmodifiableSet(libraryPath);
+    int i = 0;
+    for (Path jar : libraryPath) {
+      for (String className : contents.get(i++)) {
+        // the first jar in the library path wins, like on the class path.
+        classes.putIfAbsent(className, jar);
+        packages.computeIfAbsent(packageName(className), p -> new LinkedHashSet<>()).add(jar);
+      }
+    }
+  }
+
+  /**
+   * Indexes the jars of a library path. Entries which are no regular files, e.g. class directories,
+   * are ignored.
+   *
+   * @param libraryPath the library path
+   * @return the index
+   */
+  public static LibraryIndex of(Collection<Path> libraryPath) {
+    Set<Path> files = new LinkedHashSet<>();
+    for (Path path : libraryPath) {
+      if (Files.isRegularFile(path)) {
+        files.add(path.toAbsolutePath().normalize());
+      }
+    }
+    // the jars are read in parallel, the results are collected in the order of the library path.
+    List<Set<String>> contents =
+        new ArrayList<>(files)
+            .parallelStream()
+            .map(LibraryIndex::classesOf)
+            .collect(Collectors.toList());
+    return new LibraryIndex(files, contents);
+  }
+
+  /**
+   * Gets the classes of a jar, which are read again if its size or modification time changed.
+   *
+   * @param jar the jar
+   * @return the full qualified names of the classes, empty if the jar can't be read
+   */
+  static Set<String> classesOf(Path jar) {
+    JarContent content = contentOf(jar);
+    return content == null ? Collections.emptySet() : content.classes;
+  }
+
+  /**
+   * Gets the packages which the classes of a jar reference, e.g. the packages of their supertypes,
+   * of the classes they call and of the types in their signatures. The constant pools of the
+   * classes are read the first time and again if the size or modification time of the jar changed.
+   *
+   * @param jar the jar
+   * @return the referenced packages, empty if the jar can't be read
+   */
+  static Set<String> packagesReferencedBy(Path jar) {
+    JarContent content = contentOf(jar);
+    if (content == null) {
+      return Collections.emptySet();
+    }
+    Set<String> referenced = content.referencedPackages;
+    if (referenced == null) {
+      referenced = Collections.unmodifiableSet(readReferencedPackages(jar));
+      content.referencedPackages = referenced;
+    }
+    return referenced;
+  }
+
+  private static JarContent contentOf(Path jar) {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(jar, BasicFileAttributes.class);
+    } catch (IOException e) {
+      jars.remove(jar);
+      return null;
+    }
+    long size = attributes.size();
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    JarContent content = jars.get(jar);
+    if (content == null || content.size != size || content.lastModified != lastModified) {
+      content = new JarContent(size, lastModified, readClasses(jar));
+      jars.put(jar, content);
+    }
+    return content;
+  }
+
+  private static Set<String> readReferencedPackages(Path jar) {
+    Set<String> result = new HashSet<>();
+    try (ZipFile zip = new ZipFile(jar.toFile())) {
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (!entry.getName().endsWith(".class") || entry.getName().endsWith("module-info.class")) {
+          continue;
+        }
+        try (DataInputStream in = new DataInputStream(zip.getInputStream(entry))) {
+          addReferencedPackages(in, result);
+        } catch (IOException | RuntimeException e) {
+          // a broken class file doesn't reference anything WALA could load.
+          LOG.fine("Can't read " + entry.getName() + " in " + jar + ": " + e.getMessage());
+        }
+      }
+    } catch (IOException e) {
+      LOG.warning("Can't read the classes of " + jar + ": " + e.getMessage());
+    }
+    return result;
+  }
+
+  /** Adds the packages of the classes in the constant pool of a class file. */
+  private static void addReferencedPackages(DataInputStream in, Set<String> result)
+      throws IOException {
+    if (in.readInt() != 0xcafebabe) {
+      throw new IOException("no class file");
+    }
+    in.readUnsignedShort();
+    in.readUnsignedShort();
+    int count = in.readUnsignedShort();
+    String[] utf8 = new String[count];
+    List<Integer> classNames = new ArrayList<>();
+    for (int i = 1; i < count; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1: // Utf8
+          utf8[i] = in.readUTF();
+          break;
+        case 7: // Class
+          classNames.add(in.readUnsignedShort());
+          break;
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          in.readUnsignedShort();
+          break;
+        case 15: // MethodHandle
+          in.readUnsignedByte();
+          in.readUnsignedShort();
+          break;
+        case 3: // Integer
+        case 4: // Float
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+          in.readInt();
+          break;
+        case 5: // Long
+        case 6: // Double
+          in.readLong();
+          // these take two entries.
+          i++;
+          break;
+        default:
+          throw new IOException("unknown constant pool tag " + tag);
+      }
+    }
+    for (int index : classNames) {
+      String name = utf8[index];
+      if (name != null && !name.startsWith("[")) {
+        addPackage(name, result);
+      }
+    }
+    for (String text : utf8) {
+      if (text != null && !text.isEmpty() && "([L<".indexOf(text.charAt(0)) >= 0) {
+        Matcher matcher = DESCRIPTOR_CLASS.matcher(text);
+        while (matcher.find()) {
+          addPackage(matcher.group(1), result);
+        }
+      }
+    }
+  }
+
+  private static void addPackage(String internalName, Set<String> result) {
+    int slash = internalName.lastIndexOf('/');
+    if (slash > 0) {
+      result.add(internalName.substring(0, slash).replace('/', '.'));
+    }
+  }
+
+  private static Set<String> readClasses(Path jar) {
+    Set<String> result = new LinkedHashSet<>();
+    try {
+      for (String entry : readCentralDirectory(jar)) {
+        addClass(entry, result);
+      }
+    } catch (IOException | RuntimeException e) {
+      // e.g. a jar with a prefix like a self-extracting archive, let java.util.zip handle it.
+      LOG.fine("Reading the central directory of " + jar + " failed: " + e.getMessage());
+      result.clear();
+      try (ZipFile zip = new ZipFile(jar.toFile())) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          addClass(entries.nextElement().getName(), result);
+        }
+      } catch (IOException ex) {
+        LOG.warning("Can't index " + jar + ": " + ex.getMessage());
+      }
+    }
+    return result;
+  }
+
+  private static void addClass(String entry, Set<String> result) {
+    if (entry.startsWith(VERSIONS)) {
+      // a class of a multi-release jar, META-INF/versions/9/p/C.class
+      int slash = entry.indexOf('/', VERSIONS.length());
+      if (slash < 0) {
+        return;
+      }
+      entry = entry.substring(slash + 1);
+    } else if (entry.startsWith("META-INF/")) {
+      return;
+    }
+    if (!entry.endsWith(".class")
+        || entry.endsWith("module-info.class")
+        || entry.endsWith("package-info.class")) {
+      return;
+    }
+    result.add(entry.substring(0, entry.length() - ".class".length()).replace('/', '.'));
+  }
+
+  /**
+   * Reads the names of the entries from the central directory at the end of a ZIP file.
+   *
+   * @param zip the ZIP file
+   * @return the names of the entries
+   * @throws IOException if the file can't be read or is no ZIP file
+   */
+  static List<String> readCentralDirectory(Path zip) throws IOException {
+    try (FileChannel channel = FileChannel.open(zip, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long tailStart =
+          Math.max(0, size - END_OF_CENTRAL_DIRECTORY_SIZE - MAX_COMMENT_SIZE - ZIP64_LOCATOR_SIZE);
+      ByteBuffer tail = map(channel, tailStart, size - tailStart);
+      int end = findEndOfCentralDirectory(tail);
+      if (end < 0) {
+        throw new IOException("no end of central directory");
+      }
+      long entries = Short.toUnsignedLong(tail.getShort(end + 10));
+      long directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+      long directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+      if (entries == 0xffff || directorySize == 0xffffffffL || directoryOffset == 0xffffffffL) {
+        int locator = end - ZIP64_LOCATOR_SIZE;
+        if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR) {
+          throw new IOException("no zip64 end of central directory locator");
+        }
+        ByteBuffer zip64 = map(channel, tail.getLong(locator + 8), 56);
+        if (zip64.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+          throw new IOException("no zip64 end of central directory");
+        }
+        entries = zip64.getLong(32);
+        directorySize = zip64.getLong(40);
+        directoryOffset = zip64.getLong(48);
+      }
+      if (directoryOffset + directorySize > size || directorySize > Integer.MAX_VALUE) {
+        throw new IOException("invalid central directory");
+      }
+      ByteBuffer directory = map(channel, directoryOffset, directorySize);
+      List<String> names = new ArrayList<>((int) Math.min(entries, 1 << 16));
+      int position = 0;
+      for (long i = 0; i < entries; i++) {
+        if (directory.getInt(position) != CENTRAL_DIRECTORY_HEADER) {
+          throw new IOException("invalid central directory header");
+        }
+        int flags = Short.toUnsignedInt(directory.getShort(position + 8));
+        int nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+        int extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+        int commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+        byte[] name = new byte[nameLength];
+        directory.position(position + CENTRAL_DIRECTORY_HEADER_SIZE);
+        directory.get(name);
+        Charset charset =
+            (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+        names.add(new String(name, charset));
+        position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+      }
+      return names;
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+  private static int findEndOfCentralDirectory(ByteBuffer tail) {
+    for (int i = tail.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String packageName(String className) {
+    int dot = className.lastIndexOf('.');
+    return dot < 0 ? "" : className.substring(0, dot);
+  }
+
+  /** @return the indexed jars in the order of the library path. */
+  public Set<Path> getJars() {
+    return libraryPath;
+  }
+
+  /** @return the names of all packages in the indexed jars. */
+  public Set<String> getPackages() {
+    return Collections.unmodifiableSet(packages.keySet());
+  }
+
+  /**
+   * Gets the jars which contain classes of a package, a package can be split across jars.
+   *
+   * @param packageName the package name
+   * @return the jars in the order of the library path, empty if no jar contains the package
+   */
+  public Set<Path> getJarsOfPackage(String packageName) {
+    return Collections.unmodifiableSet(packages.getOrDefault(packageName, Collections.emptySet()));
+  }
+
+  /**
+   * Gets the jar which contains a class. If several jars contain it, the first one in the library
+   * path is returned.
+   *
+   * @param className the full qualified name of the class, nested classes are separated by $
+   * @return the jar, empty if no jar contains the class
+   */
+  public Optional<Path> getJarOfClass(String className) {
+    return Optional.ofNullable(classes.get(className));
+  }
+
+  /**
+   * Gets the jars which code referencing the given names needs, e.g. the imports of the open source
+   * files. A name can be a class, a nested class (p.C.Inner), a member of a class (a static import)
+   * or a package (an on-demand import). For a class only the jar containing it is returned, for a
+   * package all jars containing classes of the package.
+   *
+   * @param names the referenced names
+   * @return the jars in the order of the library path
+   */
+  public Set<Path> getJarsReferencedBy(Collection<String> names) {
+    Set<Path> referenced = new LinkedHashSet<>();
+    for (String name : names) {
+      String current = name.endsWith(".*") ? name.substring(0, name.length() - 2) : name;
+      while (!current.isEmpty()) {
+        Path jar = classes.get(current);
+        if (jar != null) {
+          referenced.add(jar);
+          break;
+        }
+        Set<Path> jarsOfPackage = packages.get(current);
+        if (jarsOfPackage != null) {
+          referenced.addAll(jarsOfPackage);
+          break;
+        }
+        current = packageName(current);
+      }
+    }
+    Set<Path> result = new LinkedHashSet<>(libraryPath);
+    result.retainAll(referenced);
+    return result;
+  }
+
+  /**
+   * Gets the jars which code referencing the given names needs like {@link
+   * #getJarsReferencedBy(Collection)}, together with the jars which these jars need in turn, e.g.
+   * for the supertypes of the referenced classes. A jar needs all jars containing classes of the
+   * packages it references, so the result can contain more jars than needed but none is missing.
+   *
+   * @param names the referenced names
+   * @return the jars in the order of the library path
+   */
+  public Set<Path> getJarsNeededBy(Collection<String> names) {
+    Set<Path> needed = new HashSet<>(getJarsReferencedBy(names));
+    Deque<Path> pending = new ArrayDeque<>(needed);
+    while (!pending.isEmpty()) {
+      for (String packageName : packagesReferencedBy(pending.pop())) {
+        for (Path dependency : packages.getOrDefault(packageName, Collections.emptySet())) {
+          if (needed.add(dependency)) {
+            pending.push(dependency);
+          }
+        }
+      }
+    }
+    Set<Path> result = new LinkedHashSet<>(libraryPath);
+    result.retainAll(needed);
+    return result;
+  }
+}
@@ -0,0 +1,941 @@
+package magpiebridge.projectservice.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilderFactory;
+import magpiebridge.core.MagpieServer;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * This class resolves the dependencies of a Maven project in process, without running Maven. The
+ * pom.xml files of the workspace (including their modules, parents, profiles and imported
+ * dependency management) and the POMs of the dependencies in the local repository are read, and the
+ * transitive dependencies are mediated like Maven does: the nearest dependency wins, optional and
+ * test/provided dependencies of dependencies are left out, and the dependency management of the
+ * project overrides the versions of transitive dependencies. If the project can't be resolved
+ * offline, e.g. because a POM or jar hasn't been downloaded yet or a version range is used, no
+ * result is returned and Maven should be run instead.
+ */
+public class MavenPomResolver {
+
+  private static final Logger LOG = Logger.getLogger("main");
+
+  private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{([^}]+)\\}");
+
+  private static final Pattern VERSION_TOKEN = Pattern.compile("[0-9]+|[^0-9.\\-_+]+");
+
+  /** Packaging types whose artifacts are jar files, mapped to their default classifier. */
+  private static final Map<String, String> JAR_TYPES = new HashMap<>();
+
+  static {
+    JAR_TYPES.put("jar", "");
+    JAR_TYPES.put("bundle", "");
+    JAR_TYPES.put("ejb", "");
+    JAR_TYPES.put("maven-plugin", "");
+    JAR_TYPES.put("test-jar", "tests");
+    JAR_TYPES.put("ejb-client", "client");
+    JAR_TYPES.put("java-source", "sources");
+    JAR_TYPES.put("javadoc", "javadoc");
+  }
+
+  /** Thrown if a project can't be resolved from the local repository. */
+  private static class UnresolvableException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    UnresolvableException(String message) {
+      super(message);
+    }
+  }
+
+  /** A dependency as declared in a POM. */
+  private static class Dependency {
+    String groupId;
+    String artifactId;
+    String version;
+    String type;
+    String classifier;
+    String scope;
+    boolean optional;
+    /** Excluded dependencies as groupId:artifactId, which may be "*". */
+    Set<String> exclusions = new LinkedHashSet<>();
+
+    Dependency copy() {
+      Dependency d = new Dependency();
+      d.groupId = groupId;
+      d.artifactId = artifactId;
+      d.version = version;
+      d.type = type;
+      d.classifier = classifier;
+      d.scope = scope;
+      d.optional = optional;
+      d.exclusions = new LinkedHashSet<>(exclusions);
+      return d;
+    }
+
+    String type() {
+      return type == null || type.isEmpty() ? "jar" : type;
+    }
+
+    String classifier() {
+      if (classifier != null && !classifier.isEmpty()) {
+        return classifier;
+      }
+      String defaultClassifier = JAR_TYPES.get(type());
+      return defaultClassifier == null ? "" : defaultClassifier;
+    }
+
+    String scope() {
+      return scope == null || scope.isEmpty() ? "compile" : scope;
+    }
+
+    /** The key under which dependencies are merged, managed and mediated. */
+    String key() {
+      return groupId + ":" + artifactId + ":" + type() + ":" + classifier();
+    }
+
+    boolean isExcludedBy(Set<String> excluded) {
+      return excluded.contains(groupId + ":" + artifactId)
+          || excluded.contains(groupId + ":*")
+          || excluded.contains("*:" + artifactId)
+          || excluded.contains("*:*");
+    }
+  }
+
+  /** The model of a POM with the data inherited from its parents, but not interpolated yet. */
+  private static class Model {
+    Path basedir;
+    String groupId;
+    String artifactId;
+    String version;
+    String packaging;
+    String parentGroupId;
+    String parentArtifactId;
+    String parentVersion;
+    Map<String, String> properties = new LinkedHashMap<>();
+    Map<String, Dependency> dependencies = new LinkedHashMap<>();
+    Map<String, Dependency> management = new LinkedHashMap<>();
+    List<String> modules = new ArrayList<>();
+    /** The directories configured in the build section of the POM, null for the defaults. */
+    String sourceDirectory;
+
+    String testSourceDirectory;
+    String outputDirectory;
+    String testOutputDirectory;
+    /** The interpolated dependencies with managed versions, computed on demand. */
+    List<Dependency> resolvedDependencies;
+    /** The interpolated dependency management with imports, computed on demand. */
+    Map<String, Dependency> resolvedManagement;
+  }
+
+  /** Location of the local repository, usually ~/.m2/repository */
+  private final Path repository;
+  /** POMs in the local repository by groupId:artifactId:version. */
+  private final Map<String, Model> repositoryModels = new HashMap<>();
+  /** Projects of the reactor by groupId:artifactId. */
+  private final Map<String, Model> reactor = new LinkedHashMap<>();
+  /** POMs whose models are being built, to detect cycles. */
+  private final Set<String> building = new HashSet<>();
+
+  /**
+   * Instantiates a new resolver.
+   *
+   * @param repository the local repository
+   */
+  public MavenPomResolver(Path repository) {
+    this.repository = repository;
+  }
+
+  /**
+   * Resolves the dependencies of the project and all its modules.
+   *
+   * @param pomXml the pom.xml of the project
+   * @return the dependencies like listed by <code>mvn dependency:list</code>, or empty if the
+   *     project can't be resolved offline
+   */
+  public Optional<Set<Artifact>> resolve(Path pomXml) {
+    try {
+      loadReactor(pomXml.toAbsolutePath().normalize());
+      Set<Artifact> result = new LinkedHashSet<>();
+      for (Model project : new ArrayList<>(reactor.values())) {
+        result.addAll(resolveDependencies(project));
+      }
+      return Optional.of(result);
+    } catch (UnresolvableException e) {
+      LOG.info("Couldn't resolve " + pomXml + " from the local repository: " + e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Resolves the dependencies of each project of the reactor separately. Dependencies on other
+   * projects of the reactor are resolved to their output directories instead of their jars.
+   *
+   * @param pomXml the pom.xml of the project
+   * @return the modules with code, i.e. without the projects with packaging pom, or empty if the
+   *     project can't be resolved offline
+   */
+  public Optional<List<JavaModule>> resolveModules(Path pomXml) {
+    try {
+      loadReactor(pomXml.toAbsolutePath().normalize());
+      List<JavaModule> modules = new ArrayList<>();
+      for (Model project : new ArrayList<>(reactor.values())) {
+        if ("pom".equals(project.packaging)) {
+          continue;
+        }
+        Set<Path> libraries = new LinkedHashSet<>();
+        Set<String> moduleDependencies = new LinkedHashSet<>();
+        Set<Path> dependencyOutputs = new LinkedHashSet<>();
+        for (Artifact artifact : resolveDependencies(project)) {
+          String key = artifact.groupId + ":" + artifact.artifactId;
+          Model dependency = reactor.get(key);
+          if (dependency != null && artifact.version.equals(dependency.version)) {
+            moduleDependencies.add(key);
+            dependencyOutputs.addAll(outputDirectories(dependency));
+          } else if (jarExists(artifact)) {
+            libraries.add(jar(artifact));
+          }
+        }
+        modules.add(
+            new JavaModule(
+                project.groupId + ":" + project.artifactId,
+                project.basedir,
+                existing(
+                    project,
+                    orElse(project.sourceDirectory, "src/main/java"),
+                    orElse(project.testSourceDirectory, "src/test/java")),
+                outputDirectories(project),
+                libraries,
+                moduleDependencies,
+                dependencyOutputs));
+      }
+      return Optional.of(modules);
+    } catch (UnresolvableException e) {
+      LOG.info("Couldn't resolve " + pomXml + " from the local repository: " + e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  private static Set<Path> outputDirectories(Model project) {
+    return existing(
+        project,
+        orElse(project.outputDirectory, "target/classes"),
+        orElse(project.testOutputDirectory, "target/test-classes"));
+  }
+
+  /** The directories which exist, relative paths are resolved against the base directory. */
+  private static Set<Path> existing(Model project, String... directories) {
+    Set<Path> result = new LinkedHashSet<>();
+    for (String directory : directories) {
+      Path path = resolve(project.basedir, interpolate(project, directory));
+      if (Files.isDirectory(path)) {
+        result.add(path);
+      }
+    }
+    return result;
+  }
+
+  private void loadReactor(Path pomXml) throws UnresolvableException {
+    if (!Files.isRegularFile(pomXml)) {
+      throw new UnresolvableException("missing module " + pomXml);
+    }
+    Model model = buildModel(pomXml, true);
+    String key = model.groupId + ":" + model.artifactId;
+    if (reactor.containsKey(key)) {
+      return;
+    }
+    reactor.put(key, model);
+    for (String module : model.modules) {
+      Path path = model.basedir.resolve(module).normalize();
+      loadReactor(Files.isDirectory(path) ? path.resolve("pom.xml") : path);
+    }
+  }
+
+  /** Resolves the transitive dependencies of a project, nearest first. */
+  private Set<Artifact> resolveDependencies(Model project) throws UnresolvableException {
+    Map<String, Dependency> management = resolvedManagement(project);
+    Set<Artifact> result = new LinkedHashSet<>();
+    Set<String> mediated = new HashSet<>();
+    Deque<Dependency> queue = new ArrayDeque<>(resolvedDependencies(project));
+    while (!queue.isEmpty()) {
+      Dependency dependency = queue.poll();
+      if (!mediated.add(dependency.key())) {
+        // a nearer dependency with the same key wins.
+        continue;
+      }
+      if (dependency.version != null && isRange(dependency.version)) {
+        dependency = dependency.copy();
+        dependency.version = resolveRange(dependency);
+      }
+      checkVersion(dependency);
+      Model reactorProject = reactor.get(dependency.groupId + ":" + dependency.artifactId);
+      boolean inReactor =
+          reactorProject != null && dependency.version.equals(reactorProject.version);
+      if (JAR_TYPES.containsKey(dependency.type())) {
+        Artifact artifact =
+            new Artifact(
+                dependency.groupId,
+                dependency.artifactId,
+                dependency.version,
+                dependency.classifier());
+        if (!inReactor && !"system".equals(dependency.scope()) && !jarExists(artifact)) {
+          throw new UnresolvableException(artifact + " is not downloaded");
+        }
+        result.add(artifact);
+      }
+      if ("system".equals(dependency.scope())) {
+        continue;
+      }
+      Model model =
+          inReactor
+              ? reactorProject
+              : repositoryModel(dependency.groupId, dependency.artifactId, dependency.version);
+      for (Dependency d : resolvedDependencies(model)) {
+        String scope = d.scope();
+        if (d.optional
+            || "test".equals(scope)
+            || "provided".equals(scope)
+            || d.isExcludedBy(dependency.exclusions)) {
+          continue;
+        }
+        Dependency transitive = d.copy();
+        Dependency managed = management.get(transitive.key());
+        if (managed != null) {
+          if (managed.version != null) {
+            transitive.version = managed.version;
+          }
+          transitive.exclusions.addAll(managed.exclusions);
+        }
+        transitive.exclusions.addAll(dependency.exclusions);
+        queue.add(transitive);
+      }
+    }
+    return result;
+  }
+
+  private boolean jarExists(Artifact artifact) {
+    return Files.exists(jar(artifact));
+  }
+
+  private Path jar(Artifact artifact) {
+    return repository
+        .resolve(artifact.groupId.replace('.', File.separatorChar))
+        .resolve(artifact.artifactId)
+        .resolve(artifact.version)
+        .resolve(InferConfig.fileNameJar(artifact, false));
+  }
+
+  /**
+   * Resolves a version range to the highest version within the range whose POM is in the local
+   * repository, like Maven does in offline mode.
+   */
+  private String resolveRange(Dependency dependency) throws UnresolvableException {
+    Path directory =
+        repository
+            .resolve(dependency.groupId.replace('.', File.separatorChar))
+            .resolve(dependency.artifactId);
+    String best = null;
+    if (Files.isDirectory(directory)) {
+      try (DirectoryStream<Path> versions = Files.newDirectoryStream(directory)) {
+        for (Path path : versions) {
+          String version = path.getFileName().toString();
+          if (Files.isRegularFile(path.resolve(dependency.artifactId + "-" + version + ".pom"))
+              && inRange(dependency.version, version)
+              && (best == null || compareVersions(version, best) > 0)) {
+            best = version;
+          }
+        }
+      } catch (IOException e) {
+        MagpieServer.ExceptionLogger.log(e);
+      }
+    }
+    if (best == null) {
+      throw new UnresolvableException(
+          "no version in " + dependency.version + " of " + dependency.key());
+    }
+    return best;
+  }
+
+  private static void checkVersion(Dependency dependency) throws UnresolvableException {
+    String version = dependency.version;
+    if (version == null || version.isEmpty()) {
+      throw new UnresolvableException("no version of " + dependency.key());
+    }
+    if (version.startsWith("[") || version.startsWith("(") || version.contains("${")) {
+      throw new UnresolvableException("version " + version + " of " + dependency.key());
+    }
+  }
+
+  private Model repositoryModel(String groupId, String artifactId, String version)
+      throws UnresolvableException {
+    String key = groupId + ":" + artifactId + ":" + version;
+    Model model = repositoryModels.get(key);
+    if (model == null) {
+      Path pom =
+          repository
+              .resolve(groupId.replace('.', File.separatorChar))
+              .resolve(artifactId)
+              .resolve(version)
+              .resolve(artifactId + "-" + version + ".pom");
+      if (!Files.isRegularFile(pom)) {
+        throw new UnresolvableException("the POM of " + key + " is not downloaded");
+      }
+      model = buildModel(pom, false);
+      repositoryModels.put(key, model);
+    }
+    return model;
+  }
+
+  /**
+   * Builds the model of a POM: the model of the parent is inherited, and the active profiles are
+   * applied.
+   */
+  private Model buildModel(Path pom, boolean inWorkspace) throws UnresolvableException {
+    String id = pom.toString();
+    if (!building.add(id)) {
+      throw new UnresolvableException("cyclic parents of " + pom);
+    }
+    try {
+      Element project = parse(pom);
+      Model model = new Model();
+      model.basedir = pom.getParent();
+      Element parent = child(project, "parent");
+      if (parent != null) {
+        model.parentGroupId = text(parent, "groupId");
+        model.parentArtifactId = text(parent, "artifactId");
+        model.parentVersion = text(parent, "version");
+        Model parentModel = parentModel(parent, pom, inWorkspace);
+        model.properties.putAll(parentModel.properties);
+        for (Dependency d : parentModel.dependencies.values()) {
+          model.dependencies.put(d.key(), d.copy());
+        }
+        for (Dependency d : parentModel.management.values()) {
+          model.management.put(d.key(), d.copy());
+        }
+        model.groupId = parentModel.groupId;
+        model.version = parentModel.version;
+      }
+      model.groupId = orElse(text(project, "groupId"), model.groupId);
+      model.artifactId = text(project, "artifactId");
+      model.version = orElse(text(project, "version"), model.version);
+      model.packaging = orElse(text(project, "packaging"), "jar");
+      apply(model, project);
+      Element build = child(project, "build");
+      model.sourceDirectory = text(build, "sourceDirectory");
+      model.testSourceDirectory = text(build, "testSourceDirectory");
+      model.outputDirectory = text(build, "outputDirectory");
+      model.testOutputDirectory = text(build, "testOutputDirectory");
+      List<Element> profiles = children(child(project, "profiles"), "profile");
+      List<Element> active = new ArrayList<>();
+      for (Element profile : profiles) {
+        if (isActive(child(profile, "activation"), model.basedir)) {
+          active.add(profile);
+        }
+      }
+      if (active.isEmpty()) {
+        for (Element profile : profiles) {
+          Element activation = child(profile, "activation");
+          if ("true".equals(text(activation, "activeByDefault"))) {
+            active.add(profile);
+          }
+        }
+      }
+      for (Element profile : active) {
+        apply(model, profile);
+      }
+      model.groupId = interpolate(model, model.groupId);
+      model.version = interpolate(model, model.version);
+      return model;
+    } finally {
+      building.remove(id);
+    }
+  }
+
+  private Model parentModel(Element parent, Path pom, boolean inWorkspace)
+      throws UnresolvableException {
+    String groupId = text(parent, "groupId");
+    String artifactId = text(parent, "artifactId");
+    String version = text(parent, "version");
+    if (inWorkspace) {
+      Path relative = pom.getParent().resolve(orElse(text(parent, "relativePath"), "../pom.xml"));
+      if (Files.isDirectory(relative)) {
+        relative = relative.resolve("pom.xml");
+      }
+      relative = relative.normalize();
+      if (Files.isRegularFile(relative)) {
+        Model candidate = buildModel(relative, true);
+        if (candidate.groupId.equals(groupId)
+            && candidate.artifactId.equals(artifactId)
+            && candidate.version.equals(version)) {
+          return candidate;
+        }
+      }
+    }
+    if (groupId == null || artifactId == null || version == null || version.contains("${")) {
+      throw new UnresolvableException("parent of " + pom);
+    }
+    return repositoryModel(groupId, artifactId, version);
+  }
+
+  /** Applies the properties, dependencies and modules of a project or profile to the model. */
+  private static void apply(Model model, Element element) {
+    Element properties = child(element, "properties");
+    if (properties != null) {
+      for (Element property : children(properties, null)) {
+        model.properties.put(property.getTagName(), property.getTextContent().trim());
+      }
+    }
+    for (Element dependency : children(child(element, "dependencies"), "dependency")) {
+      Dependency d = parseDependency(dependency);
+      model.dependencies.put(d.key(), d);
+    }
+    Element management = child(element, "dependencyManagement");
+    for (Element dependency : children(child(management, "dependencies"), "dependency")) {
+      Dependency d = parseDependency(dependency);
+      model.management.put(d.key(), d);
+    }
+    for (Element module : children(child(element, "modules"), "module")) {
+      model.modules.add(module.getTextContent().trim());
+    }
+  }
+
+  private static Dependency parseDependency(Element element) {
+    Dependency d = new Dependency();
+    d.groupId = text(element, "groupId");
+    d.artifactId = text(element, "artifactId");
+    d.version = text(element, "version");
+    d.type = text(element, "type");
+    d.classifier = text(element, "classifier");
+    d.scope = text(element, "scope");
+    d.optional = "true".equals(text(element, "optional"));
+    for (Element exclusion : children(child(element, "exclusions"), "exclusion")) {
+      d.exclusions.add(text(exclusion, "groupId") + ":" + text(exclusion, "artifactId"));
+    }
+    return d;
+  }
+
+  /** The interpolated dependency management of the model, with imported BOMs. */
+  private Map<String, Dependency> resolvedManagement(Model model) throws UnresolvableException {
+    if (model.resolvedManagement == null) {
+      Map<String, Dependency> management = new LinkedHashMap<>();
+      List<Dependency> imports = new ArrayList<>();
+      for (Dependency d : model.management.values()) {
+        Dependency managed = interpolate(model, d);
+        if ("import".equals(managed.scope) && "pom".equals(managed.type())) {
+          imports.add(managed);
+        } else {
+          management.put(managed.key(), managed);
+        }
+      }
+      for (Dependency bom : imports) {
+        checkVersion(bom);
+        Model imported = repositoryModel(bom.groupId, bom.artifactId, bom.version);
+        for (Dependency d : resolvedManagement(imported).values()) {
+          management.putIfAbsent(d.key(), d);
+        }
+      }
+      model.resolvedManagement = management;
+    }
+    return model.resolvedManagement;
+  }
+
+  /**
+   * The interpolated dependencies of the model with the managed versions, scopes and exclusions.
+   */
+  private List<Dependency> resolvedDependencies(Model model) throws UnresolvableException {
+    if (model.resolvedDependencies == null) {
+      Map<String, Dependency> management = resolvedManagement(model);
+      List<Dependency> dependencies = new ArrayList<>();
+      for (Dependency d : model.dependencies.values()) {
+        Dependency dependency = interpolate(model, d);
+        Dependency managed = management.get(dependency.key());
+        if (managed != null) {
+          if (dependency.version == null) {
+            dependency.version = managed.version;
+          }
+          if (dependency.scope == null) {
+            dependency.scope = managed.scope;
+          }
+          if (dependency.exclusions.isEmpty()) {
+            dependency.exclusions.addAll(managed.exclusions);
+          }
+        }
+        dependencies.add(dependency);
+      }
+      model.resolvedDependencies = dependencies;
+    }
+    return model.resolvedDependencies;
+  }
+
+  private static Dependency interpolate(Model model, Dependency dependency) {
+    Dependency d = dependency.copy();
+    d.groupId = interpolate(model, d.groupId);
+    d.artifactId = interpolate(model, d.artifactId);
+    d.version = interpolate(model, d.version);
+    d.type = interpolate(model, d.type);
+    d.classifier = interpolate(model, d.classifier);
+    d.scope = interpolate(model, d.scope);
+    return d;
+  }
+
+  /** Replaces the ${...} expressions in the value. Unknown expressions are kept. */
+  private static String interpolate(Model model, String value) {
+    if (value == null) {
+      return null;
+    }
+    String result = value;
+    // properties may refer to other properties.
+    for (int depth = 0; depth < 10 && result.contains("${"); depth++) {
+      Matcher matcher = PLACEHOLDER.matcher(result);
+      StringBuffer sb = new StringBuffer();
+      boolean replaced = false;
+      while (matcher.find()) {
+        String replacement = lookup(model, matcher.group(1));
+        if (replacement != null) {
+          replaced = true;
+        }
+        matcher.appendReplacement(
+            sb, Matcher.quoteReplacement(replacement != null ? replacement : matcher.group()));
+      }
+      matcher.appendTail(sb);
+      result = sb.toString();
+      if (!replaced) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  private static String lookup(Model model, String expression) {
+    String name = expression;
+    if (name.startsWith("project.")) {
+      name = name.substring("project.".length());
+    } else if (name.startsWith("pom.")) {
+      name = name.substring("pom.".length());
+    } else if (model.properties.containsKey(name)) {
+      return model.properties.get(name);
+    }
+    switch (name) {
+      case "groupId":
+        return model.groupId;
+      case "artifactId":
+        return model.artifactId;
+      case "version":
+        return model.version;
+      case "packaging":
+        return model.packaging;
+      case "basedir":
+        return model.basedir.toString();
+      case "parent.groupId":
+        return model.parentGroupId;
+      case "parent.artifactId":
+        return model.parentArtifactId;
+      case "parent.version":
+        return model.parentVersion;
+      default:
+        break;
+    }
+    if (model.properties.containsKey(expression)) {
+      return model.properties.get(expression);
+    }
+    if (expression.startsWith("env.")) {
+      return System.getenv(expression.substring("env.".length()));
+    }
+    return System.getProperty(expression);
+  }
+
+  /** Evaluates the activation of a profile like Maven does with its default activators. */
+  private static boolean isActive(Element activation, Path basedir) {
+    if (activation == null) {
+      return false;
+    }
+    boolean hasCondition = false;
+    Element os = child(activation, "os");
+    if (os != null) {
+      hasCondition = true;
+      if (!isOsActive(os)) {
+        return false;
+      }
+    }
+    String jdk = text(activation, "jdk");
+    if (jdk != null) {
+      hasCondition = true;
+      if (!isJdkActive(jdk, System.getProperty("java.version"))) {
+        return false;
+      }
+    }
+    Element property = child(activation, "property");
+    if (property != null) {
+      hasCondition = true;
+      String name = orElse(text(property, "name"), "");
+      String value = text(property, "value");
+      boolean negated = name.startsWith("!");
+      String actual = System.getProperty(negated ? name.substring(1) : name);
+      boolean active;
+      if (value == null) {
+        active = negated ? actual == null : actual != null;
+      } else if (value.startsWith("!")) {
+        active = !value.substring(1).equals(actual);
+      } else {
+        active = value.equals(actual);
+      }
+      if (!active) {
+        return false;
+      }
+    }
+    Element file = child(activation, "file");
+    if (file != null) {
+      hasCondition = true;
+      String exists = text(file, "exists");
+      String missing = text(file, "missing");
+      if (exists != null && !Files.exists(resolve(basedir, exists))) {
+        return false;
+      }
+      if (missing != null && Files.exists(resolve(basedir, missing))) {
+        return false;
+      }
+    }
+    return hasCondition;
+  }
+
+  private static Path resolve(Path basedir, String path) {
+    return basedir.resolve(
+        path.replace("${basedir}", basedir.toString())
+            .replace("${project.basedir}", basedir.toString()));
+  }
+
+  private static boolean isOsActive(Element os) {
+    String osName = System.getProperty("os.name").toLowerCase(Locale.ENGLISH);
+    String osArch = System.getProperty("os.arch").toLowerCase(Locale.ENGLISH);
+    String osVersion = System.getProperty("os.version").toLowerCase(Locale.ENGLISH);
+    return matches(text(os, "name"), osName)
+        && matches(text(os, "arch"), osArch)
+        && matches(text(os, "version"), osVersion)
+        && isFamilyActive(text(os, "family"), osName);
+  }
+
+  private static boolean matches(String expected, String actual) {
+    if (expected == null) {
+      return true;
+    }
+    String e = expected.toLowerCase(Locale.ENGLISH);
+    return e.startsWith("!") ? !e.substring(1).equals(actual) : e.equals(actual);
+  }
+
+  private static boolean isFamilyActive(String family, String osName) {
+    if (family == null) {
+      return true;
+    }
+    String f = family.toLowerCase(Locale.ENGLISH);
+    boolean negated = f.startsWith("!");
+    if (negated) {
+      f = f.substring(1);
+    }
+    boolean windows = osName.contains("windows");
+    boolean mac = osName.contains("mac");
+    boolean result;
+    switch (f) {
+      case "windows":
+        result = windows;
+        break;
+      case "mac":
+        result = mac;
+        break;
+      case "unix":
+        result = File.pathSeparatorChar == ':' && (!mac || osName.endsWith("x"));
+        break;
+      default:
+        result = osName.contains(f);
+        break;
+    }
+    return negated != result;
+  }
+
+  /**
+   * Evaluates a jdk activation, either a version prefix like 1.8 or !1.8, or a version range like
+   * [1.8,11).
+   */
+  static boolean isJdkActive(String jdk, String javaVersion) {
+    String spec = jdk.trim();
+    if (spec.startsWith("!")) {
+      return !isJdkActive(spec.substring(1), javaVersion);
+    }
+    if (!isRange(spec)) {
+      return javaVersion.startsWith(spec);
+    }
+    return inRange(spec, javaVersion);
+  }
+
+  private static boolean isRange(String version) {
+    return version.startsWith("[") || version.startsWith("(");
+  }
+
+  /** Checks if the version is in a range like [1.0,2.0), (,1.0],[1.2,) or [1.5]. */
+  static boolean inRange(String spec, String version) {
+    for (String range : spec.trim().split("(?<=[\\])]),")) {
+      String r = range.trim();
+      boolean lowerInclusive = r.startsWith("[");
+      boolean upperInclusive = r.endsWith("]");
+      String[] bounds = r.substring(1, r.length() - 1).split(",", -1);
+      String lower = bounds[0].trim();
+      String upper = bounds.length > 1 ? bounds[1].trim() : lower;
+      boolean contained = true;
+      if (!lower.isEmpty()) {
+        int c = compareVersions(version, lower);
+        contained = lowerInclusive ? c >= 0 : c > 0;
+      }
+      if (contained && !upper.isEmpty()) {
+        int c = compareVersions(version, upper);
+        contained = upperInclusive ? c <= 0 : c < 0;
+      }
+      if (contained) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compares two versions roughly like Maven does: numbers are compared numerically, the qualifiers
+   * alpha, beta, milestone, rc and snapshot come before the release, and other qualifiers after it.
+   * For example 1.8.0_292 is less than 11, and 1.0-rc1 is less than 1.0.
+   */
+  static int compareVersions(String a, String b) {
+    List<String> x = tokens(a);
+    List<String> y = tokens(b);
+    for (int i = 0; i < Math.max(x.size(), y.size()); i++) {
+      String p = i < x.size() ? x.get(i) : null;
+      String q = i < y.size() ? y.get(i) : null;
+      if (p == null) {
+        p = isNumber(q) ? "0" : "";
+      }
+      if (q == null) {
+        q = isNumber(p) ? "0" : "";
+      }
+      int c;
+      if (isNumber(p) && isNumber(q)) {
+        String m = p.replaceFirst("^0+(?=.)", "");
+        String n = q.replaceFirst("^0+(?=.)", "");
+        c = m.length() != n.length() ? Integer.compare(m.length(), n.length()) : m.compareTo(n);
+      } else if (isNumber(p) || isNumber(q)) {
+        c = isNumber(p) ? 1 : -1;
+      } else {
+        c = Integer.compare(qualifierRank(p), qualifierRank(q));
+        if (c == 0) {
+          c = p.compareTo(q);
+        }
+      }
+      if (c != 0) {
+        return c;
+      }
+    }
+    return 0;
+  }
+
+  /** Splits a version at separators and at transitions between digits and letters. */
+  private static List<String> tokens(String version) {
+    List<String> tokens = new ArrayList<>();
+    Matcher matcher = VERSION_TOKEN.matcher(version.toLowerCase(Locale.ENGLISH));
+    while (matcher.find()) {
+      tokens.add(matcher.group());
+    }
+    return tokens;
+  }
+
+  private static boolean isNumber(String token) {
+    return !token.isEmpty() && Character.isDigit(token.charAt(0));
+  }
+
+  private static int qualifierRank(String qualifier) {
+    switch (qualifier) {
+      case "alpha":
+      case "a":
+        return 0;
+      case "beta":
+      case "b":
+        return 1;
+      case "milestone":
+      case "m":
+        return 2;
+      case "rc":
+      case "cr":
+        return 3;
+      case "snapshot":
+        return 4;
+      case "":
+      case "ga":
+      case "final":
+      case "release":
+        return 5;
+      case "sp":
+        return 6;
+      default:
+        return 7;
+    }
+  }
+
+  private static Element parse(Path pom) throws UnresolvableException {
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setExpandEntityReferences(false);
+      return factory.newDocumentBuilder().parse(pom.toFile()).getDocumentElement();
+    } catch (Exception e) {
+      throw new UnresolvableException("can't parse " + pom + ": " + e.getMessage());
+    }
+  }
+
+  private static Element child(Element element, String name) {
+    List<Element> children = children(element, name);
+    return children.isEmpty() ? null : children.get(0);
+  }
+
+  /** The child elements with the given name, or all child elements if the name is null. */
+  private static List<Element> children(Element element, String name) {
+    if (element == null) {
+      return Collections.emptyList();
+    }
+    List<Element> result = new ArrayList<>();
+    NodeList nodes = element.getChildNodes();
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Node node = nodes.item(i);
+      if (node.getNodeType() == Node.ELEMENT_NODE
+          && (name == null || name.equals(((Element) node).getTagName()))) {
+        result.add((Element) node);
+      }
+    }
+    return result;
+  }
+
+  private static String text(Element element, String name) {
+    Element child = child(element, name);
+    if (child == null) {
+      return null;
+    }
+    String text = child.getTextContent().trim();
+    return text.isEmpty() ? null : text;
+  }
+
+  private static String orElse(String value, String other) {
+    return value != null ? value : other;
+  }
+}
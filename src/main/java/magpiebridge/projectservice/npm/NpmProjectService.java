@@ -4,17 +4,27 @@ import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import magpiebridge.core.IProjectService;
+import magpiebridge.util.Debouncer;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.FileEvent;
 
 /**
  * The Class NpmProjectService.
@@ -26,6 +36,24 @@ public class NpmProjectService implements IProjectService {
   /** The Constant logger. */
   private static final Logger logger = Logger.getLogger(NpmProjectService.class.getName());
 
+  /** The files which determine the dependencies. */
+  private static final List<String> BUILD_FILES =
+      Arrays.asList("package.json", "package-lock.json", "npm-shrinkwrap.json", "yarn.lock");
+
+  /** How long the build files must not change until the dependencies are computed again. */
+  private static final long BUILD_FILE_DEBOUNCE_MILLIS = 1_000;
+
+  /** Computes the dependencies, the thread doesn't keep the JVM alive. */
+  private static final ExecutorService EXECUTOR =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            Thread thread = new Thread(r, "magpie-npm-dependencies");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final Debouncer buildFileDebouncer = new Debouncer(BUILD_FILE_DEBOUNCE_MILLIS);
+
   /** The root path. */
   private Optional<Path> rootPath = Optional.empty();
 
@@ -47,7 +75,7 @@ public class NpmProjectService implements IProjectService {
    * @param rootPath the new root path
    */
   @Override
-  public void setRootPath(Path rootPath) {
+  public synchronized void setRootPath(Path rootPath) {
     projectDependencies.clear();
     this.rootPath = Optional.ofNullable(rootPath);
     this.rootPath.ifPresent(
@@ -145,7 +173,7 @@ public class NpmProjectService implements IProjectService {
    * @param name the name
    * @return the dependency.
    */
-  public Optional<NpmPackage> getDependency(String name) {
+  public synchronized Optional<NpmPackage> getDependency(String name) {
     if (projectDependencies.isEmpty()) {
       initDependencies();
     }
@@ -166,7 +194,7 @@ public class NpmProjectService implements IProjectService {
    *
    * @return the project package
    */
-  public Optional<NpmPackage> getProjectPackage() {
+  public synchronized Optional<NpmPackage> getProjectPackage() {
     if (!projectPackage.isPresent()) {
       initDependencies();
     }
@@ -190,7 +218,7 @@ public class NpmProjectService implements IProjectService {
    *
    * @return the dependencies
    */
-  public List<NpmPackage> getDependencies() {
+  public synchronized List<NpmPackage> getDependencies() {
     if (projectDependencies.isEmpty()) {
       initDependencies();
     }
@@ -198,7 +226,7 @@ public class NpmProjectService implements IProjectService {
   }
 
   /** Recompute dependencies. */
-  public void recomputeDependencies() {
+  public synchronized void recomputeDependencies() {
     // recompute all paths and the set of dependencies assuming the root path has not changed
     rootPath.ifPresent(this::setRootPath);
     initDependencies();
@@ -213,6 +241,45 @@ public class NpmProjectService implements IProjectService {
         });
   }
 
+  /**
+   * Gets the package.json files and the lockfiles of npm and yarn.
+   *
+   * @return the glob patterns of the build files
+   */
+  @Override
+  public Collection<String> getWatchedBuildFiles() {
+    return BUILD_FILES.stream().map(name -> "**/" + name).collect(Collectors.toList());
+  }
+
+  /**
+   * Recompute the dependencies when a package.json or a lockfile in the root path changed, e.g.
+   * after npm install. The dependencies are computed once the files stopped changing.
+   *
+   * @param params the params
+   */
+  @Override
+  public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+    Optional<Path> root = rootPath;
+    if (!root.isPresent()) {
+      return;
+    }
+    for (FileEvent event : params.getChanges()) {
+      try {
+        URI uri = URI.create(event.getUri());
+        if ("file".equalsIgnoreCase(uri.getScheme())) {
+          Path file = Paths.get(uri);
+          if (file.startsWith(root.get()) && BUILD_FILES.contains(file.getFileName().toString())) {
+            // node_modules is read on the executor, not on the shared thread of the debouncer.
+            buildFileDebouncer.schedule(() -> EXECUTOR.execute(this::recomputeDependencies));
+            return;
+          }
+        }
+      } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+        // not a file on disk.
+      }
+    }
+  }
+
   /**
    * Gets the dependency path.
    *
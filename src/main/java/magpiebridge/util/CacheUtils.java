@@ -0,0 +1,84 @@
+package magpiebridge.util;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import magpiebridge.core.MagpieServer;
+
+/** Utility class for the on-disk caches of the server and the hashes which key them. */
+public class CacheUtils {
+
+  private CacheUtils() {}
+
+  /**
+   * The directory of all caches of the server, e.g. of the project services, given by the system
+   * property magpiebridge.cache or ~/.magpiebridge/cache.
+   *
+   * @return the directory
+   */
+  public static Path cacheDirectory() {
+    String dir = System.getProperty("magpiebridge.cache");
+    return dir != null && !dir.isEmpty()
+        ? Paths.get(dir)
+        : Paths.get(System.getProperty("user.home")).resolve(".magpiebridge").resolve("cache");
+  }
+
+  /**
+   * Computes the SHA-256 hash of the given text.
+   *
+   * @param text the text
+   * @return the hash in hex
+   */
+  public static String sha256(String text) {
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(2 * digest.length);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Writes the object as JSON to the file. The file is replaced atomically, so readers never see a
+   * partially written file.
+   *
+   * @param file the file
+   * @param object the object
+   */
+  public static void writeJson(Path file, Object object) {
+    Path directory = file.getParent();
+    try {
+      Files.createDirectories(directory);
+      Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+      try {
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+          new Gson().toJson(object, writer);
+        }
+        try {
+          Files.move(
+              temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      MagpieServer.ExceptionLogger.log(e);
+    }
+  }
+}
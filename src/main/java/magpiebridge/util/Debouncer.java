@@ -0,0 +1,47 @@
+package magpiebridge.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a task once a burst of events is over, e.g. when a build tool rewrites several build files
+ * in a row. Each call of {@link #schedule(Runnable)} postpones the task until no further call
+ * happened for the given delay.
+ */
+public class Debouncer {
+
+  private static final ScheduledExecutorService SCHEDULER =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "magpie-debouncer");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final long delayMillis;
+  private ScheduledFuture<?> pending;
+
+  /**
+   * Instantiates a new debouncer.
+   *
+   * @param delayMillis the time without events after which the task runs
+   */
+  public Debouncer(long delayMillis) {
+    this.delayMillis = delayMillis;
+  }
+
+  /**
+   * Schedule the task, a task which is scheduled but didn't run yet is replaced. The task runs on a
+   * shared thread, so it should hand longer work over to another executor.
+   *
+   * @param task the task
+   */
+  public synchronized void schedule(Runnable task) {
+    if (pending != null) {
+      pending.cancel(false);
+    }
+    pending = SCHEDULER.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+  }
+}
@@ -7,11 +7,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Collection;
-import java.util.Iterator;
+import java.nio.file.Path;
+import java.util.List;
 import magpiebridge.core.MagpieServer;
-import org.apache.commons.io.FileUtils;
+import magpiebridge.file.SourceFileManager;
+import magpiebridge.file.VersionedSourceFile;
+import magpiebridge.file.WorkspaceCrawler;
 import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
 
@@ -32,26 +35,21 @@ public class SourceCodePositionFinder {
   public static SourceCodeInfo findCode(File javaFile, int lineNumber) {
     SourceCodeInfo info = new SourceCodeInfo();
     try {
+      VersionedSourceFile document = SourceFileManager.getOpenDocument(javaFile.toURI().toURL());
+      if (document != null) {
+        // the file is open, take the line from its line index instead of reading the file.
+        if (lineNumber >= 1 && lineNumber <= document.getLineCount()) {
+          setCode(info, document.getLine(lineNumber - 1), lineNumber, javaFile);
+        }
+        return info;
+      }
       BufferedReader reader = new BufferedReader(new FileReader(javaFile));
       String line;
       int i = 0;
       while ((line = reader.readLine()) != null) {
         i++;
         if (i == lineNumber) {
-          int column = 0;
-          line = line.split("//")[0];
-          for (char c : line.toCharArray()) {
-            if (c != ' ') {
-              break;
-            }
-            column++;
-          }
-          info.code = line.trim();
-          info.range =
-              new Range(
-                  new Position(lineNumber - 1, column),
-                  new Position(lineNumber - 1, column + info.code.length()));
-          info.url = new URL("file://" + javaFile.getAbsolutePath());
+          setCode(info, line, lineNumber, javaFile);
           break;
         }
       }
@@ -63,19 +61,37 @@ public class SourceCodePositionFinder {
     return null;
   }
 
+  private static void setCode(SourceCodeInfo info, String line, int lineNumber, File javaFile)
+      throws MalformedURLException {
+    int column = 0;
+    line = line.split("//")[0];
+    for (char c : line.toCharArray()) {
+      if (c != ' ') {
+        break;
+      }
+      column++;
+    }
+    info.code = line.trim();
+    info.range =
+        new Range(
+            new Position(lineNumber - 1, column),
+            new Position(lineNumber - 1, column + info.code.length()));
+    info.url = new URL("file://" + javaFile.getAbsolutePath());
+  }
+
   /**
-   * Find a java File with given className in the directory recursively.
+   * Find a java File with given className in the directory recursively. Ignored directories like
+   * build outputs are not searched, see {@link WorkspaceCrawler}.
    *
    * @param dir the directory where to find
    * @param className the className
    * @return the file
    */
   public static File find(File dir, String className) {
-    Collection<File> files = FileUtils.listFiles(dir, null, true);
-    for (Iterator<File> iterator = files.iterator(); iterator.hasNext(); ) {
-      File file = (File) iterator.next();
-      String fileName = file.getName();
-      if (fileName.endsWith(".java") && file.getName().equals(className + ".java")) return file;
+    List<Path> files =
+        WorkspaceCrawler.of(dir.toPath()).inventory().getFilesNamed(className + ".java");
+    if (!files.isEmpty()) {
+      return files.get(0).toFile();
     }
     MagpieServer.ExceptionLogger.log(
         "Couldn't find " + className + " in directory " + dir.toString());
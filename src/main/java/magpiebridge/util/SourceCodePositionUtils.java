@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URL;
+import magpiebridge.file.SourceFileManager;
+import magpiebridge.file.VersionedSourceFile;
 import org.eclipse.lsp4j.Location;
 import org.eclipse.lsp4j.Range;
 
@@ -53,20 +55,28 @@ public class SourceCodePositionUtils {
     if (p.getFirstCol() >= 0) {
       return p;
     } else {
-      Position firstLineP = new LineNumberPosition(p.getURL(), p.getURL(), p.getFirstLine());
-      SourceBuffer firstLine = null;
-      try {
-        firstLine = new SourceBuffer(firstLineP);
-      } catch (IOException e) {
-        assert false : e;
-      }
-      String firstLineText = firstLine.toString();
-
+      String firstLineText;
       String pText = null;
-      try {
-        pText = new SourceBuffer(p).toString();
-      } catch (IOException e) {
-        assert false : e;
+      VersionedSourceFile document = SourceFileManager.getOpenDocument(p.getURL());
+      if (document != null) {
+        // the document is open, use its line index instead of scanning the file.
+        firstLineText = document.getLine(p.getFirstLine() - 1);
+        pText = getText(document, p);
+      } else {
+        Position firstLineP = new LineNumberPosition(p.getURL(), p.getURL(), p.getFirstLine());
+        SourceBuffer firstLine = null;
+        try {
+          firstLine = new SourceBuffer(firstLineP);
+        } catch (IOException e) {
+          assert false : e;
+        }
+        firstLineText = firstLine.toString();
+
+        try {
+          pText = new SourceBuffer(p).toString();
+        } catch (IOException e) {
+          assert false : e;
+        }
       }
 
       int lines = pText.split("\n").length;
@@ -134,6 +144,29 @@ public class SourceCodePositionUtils {
     }
   }
 
+  /**
+   * Gets the text at the given position from an open document, the counterpart of {@link
+   * SourceBuffer} for documents which are held in memory.
+   *
+   * @param document the document
+   * @param p the position
+   * @return the text
+   */
+  private static String getText(VersionedSourceFile document, Position p) {
+    int start;
+    int end;
+    if (p.getFirstOffset() >= 0 && p.getLastOffset() >= 0) {
+      start = p.getFirstOffset();
+      end = p.getLastOffset();
+    } else {
+      int firstLine = p.getFirstLine() - 1;
+      int lastLine = Math.max(p.getLastLine() - 1, firstLine);
+      start = document.offsetAt(firstLine, Math.max(p.getFirstCol(), 0));
+      end = document.offsetAt(lastLine, p.getLastCol() >= 0 ? p.getLastCol() : Integer.MAX_VALUE);
+    }
+    return document.substring(start, end).replace("\r\n", "\n");
+  }
+
   /**
    * Check if two source code positions are near to each other.
    *
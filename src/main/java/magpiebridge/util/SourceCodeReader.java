@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import magpiebridge.file.SourceFileManager;
+import magpiebridge.file.VersionedSourceFile;
 
 /**
  * SourceCodeReader provides methods to get source code at a given {@link Position}.
@@ -38,6 +40,27 @@ public class SourceCodeReader {
   public static List<String> getLines(Position p, boolean includeComment) throws IOException {
     List<String> lines = new ArrayList<>();
 
+    VersionedSourceFile document = SourceFileManager.getOpenDocument(p.getURL());
+    if (document != null) {
+      // the document is open, jump to the first line with its line index.
+      int line = p.getFirstLine();
+      if (line < 1 || line > document.getLineCount()) {
+        return lines;
+      }
+      lines.add(
+          removeComment(document.getLine(line - 1).substring(p.getFirstCol()), includeComment));
+      while (p.getLastLine() < line) {
+        String currentLine = document.getLine(line);
+        line++;
+        if (p.getLastLine() == line) {
+          lines.add(removeComment(currentLine.substring(0, p.getLastCol()), includeComment));
+        } else {
+          lines.add(removeComment(currentLine, includeComment));
+        }
+      }
+      return lines;
+    }
+
     String url = p.getURL().toString();
     if (System.getProperty("os.name").toLowerCase().indexOf("win") >= 0) {
       // take care of url in windows
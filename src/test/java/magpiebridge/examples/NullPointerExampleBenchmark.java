@@ -0,0 +1,55 @@
+package magpiebridge.examples;
+
+import com.ibm.wala.cast.java.InterprocAnalysisResult;
+import com.ibm.wala.cast.java.NullPointerAnalysis;
+import com.ibm.wala.ipa.callgraph.CallGraph;
+import com.ibm.wala.ssa.SSAInstruction;
+import com.ibm.wala.ssa.analysis.IExplodedBasicBlock;
+import com.ibm.wala.util.NullProgressMonitor;
+
+/**
+ * Measures the sequential and the parallel result extraction of {@link NullPointerExample}. It
+ * needs the JDK jars of wala.properties, see {@link NullPointerExampleTest#hasJ2SEJars()}.
+ */
+public class NullPointerExampleBenchmark {
+
+  private static final int RUNS = 20;
+
+  public static void main(String[] args) throws Exception {
+    if (!NullPointerExampleTest.hasJ2SEJars()) {
+      System.err.println("wala.properties names no JDK jars.");
+      System.exit(1);
+    }
+    for (String project : NullPointerExampleTest.PROJECTS) {
+      CallGraph cg = NullPointerExampleTest.makeCallGraph(project);
+      InterprocAnalysisResult<SSAInstruction, IExplodedBasicBlock> result =
+          NullPointerAnalysis.computeInterprocAnalysis(cg, new NullProgressMonitor());
+
+      // warm up both variants before measuring.
+      NullPointerExample.extractResults(cg, result, false);
+      int results = NullPointerExample.extractResults(cg, result, true).size();
+
+      long sequential = time(cg, result, false);
+      long parallel = time(cg, result, true);
+      System.out.printf(
+          "%s: %d nodes, %d results, sequential %.1f ms, parallel %.1f ms, speedup %.2fx%n",
+          project,
+          cg.getNumberOfNodes(),
+          results,
+          sequential / 1e6 / RUNS,
+          parallel / 1e6 / RUNS,
+          (double) sequential / parallel);
+    }
+  }
+
+  private static long time(
+      CallGraph cg,
+      InterprocAnalysisResult<SSAInstruction, IExplodedBasicBlock> result,
+      boolean parallel) {
+    long start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) {
+      NullPointerExample.extractResults(cg, result, parallel);
+    }
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,206 @@
+package magpiebridge.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.ibm.wala.cast.java.InterprocAnalysisResult;
+import com.ibm.wala.cast.java.NullPointerAnalysis;
+import com.ibm.wala.cast.java.ipa.callgraph.JavaSourceAnalysisScope;
+import com.ibm.wala.cast.tree.CAstSourcePositionMap.Position;
+import com.ibm.wala.classLoader.Module;
+import com.ibm.wala.classLoader.SourceDirectoryTreeModule;
+import com.ibm.wala.classLoader.SourceFileModule;
+import com.ibm.wala.ipa.callgraph.AnalysisScope;
+import com.ibm.wala.ipa.callgraph.CallGraph;
+import com.ibm.wala.ipa.cha.ClassHierarchy;
+import com.ibm.wala.properties.WalaProperties;
+import com.ibm.wala.ssa.SSAInstruction;
+import com.ibm.wala.ssa.analysis.IExplodedBasicBlock;
+import com.ibm.wala.types.ClassLoaderReference;
+import com.ibm.wala.util.NullProgressMonitor;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import magpiebridge.core.AnalysisResult;
+import magpiebridge.core.MagpieClient;
+import magpiebridge.core.MagpieServer;
+import magpiebridge.core.ServerConfiguration;
+import magpiebridge.core.analysis.ClassHierarchyCache;
+import magpiebridge.file.JarModuleCache;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.lsp4j.services.LanguageClient;
+import org.junit.Test;
+
+public class NullPointerExampleTest {
+
+  static final String[] PROJECTS = {
+    "src/test/resources/DemoProjectMaven/src", "src/test/resources/cryptoDemoTest/src"
+  };
+
+  /** Checks that the parallel extraction finds the same results, if the JDK jars can be read. */
+  @Test
+  public void testParallelResultExtraction() throws Exception {
+    assumeTrue("wala.properties names no JDK jars", hasJ2SEJars());
+    for (String project : PROJECTS) {
+      CallGraph cg = makeCallGraph(project);
+      InterprocAnalysisResult<SSAInstruction, IExplodedBasicBlock> result =
+          NullPointerAnalysis.computeInterprocAnalysis(cg, new NullProgressMonitor());
+      assertEquals(
+          project,
+          describe(NullPointerExample.extractResults(cg, result, false)),
+          describe(NullPointerExample.extractResults(cg, result, true)));
+    }
+  }
+
+  /**
+   * Tells if wala.properties names the jars of a JDK, WALA can't read the jmod files of newer JDKs.
+   */
+  static boolean hasJ2SEJars() {
+    String[] jars = WalaProperties.getJ2SEJarFiles();
+    for (String jar : jars) {
+      if (!jar.endsWith(".jar")) {
+        return false;
+      }
+    }
+    return jars.length > 0;
+  }
+
+  static CallGraph makeCallGraph(String project) throws Exception {
+    AnalysisScope scope = new JavaSourceAnalysisScope();
+    scope.addToScope(
+        JavaSourceAnalysisScope.SOURCE, new SourceDirectoryTreeModule(new File(project)));
+    for (Module stdlib : JarModuleCache.getJ2SEModules()) {
+      scope.addToScope(ClassLoaderReference.Primordial, stdlib);
+    }
+    ClassHierarchy cha = new ClassHierarchyCache().make(scope);
+    return NullPointerExample.makeCallGraph(scope, cha);
+  }
+
+  /**
+   * Describes results by their positions, severities and messages in a sorted list, so that results
+   * of different runs can be compared, including duplicates.
+   */
+  static List<String> describe(Collection<AnalysisResult> results) {
+    List<String> descriptions = new ArrayList<>();
+    for (AnalysisResult result : results) {
+      Position position = result.position();
+      descriptions.add(
+          position.getURL()
+              + ":"
+              + position.getFirstLine()
+              + ":"
+              + position.getFirstCol()
+              + "-"
+              + position.getLastLine()
+              + ":"
+              + position.getLastCol()
+              + " "
+              + result.severity()
+              + " "
+              + result.toString(false));
+    }
+    Collections.sort(descriptions);
+    return descriptions;
+  }
+
+  @Test
+  public void testReferencedNames() throws IOException {
+    Path dir = Files.createTempDirectory("referenced-names");
+    try {
+      Path a = dir.resolve("A.java");
+      Files.write(
+          a,
+          ("package p;\n"
+                  + "import org.lib.Imported;\n"
+                  + "class A extends Same {\n"
+                  + "  org.other.Qualified q = new org.other.Qualified();\n"
+                  + "}\n")
+              .getBytes(StandardCharsets.UTF_8));
+      Set<String> names =
+          NullPointerExample.referencedNames(
+                  Collections.singletonList(new SourceFileModule(a.toFile(), "A.java", null)))
+              .get();
+      assertTrue(names.contains("p"));
+      assertTrue(names.contains("org.lib.Imported"));
+      assertTrue(names.contains("org.other.Qualified"));
+
+      Path escaped = dir.resolve("B.java");
+      Files.write(escaped, "class B { char c = '\\u0041'; }".getBytes(StandardCharsets.UTF_8));
+      assertFalse(
+          NullPointerExample.referencedNames(
+                  Collections.singletonList(new SourceFileModule(escaped.toFile(), "B.java", null)))
+              .isPresent());
+    } finally {
+      FileUtils.deleteDirectory(dir.toFile());
+    }
+  }
+
+  /**
+   * Checks that the incremental mode reports the same results as a full run, if the JDK jars can be
+   * read: for unchanged sources and after a body edit, which moves the lines below it.
+   */
+  @Test
+  public void testIncrementalEqualsFullRun() throws Exception {
+    assumeTrue("wala.properties names no JDK jars", hasJ2SEJars());
+    Path dir = Files.createTempDirectory("incremental");
+    try {
+      FileUtils.copyDirectory(new File(PROJECTS[0]), dir.toFile());
+      NullPointerExample incremental = new NullPointerExample(true);
+      List<String> first = describe(analyze(incremental, dir));
+      assertEquals(describe(analyze(new NullPointerExample(), dir)), first);
+      assertEquals(first, describe(analyze(incremental, dir)));
+
+      Path main = dir.resolve("server").resolve("ServerMain.java");
+      String text = new String(Files.readAllBytes(main), StandardCharsets.UTF_8);
+      Files.write(
+          main,
+          text.replace("server.login();", "server.login();\n\t\tuser.setName(null);")
+              .getBytes(StandardCharsets.UTF_8));
+      List<String> edited = describe(analyze(incremental, dir));
+      assertNotEquals(first, edited);
+      assertEquals(describe(analyze(new NullPointerExample(), dir)), edited);
+    } finally {
+      FileUtils.deleteDirectory(dir.toFile());
+    }
+  }
+
+  /** Runs the analysis on the sources of the directory and returns the results it consumed. */
+  private static Collection<AnalysisResult> analyze(NullPointerExample analysis, Path dir) {
+    List<Module> sources = new ArrayList<>();
+    for (File file : FileUtils.listFiles(dir.toFile(), new String[] {"java"}, true)) {
+      sources.add(new SourceFileModule(file, file.getName(), null));
+    }
+    List<AnalysisResult> consumed = new ArrayList<>();
+    LanguageClient client =
+        (LanguageClient)
+            Proxy.newProxyInstance(
+                MagpieClient.class.getClassLoader(),
+                new Class<?>[] {MagpieClient.class},
+                (proxy, method, args) -> null);
+    MagpieServer server =
+        new MagpieServer(new ServerConfiguration()) {
+          @Override
+          public LanguageClient getClient() {
+            return client;
+          }
+
+          @Override
+          public void consume(Collection<AnalysisResult> results, String source) {
+            consumed.addAll(results);
+          }
+        };
+    analysis.analyze(sources, server, true);
+    return consumed;
+  }
+}
@@ -0,0 +1,116 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.ibm.wala.classLoader.IClassLoader;
+import com.ibm.wala.ipa.callgraph.AnalysisScope;
+import com.ibm.wala.ipa.cha.ClassHierarchy;
+import com.ibm.wala.types.ClassLoaderReference;
+import com.ibm.wala.types.TypeReference;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import magpiebridge.core.analysis.ClassHierarchyCache;
+import magpiebridge.file.JarModuleCache;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClassHierarchyCacheTest {
+
+  private static final String[] JDK_CLASSES = {
+    "java/lang/Object",
+    "java/lang/String",
+    "java/lang/Comparable",
+    "java/lang/CharSequence",
+    "java/io/Serializable"
+  };
+
+  private Path dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("class-hierarchy-cache");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir.toFile());
+  }
+
+  @Test
+  public void testConsecutiveHierarchies() throws Exception {
+    Path jdk = jar("jdk.jar", JDK_CLASSES);
+    Path library = jar("library.jar", "java/lang/Comparable");
+    ClassHierarchyCache cache = new ClassHierarchyCache();
+    AnalysisScope scope = scope(jdk, library);
+    ClassLoaderReference synthetic = scope.getSyntheticLoader();
+    ClassHierarchy first = cache.make(scope);
+    IClassLoader primordial = first.getLoader(ClassLoaderReference.Primordial);
+    // the loader of the synthetic classes is created again like the source loader.
+    WeakReference<IClassLoader> firstSynthetic = new WeakReference<>(first.getLoader(synthetic));
+
+    ClassHierarchy second = cache.make(scope(jdk, library));
+    assertSame(primordial, second.getLoader(ClassLoaderReference.Primordial));
+    assertNotSame(firstSynthetic.get(), second.getLoader(synthetic));
+    assertSame(first.getRootClass(), second.getRootClass());
+    assertNotNull(second.lookupClass(TypeReference.JavaLangString));
+
+    // the kept loaders belong to the base hierarchy, not to a run.
+    ClassHierarchy base = cache.getBaseHierarchy();
+    assertSame(base, second.getRootClass().getClassHierarchy());
+    assertNotSame(first, base);
+    assertNotSame(second, base);
+
+    // so nothing kept refers to the hierarchy of the first run and its other loaders.
+    first = null;
+    for (int i = 0; i < 20 && firstSynthetic.get() != null; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertNull(firstSynthetic.get());
+
+    // other modules load the JDK and the libraries again.
+    ClassHierarchy third = cache.make(scope(jdk, jar("other.jar", "java/lang/Comparable")));
+    assertNotSame(second.getRootClass(), third.getRootClass());
+    assertNotSame(base, cache.getBaseHierarchy());
+  }
+
+  private AnalysisScope scope(Path jdk, Path library) throws IOException {
+    AnalysisScope scope = AnalysisScope.createJavaAnalysisScope();
+    scope.addToScope(ClassLoaderReference.Primordial, JarModuleCache.getModule(jdk));
+    scope.addToScope(ClassLoaderReference.Application, JarModuleCache.getModule(library));
+    return scope;
+  }
+
+  /**
+   * Writes the class files of the running JDK as Java 8 class files, WALA can't read newer ones.
+   */
+  private Path jar(String name, String... classes) throws IOException {
+    Path jar = dir.resolve(name);
+    try (OutputStream out = Files.newOutputStream(jar);
+        ZipOutputStream zip = new ZipOutputStream(out)) {
+      for (String className : classes) {
+        zip.putNextEntry(new ZipEntry(className + ".class"));
+        try (InputStream in = ClassLoader.getSystemResourceAsStream(className + ".class")) {
+          byte[] content = IOUtils.toByteArray(in);
+          content[6] = 0;
+          content[7] = 52;
+          zip.write(content);
+        }
+        zip.closeEntry();
+      }
+    }
+    return jar;
+  }
+}
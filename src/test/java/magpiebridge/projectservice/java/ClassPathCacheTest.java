@@ -0,0 +1,115 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import magpiebridge.file.WorkspaceCrawler;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClassPathCacheTest {
+
+  private Path temp;
+  private Path root;
+  private Path jar;
+  private ClassPathCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    temp = Files.createTempDirectory("classpath-cache");
+    root = Files.createDirectories(temp.resolve("project"));
+    Files.write(root.resolve("pom.xml"), "<project/>".getBytes(StandardCharsets.UTF_8));
+    jar = Files.createFile(temp.resolve("lib.jar"));
+    cache = new ClassPathCache(temp.resolve("cache"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(temp.toFile());
+  }
+
+  @Test
+  public void testLoadAndStore() throws IOException {
+    Set<Path> repositories = Collections.singleton(temp.resolve(".m2"));
+    String fingerprint = ClassPathCache.fingerprint(root, repositories, Collections.emptySet());
+    assertFalse(cache.load(root, fingerprint).isPresent());
+
+    cache.store(root, fingerprint, Collections.singleton(jar));
+    assertEquals(Collections.singleton(jar), cache.load(root, fingerprint).get());
+    assertEquals(
+        fingerprint, ClassPathCache.fingerprint(root, repositories, Collections.emptySet()));
+
+    // the cached class path of the old build files is not used.
+    Files.write(root.resolve("pom.xml"), "<project></project>".getBytes(StandardCharsets.UTF_8));
+    String changed = ClassPathCache.fingerprint(root, repositories, Collections.emptySet());
+    assertNotEquals(fingerprint, changed);
+    assertFalse(cache.load(root, changed).isPresent());
+
+    // a class path with deleted jars is not used either.
+    cache.store(root, changed, Collections.singleton(jar));
+    Files.delete(jar);
+    assertFalse(cache.load(root, changed).isPresent());
+  }
+
+  @Test
+  public void testCacheHitSkipsMaven() {
+    String fingerprint =
+        ClassPathCache.fingerprint(
+            root,
+            Arrays.asList(temp.resolve(".m2"), temp.resolve(".gradle")),
+            Collections.emptySet());
+    cache.store(root, fingerprint, Collections.singleton(jar));
+    InferConfig inferConfig =
+        new InferConfig(
+            root, Collections.emptySet(), temp.resolve(".m2"), temp.resolve(".gradle"), cache);
+    Set<Path> classPath = inferConfig.libraryClassPath();
+    assertTrue(classPath.contains(jar));
+    assertEquals(1, classPath.size());
+  }
+
+  @Test
+  public void testRevalidation() throws IOException {
+    String fingerprint =
+        ClassPathCache.fingerprint(root, Collections.emptySet(), Collections.emptySet());
+    assertTrue(cache.needsRevalidation(root));
+    cache.store(root, fingerprint, Collections.singleton(jar));
+    // a fresh entry of fixed versions is trusted.
+    assertFalse(cache.needsRevalidation(root));
+    ClassPathCache expired = new ClassPathCache(temp.resolve("cache"), 0);
+    assertTrue(expired.needsRevalidation(root));
+
+    Files.write(
+        root.resolve("pom.xml"),
+        "<project><version>1.0-SNAPSHOT</version></project>".getBytes(StandardCharsets.UTF_8));
+    assertTrue(cache.needsRevalidation(root));
+    Files.write(
+        root.resolve("pom.xml"),
+        "<project><dependency><version>[1.0,2.0)</version></dependency></project>"
+            .getBytes(StandardCharsets.UTF_8));
+    assertTrue(cache.needsRevalidation(root));
+    Files.delete(root.resolve("pom.xml"));
+    Files.write(
+        root.resolve("build.gradle"),
+        "dependencies { implementation 'com.google.guava:guava:31.+' }"
+            .getBytes(StandardCharsets.UTF_8));
+    // the server forgets the inventory on the watched file events of created and deleted files.
+    WorkspaceCrawler.of(root).invalidate();
+    assertTrue(cache.needsRevalidation(root));
+    Files.write(
+        root.resolve("build.gradle"),
+        "dependencies { implementation 'com.google.guava:guava:31.1-jre' }"
+            .getBytes(StandardCharsets.UTF_8));
+    assertFalse(cache.needsRevalidation(root));
+  }
+}
@@ -0,0 +1,84 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GradleCacheIndexTest {
+
+  private Path temp;
+  private int createdFiles;
+
+  @Before
+  public void setUp() throws IOException {
+    temp = Files.createTempDirectory("gradle-index");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(temp.toFile());
+  }
+
+  @Test
+  public void testGradleLayout() throws IOException {
+    Path files = temp.resolve("caches").resolve("modules-2").resolve("files-2.1");
+    Path jar = createFile(files.resolve("com.google.guava/guava/21.0/0123abcd/guava-21.0.jar"));
+    Path cacheFile = temp.resolve("index.json");
+    GradleCacheIndex index =
+        GradleCacheIndex.create(files, GradleCacheIndex.Layout.GRADLE, cacheFile);
+    Artifact guava = new Artifact("com.google.guava", "guava", "21.0");
+    assertEquals(jar, index.find(guava, false).get());
+    assertFalse(index.find(new Artifact("com.google", "guava", "21.0"), false).isPresent());
+    assertFalse(index.find(guava, true).isPresent());
+    assertTrue(Files.exists(cacheFile));
+
+    // a new index reads the persisted one and only lists modified directories again.
+    Path sources =
+        createFile(files.resolve("com.google.guava/guava/21.0/4567efab/guava-21.0-sources.jar"));
+    GradleCacheIndex reloaded =
+        GradleCacheIndex.create(files, GradleCacheIndex.Layout.GRADLE, cacheFile);
+    reloaded.refresh();
+    assertEquals(sources, reloaded.find(guava, true).get());
+    assertEquals(jar, reloaded.find(guava, false).get());
+  }
+
+  @Test
+  public void testMavenLayout() throws IOException {
+    Path extras = temp.resolve("extras");
+    Path aar =
+        createFile(
+            extras.resolve(
+                "android/m2repository/com/android/support/appcompat-v7/25.3.1/"
+                    + "appcompat-v7-25.3.1.aar"));
+    GradleCacheIndex index =
+        GradleCacheIndex.create(
+            extras, GradleCacheIndex.Layout.MAVEN, temp.resolve("extras-index.json"));
+    assertEquals(
+        aar,
+        index.find(new Artifact("com.android.support", "appcompat-v7", "25.3.1"), false).get());
+    assertFalse(
+        index.find(new Artifact("com.android", "appcompat-v7", "25.3.1"), false).isPresent());
+  }
+
+  /** Creates the file and backdates its directories, so that their modification times are used. */
+  private Path createFile(Path file) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.createFile(file);
+    // each file gets another modification time, even on file systems with coarse timestamps.
+    FileTime old =
+        FileTime.fromMillis(System.currentTimeMillis() - 600_000 + 5_000 * createdFiles++);
+    for (Path dir = file.getParent(); dir.startsWith(temp); dir = dir.getParent()) {
+      Files.setLastModifiedTime(dir, old);
+    }
+    return file;
+  }
+}
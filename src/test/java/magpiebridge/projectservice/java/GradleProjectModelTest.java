@@ -0,0 +1,43 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Test;
+
+public class GradleProjectModelTest {
+
+  @Test
+  public void testParse() {
+    GradleProjectModel model =
+        GradleProjectModel.parse(
+            Arrays.asList(
+                "Starting a Gradle Daemon",
+                "MAGPIE\tproject\t:\t/workspace",
+                "MAGPIE\tdependency\t:\tcom.google.guava:guava:27.0.1-jre",
+                "MAGPIE\tfile\t:\t/cache/guava-27.0.1-jre.jar",
+                "MAGPIE\toutput\t:\t/workspace/build/classes/java/main",
+                "MAGPIE\tproject\t:sub\t/workspace/sub",
+                "MAGPIE\tdependency\t:sub\tcommons-io:commons-io:2.7",
+                "MAGPIE\tdependency\t:sub\tcom.google.guava:guava:27.0.1-jre",
+                "MAGPIE\tfile\t:sub\t/workspace/libs/classes.zip"));
+    assertEquals(
+        new HashSet<>(
+            Arrays.asList(
+                new Artifact("com.google.guava", "guava", "27.0.1-jre"),
+                new Artifact("commons-io", "commons-io", "2.7"))),
+        new HashSet<>(model.getDependencies()));
+    assertEquals(
+        Collections.singleton(Paths.get("/cache/guava-27.0.1-jre.jar")),
+        model.getDependencyFiles());
+    assertEquals(
+        new HashSet<>(Arrays.asList(Paths.get("/workspace"), Paths.get("/workspace/sub"))),
+        model.getProjectDirectories());
+    assertEquals(
+        Collections.singleton(Paths.get("/workspace/build/classes/java/main")),
+        model.getOutputDirectories());
+  }
+}
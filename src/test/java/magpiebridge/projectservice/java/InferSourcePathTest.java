@@ -1,11 +1,17 @@
 package magpiebridge.projectservice.java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Set;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
 public class InferSourcePathTest {
@@ -85,4 +91,60 @@ public class InferSourcePathTest {
     Path expected = Paths.get("src/test/resources/StandardJCATasks/Task3/src").toAbsolutePath();
     assertEquals(expected.toString(), sourcePath.iterator().next().toString());
   }
+
+  @Test
+  public void testUpdate() throws IOException {
+    Path root = Files.createTempDirectory("infer-source-path").toRealPath();
+    try {
+      Path a = write(root.resolve("src/main/java/a/A.java"), "package a;\nclass A {}");
+      InferSourcePath infer = new InferSourcePath(null);
+      Set<Path> sourcePath = infer.sourcePath(root);
+      assertEquals(Collections.singleton(root.resolve("src/main/java")), sourcePath);
+
+      Path b = write(root.resolve("src/test/java/b/c/B.java"), "/* */ package b.c;\nclass B {}");
+      infer.update(b, false);
+      assertTrue(infer.getSourceRoots().contains(root.resolve("src/test/java")));
+      assertTrue(infer.getPackageNames().contains("b.c"));
+      assertTrue(infer.getClassFullQualifiedNames().contains("b.c.B"));
+
+      Files.delete(a);
+      infer.update(a, true);
+      assertEquals(Collections.singleton(root.resolve("src/test/java")), infer.getSourceRoots());
+      assertFalse(infer.getClassFullQualifiedNames().contains("a.A"));
+
+      FileUtils.deleteDirectory(root.resolve("src/test").toFile());
+      infer.update(root.resolve("src/test"), true);
+      assertTrue(infer.getSourceRoots().isEmpty());
+      assertTrue(infer.getPackageNames().isEmpty());
+    } finally {
+      FileUtils.deleteDirectory(root.toFile());
+    }
+  }
+
+  @Test
+  public void testPersistedCache() throws IOException, InterruptedException {
+    Path root = Files.createTempDirectory("infer-source-path").toRealPath();
+    Path cacheFile = Files.createTempFile("infer-source-path", ".json");
+    try {
+      write(root.resolve("src/a/A.java"), "package a;\nclass A {}");
+      new InferSourcePath(cacheFile).sourcePath(root);
+      // the cache is written in the background.
+      for (int i = 0; i < 50 && Files.size(cacheFile) == 0; i++) {
+        Thread.sleep(100);
+      }
+      assertTrue(
+          new String(Files.readAllBytes(cacheFile), StandardCharsets.UTF_8).contains("A.java"));
+      InferSourcePath infer = new InferSourcePath(cacheFile);
+      assertEquals(Collections.singleton(root.resolve("src")), infer.sourcePath(root));
+      assertTrue(infer.getClassFullQualifiedNames().contains("a.A"));
+    } finally {
+      FileUtils.deleteDirectory(root.toFile());
+      Files.deleteIfExists(cacheFile);
+    }
+  }
+
+  private static Path write(Path file, String content) throws IOException {
+    Files.createDirectories(file.getParent());
+    return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
 }
@@ -0,0 +1,105 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.ibm.wala.classLoader.JarFileModule;
+import com.ibm.wala.classLoader.Module;
+import com.ibm.wala.classLoader.ModuleEntry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import magpiebridge.file.JarModuleCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JarModuleCacheTest {
+
+  private Path dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("jar-module-cache");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir.toFile());
+  }
+
+  @Test
+  public void testSharedModules() throws IOException {
+    Path jar = jar("lib.jar", "p/A.class");
+    Module module = JarModuleCache.getModule(jar);
+    assertSame(module, JarModuleCache.getModule(jar));
+    assertEquals(Arrays.asList("p/A.class"), entries(module));
+
+    jar("lib.jar", "p/A.class", "p/B.class");
+    Files.setLastModifiedTime(jar, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+    Module changed = JarModuleCache.getModule(jar);
+    assertNotSame(module, changed);
+    assertEquals(Arrays.asList("p/A.class", "p/B.class"), entries(changed));
+
+    List<Module> modules =
+        JarModuleCache.getModules(Arrays.asList(dir, jar, dir.resolve("missing.jar")));
+    assertEquals(Arrays.asList(changed), modules);
+  }
+
+  @Test
+  public void testCloseReplacedJars() throws Exception {
+    Path jar = jar("closed.jar", "p/A.class");
+    JarFile file = ((JarFileModule) JarModuleCache.getModule(jar)).getJarFile();
+    jar("closed.jar", "p/A.class", "p/B.class");
+    Files.setLastModifiedTime(jar, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+    JarModuleCache.getModule(jar);
+    // the replaced module isn't used any more, so its jar is closed on a later call.
+    for (int i = 0; i < 100 && isOpen(file); i++) {
+      System.gc();
+      Thread.sleep(10);
+      JarModuleCache.getModule(jar);
+    }
+    assertFalse(isOpen(file));
+  }
+
+  private static boolean isOpen(JarFile file) {
+    try {
+      file.size();
+      return true;
+    } catch (IllegalStateException e) {
+      return false;
+    }
+  }
+
+  private static List<String> entries(Module module) {
+    List<String> names = new ArrayList<>();
+    for (Iterator<? extends ModuleEntry> it = module.getEntries(); it.hasNext(); ) {
+      names.add(it.next().getName());
+    }
+    return names;
+  }
+
+  private Path jar(String name, String... entries) throws IOException {
+    Path jar = dir.resolve(name);
+    try (OutputStream out = Files.newOutputStream(jar);
+        ZipOutputStream zip = new ZipOutputStream(out)) {
+      for (String entry : entries) {
+        zip.putNextEntry(new ZipEntry(entry));
+        zip.closeEntry();
+      }
+    }
+    return jar;
+  }
+}
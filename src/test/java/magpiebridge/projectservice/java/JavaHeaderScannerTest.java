@@ -0,0 +1,57 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import org.junit.Test;
+
+public class JavaHeaderScannerTest {
+
+  private static Optional<String> scan(String text) throws IOException {
+    return JavaHeaderScanner.scanPackage(new StringReader(text));
+  }
+
+  @Test
+  public void testPackages() throws IOException {
+    assertEquals("a.b", scan("package a.b;\nclass A {}").get());
+    assertEquals("a.b.c", scan("/* license */\n// comment\npackage a . /* x */ b.\n c ;").get());
+    assertEquals("a", scan("@Deprecated @SuppressWarnings({\"a)\", \"b\"}) package a;").get());
+    assertEquals("", scan("import java.util.List;\nclass A {}").get());
+    assertEquals("", scan("public @interface A {}").get());
+    assertEquals("", scan("").get());
+  }
+
+  @Test
+  public void testImports() throws IOException {
+    assertEquals(
+        Arrays.asList("java.util.List", "java.util.Collections.emptyList", "org.junit.*"),
+        JavaHeaderScanner.scanImports(
+                new StringReader(
+                    "package a;\nimport java.util.List;;\n"
+                        + "import static java.util.Collections.emptyList;\n"
+                        + "import org.junit. /* all */ *;\n"
+                        + "@Deprecated class A {}\nimport x.Y;"))
+            .get());
+    assertEquals(
+        Arrays.asList("java.util.List"),
+        JavaHeaderScanner.scanImports(new StringReader("import java.util.List; class A {}")).get());
+    assertEquals(
+        Collections.emptyList(),
+        JavaHeaderScanner.scanImports(new StringReader("package a; class A {}")).get());
+    assertFalse(
+        JavaHeaderScanner.scanImports(new StringReader("import java.util.List class A {}"))
+            .isPresent());
+  }
+
+  @Test
+  public void testFallback() throws IOException {
+    assertFalse(scan("/* unterminated").isPresent());
+    assertFalse(scan("\\u0070ackage a;").isPresent());
+    assertFalse(scan("package a").isPresent());
+  }
+}
@@ -1,13 +1,24 @@
 package magpiebridge.projectservice.java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.FileChangeType;
+import org.eclipse.lsp4j.FileEvent;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -40,6 +51,77 @@ public class JavaProjectServiceTest {
     assertTrue(classNames.contains("demo.dummy.dummySubFolder.Dummy5"));
   }
 
+  @Test
+  public void testSharedProjectModel() throws IOException {
+    Path root = Files.createTempDirectory("java-project-service").toRealPath();
+    try {
+      Path a = root.resolve("src/a/A.java");
+      Files.createDirectories(a.getParent());
+      Files.write(a, "package a;\nclass A {}".getBytes(StandardCharsets.UTF_8));
+      JavaProjectService ps = new JavaProjectService();
+      ps.setRootPath(root);
+      CompletableFuture<JavaProjectModel> future = ps.getProjectModelAsync();
+      assertSame(future, ps.getProjectModelAsync());
+      JavaProjectModel model = future.join();
+      assertSame(model, ps.getProjectModel());
+      assertEquals(Collections.singleton(root.resolve("src")), ps.getSourcePath());
+      assertEquals(Collections.singleton("a.A"), ps.getSourceClassFullQualifiedNames());
+
+      // a new source file updates the source path of the model.
+      Path b = root.resolve("test/b/B.java");
+      Files.createDirectories(b.getParent());
+      Files.write(b, "package b;\nclass B {}".getBytes(StandardCharsets.UTF_8));
+      ps.didChangeWatchedFiles(
+          new DidChangeWatchedFilesParams(
+              Collections.singletonList(
+                  new FileEvent(b.toUri().toString(), FileChangeType.Created))));
+      assertTrue(ps.getSourcePath().contains(root.resolve("test")));
+      assertTrue(ps.getSourceClassFullQualifiedNames().contains("b.B"));
+
+      ps.invalidate();
+      assertNotSame(model, ps.getProjectModel());
+      ps.setSourcePath(Collections.singleton(root.resolve("src")));
+      assertEquals(Collections.singleton(root.resolve("src")), ps.getSourcePath());
+    } finally {
+      FileUtils.deleteDirectory(root.toFile());
+    }
+  }
+
+  @Test
+  public void testBuildFileChange() throws IOException {
+    Path root = Files.createTempDirectory("java-project-service").toRealPath();
+    try {
+      Path a = root.resolve("src/a/A.java");
+      Files.createDirectories(a.getParent());
+      Files.write(a, "package a;\nclass A {}".getBytes(StandardCharsets.UTF_8));
+      Path bin = Files.createDirectories(root.resolve("bin"));
+      JavaProjectService ps = new JavaProjectService();
+      ps.setRootPath(root);
+      assertTrue(ps.getClassPath().isEmpty());
+      assertTrue(ps.getWatchedBuildFiles().contains("**/.classpath"));
+
+      // the project becomes an Eclipse project.
+      Path classPath = root.resolve(".classpath");
+      Files.write(
+          classPath,
+          "<classpath><classpathentry kind=\"output\" path=\"bin\"/></classpath>"
+              .getBytes(StandardCharsets.UTF_8));
+      ps.didChangeWatchedFiles(
+          new DidChangeWatchedFilesParams(
+              Collections.singletonList(
+                  new FileEvent(classPath.toUri().toString(), FileChangeType.Created))));
+      // the sources don't wait for the build files.
+      assertEquals(Collections.singleton(root.resolve("src")), ps.getSourcePath());
+      assertFalse(ps.getProjectModelAsync().isDone());
+      // the class path is computed again once the build files stopped changing.
+      assertEquals(Collections.singleton(bin), ps.getClassPath());
+      assertEquals("EclipseJava", ps.getProjectType());
+      assertEquals(Collections.singleton(root.resolve("src")), ps.getSourcePath());
+    } finally {
+      FileUtils.deleteDirectory(root.toFile());
+    }
+  }
+
   @Ignore // This test failed on CI, but passed locally
   public void testGradleProject() throws IOException, InterruptedException {
     Path root = Paths.get("src/test/resources/DemoProjectGradle/").toAbsolutePath();
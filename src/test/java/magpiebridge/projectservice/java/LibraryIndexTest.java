@@ -0,0 +1,161 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LibraryIndexTest {
+
+  private Path dir;
+  private Path a;
+  private Path b;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("library-index");
+    a =
+        jar(
+            "a.jar",
+            "p/A.class",
+            "p/A$Inner.class",
+            "p/package-info.class",
+            "q/Q.class",
+            "META-INF/MANIFEST.MF",
+            "META-INF/versions/9/p/Nine.class",
+            "module-info.class");
+    b = jar("b.jar", "p/A.class", "p/B.class", "r/R.class");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir.toFile());
+  }
+
+  @Test
+  public void testReadCentralDirectory() throws IOException {
+    assertEquals(
+        Arrays.asList("p/A.class", "p/B.class", "r/R.class"), LibraryIndex.readCentralDirectory(b));
+  }
+
+  @Test
+  public void testIndex() {
+    LibraryIndex index = LibraryIndex.of(Arrays.asList(a, b, dir, dir.resolve("missing.jar")));
+    assertEquals(new LinkedHashSet<>(Arrays.asList(a, b)), index.getJars());
+    assertEquals(new LinkedHashSet<>(Arrays.asList("p", "q", "r")), index.getPackages());
+    assertEquals(new LinkedHashSet<>(Arrays.asList(a, b)), index.getJarsOfPackage("p"));
+    assertEquals(Optional.of(a), index.getJarOfClass("p.A"));
+    assertEquals(Optional.of(b), index.getJarOfClass("p.B"));
+    assertEquals(Optional.of(a), index.getJarOfClass("p.Nine"));
+    assertEquals(Optional.empty(), index.getJarOfClass("p.package-info"));
+    assertEquals(Collections.singleton(a), index.getJarsReferencedBy(Arrays.asList("p.A.Inner")));
+    assertEquals(
+        Collections.singleton(b), index.getJarsReferencedBy(Arrays.asList("r.R.member", "x.Y")));
+    assertEquals(
+        new LinkedHashSet<>(Arrays.asList(a, b)),
+        index.getJarsReferencedBy(Arrays.asList("r.*", "q.Q")));
+  }
+
+  @Test
+  public void testCachedContent() throws IOException {
+    Set<String> classes = LibraryIndex.classesOf(b);
+    assertSame(classes, LibraryIndex.classesOf(b));
+    b = jar("b.jar", "p/A.class", "s/S.class");
+    Files.setLastModifiedTime(b, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+    Set<String> changed = LibraryIndex.classesOf(b);
+    assertNotSame(classes, changed);
+    assertEquals(new LinkedHashSet<>(Arrays.asList("p.A", "s.S")), changed);
+  }
+
+  @Test
+  public void testJarsNeeded() throws IOException {
+    // c extends a class of d, which references a class of e in a method descriptor.
+    Path c = classJar("c.jar", "c/C", "d/D");
+    Path d = classJar("d.jar", "d/D", "java/lang/Object", "(Le/E;)V");
+    Path e = classJar("e.jar", "e/E", "java/lang/Object");
+    Path f = classJar("f.jar", "f/F", "c/C");
+    LibraryIndex index = LibraryIndex.of(Arrays.asList(a, c, d, e, f));
+    assertEquals(Collections.singleton(c), index.getJarsReferencedBy(Arrays.asList("c.C")));
+    assertEquals(
+        new LinkedHashSet<>(Arrays.asList(c, d, e)),
+        index.getJarsNeededBy(Arrays.asList("c.C", "x.Y")));
+    // the broken class files of a don't reference anything.
+    assertEquals(Collections.singleton(a), index.getJarsNeededBy(Arrays.asList("q.Q")));
+  }
+
+  /** Makes a class file with the given super class and optionally a descriptor constant. */
+  private static byte[] classFile(String name, String superName, String... descriptors)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xcafebabe);
+    out.writeShort(0);
+    out.writeShort(52);
+    out.writeShort(5 + descriptors.length);
+    out.writeByte(1);
+    out.writeUTF(name);
+    out.writeByte(7);
+    out.writeShort(1);
+    out.writeByte(1);
+    out.writeUTF(superName);
+    out.writeByte(7);
+    out.writeShort(3);
+    for (String descriptor : descriptors) {
+      out.writeByte(1);
+      out.writeUTF(descriptor);
+    }
+    // access flags, this and super class, no interfaces, fields, methods or attributes.
+    out.writeShort(0x21);
+    out.writeShort(2);
+    out.writeShort(4);
+    out.writeShort(0);
+    out.writeShort(0);
+    out.writeShort(0);
+    out.writeShort(0);
+    return bytes.toByteArray();
+  }
+
+  /** Makes a jar with one class, see {@link #classFile(String, String, String...)}. */
+  private Path classJar(String name, String className, String superName, String... descriptors)
+      throws IOException {
+    Path jar = dir.resolve(name);
+    try (OutputStream out = Files.newOutputStream(jar);
+        ZipOutputStream zip = new ZipOutputStream(out)) {
+      zip.putNextEntry(new ZipEntry(className + ".class"));
+      zip.write(classFile(className, superName, descriptors));
+      zip.closeEntry();
+    }
+    return jar;
+  }
+
+  private Path jar(String name, String... entries) throws IOException {
+    Path jar = dir.resolve(name);
+    try (OutputStream out = Files.newOutputStream(jar);
+        ZipOutputStream zip = new ZipOutputStream(out)) {
+      for (String entry : entries) {
+        zip.putNextEntry(new ZipEntry(entry));
+        zip.write(new byte[] {(byte) 0xca, (byte) 0xfe});
+        zip.closeEntry();
+      }
+    }
+    return jar;
+  }
+}
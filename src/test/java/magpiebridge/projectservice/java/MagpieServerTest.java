@@ -1,15 +1,29 @@
 package magpiebridge.projectservice.java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.ibm.wala.classLoader.Module;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import magpiebridge.core.AnalysisConsumer;
+import magpiebridge.core.IProjectService;
 import magpiebridge.core.MagpieServer;
+import magpiebridge.core.ServerAnalysis;
 import magpiebridge.core.ServerConfiguration;
+import org.eclipse.lsp4j.DidChangeTextDocumentParams;
 import org.eclipse.lsp4j.DidOpenTextDocumentParams;
 import org.eclipse.lsp4j.InitializeParams;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.eclipse.lsp4j.TextDocumentItem;
+import org.eclipse.lsp4j.VersionedTextDocumentIdentifier;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.junit.Test;
 
 public class MagpieServerTest {
@@ -38,4 +52,140 @@ public class MagpieServerTest {
         Paths.get("src/test/resources/CogniCryptDemoExample/src/main/java").toAbsolutePath();
     assertEquals(expected, service.getSourcePath().iterator().next());
   }
+
+  @Test
+  public void testSkipUnchangedSnapshot() {
+    MagpieServer server = new MagpieServer(new ServerConfiguration());
+    AtomicInteger runs = new AtomicInteger();
+    ServerAnalysis analysis =
+        new ServerAnalysis() {
+          @Override
+          public String source() {
+            return "Counter";
+          }
+
+          @Override
+          public void analyze(
+              Collection<? extends Module> files, AnalysisConsumer consumer, boolean rerun) {
+            runs.incrementAndGet();
+            consumer.consume(Collections.emptyList(), source());
+          }
+
+          @Override
+          public boolean reusesResults() {
+            return true;
+          }
+        };
+    server.addAnalysis(Either.forLeft(analysis), "java");
+    AtomicInteger otherRuns = new AtomicInteger();
+    ServerAnalysis other =
+        new ServerAnalysis() {
+          @Override
+          public String source() {
+            return "Other";
+          }
+
+          @Override
+          public void analyze(
+              Collection<? extends Module> files, AnalysisConsumer consumer, boolean rerun) {
+            // the results aren't consumed under the source, so the runs can't be reused.
+            otherRuns.incrementAndGet();
+            consumer.consume(Collections.emptyList(), "OtherName");
+          }
+
+          @Override
+          public boolean reusesResults() {
+            return true;
+          }
+        };
+    server.addAnalysis(Either.forLeft(other), "java");
+    String uri = "file:///tmp/magpie/Skip.java";
+    server
+        .getSourceFileManager("java")
+        .didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 0, "class A {}")));
+    server.doAnalysis("java", true);
+    server.doAnalysis("java", true);
+    assertEquals(1, runs.get());
+    assertEquals(2, otherRuns.get());
+    // an edit which doesn't change the text doesn't trigger a run.
+    TextDocumentContentChangeEvent change = new TextDocumentContentChangeEvent("class A {}");
+    server
+        .getSourceFileManager("java")
+        .didChange(
+            new DidChangeTextDocumentParams(
+                new VersionedTextDocumentIdentifier(uri, 1), Arrays.asList(change)));
+    server.doAnalysis("java", true);
+    assertEquals(1, runs.get());
+    change = new TextDocumentContentChangeEvent("class B {}");
+    server
+        .getSourceFileManager("java")
+        .didChange(
+            new DidChangeTextDocumentParams(
+                new VersionedTextDocumentIdentifier(uri, 2), Arrays.asList(change)));
+    server.doAnalysis("java", true);
+    assertEquals(2, runs.get());
+    server.invalidateAnalysisResults();
+    server.doAnalysis("java", true);
+    assertEquals(3, runs.get());
+    server.getSourceFileManager("java").cleanUp();
+  }
+
+  @Test
+  public void testLoadProjectServicesOnInitialized() {
+    MagpieServer server = new MagpieServer(new ServerConfiguration());
+    AtomicInteger loads = new AtomicInteger();
+    CompletableFuture<Void> loaded = new CompletableFuture<>();
+    IProjectService service =
+        new IProjectService() {
+          @Override
+          public void setRootPath(Path rootPath) {}
+
+          @Override
+          public String getProjectType() {
+            return "Test";
+          }
+
+          @Override
+          public CompletableFuture<?> loadAsync() {
+            loads.incrementAndGet();
+            return loaded;
+          }
+        };
+    server.addProjectService("java", service);
+    server.addProjectService("kotlin", service);
+    AtomicInteger runs = new AtomicInteger();
+    server.addAnalysis(
+        Either.forLeft(
+            new ServerAnalysis() {
+              @Override
+              public String source() {
+                return "AfterLoad";
+              }
+
+              @Override
+              public void analyze(
+                  Collection<? extends Module> files, AnalysisConsumer consumer, boolean rerun) {
+                assertTrue(loaded.isDone());
+                runs.incrementAndGet();
+              }
+            }),
+        "java");
+    InitializeParams param = new InitializeParams();
+    param.setRootUri(Paths.get("src/test/resources/DemoProjectMaven/").toUri().toString());
+    server.initialize(param);
+    server.initialized(null);
+    // the analysis runs after the loading which was started in initialized(), without blocking.
+    CompletableFuture<Void> first = server.doAnalysisAsync("java", true);
+    CompletableFuture<Void> second = server.doAnalysisAsync("java", true);
+    assertFalse(first.isDone());
+    assertEquals(0, runs.get());
+    loaded.complete(null);
+    second.join();
+    assertTrue(first.isDone());
+    assertEquals(2, runs.get());
+    assertEquals(1, loads.get());
+    // once loaded, the analysis runs right away.
+    assertTrue(server.doAnalysisAsync("java", true).isDone());
+    assertEquals(3, runs.get());
+  }
 }
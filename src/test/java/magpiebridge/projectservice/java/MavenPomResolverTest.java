@@ -0,0 +1,257 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MavenPomResolverTest {
+
+  private Path temp;
+  private Path repository;
+  private Path project;
+
+  @Before
+  public void setUp() throws IOException {
+    temp = Files.createTempDirectory("maven-resolver");
+    repository = Files.createDirectories(temp.resolve("repository"));
+    project = Files.createDirectories(temp.resolve("project"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(temp.toFile());
+  }
+
+  @Test
+  public void testTransitiveDependencies() throws IOException {
+    install("org.example", "parent", "1", "<packaging>pom</packaging>", managed("b", "2"));
+    install("org.example", "bom", "1", "<packaging>pom</packaging>", managed("c", "3"));
+    install("org.example", "b", "1", "", "");
+    install("org.example", "b", "2", "", "");
+    install("org.example", "c", "3", "", "");
+    install("org.example", "d", "1", "", "");
+    install("org.example", "e", "1", "", "");
+    install(
+        "org.example",
+        "a",
+        "1",
+        parent("parent", "1"),
+        "<dependencies>"
+            + dependency("b", "", "")
+            + dependency("c", "", "")
+            + dependency("d", "1", "<optional>true</optional>")
+            + dependency("e", "1", "<scope>test</scope>")
+            + "</dependencies>"
+            + "<dependencyManagement><dependencies>"
+            + "<dependency><groupId>org.example</groupId><artifactId>bom</artifactId>"
+            + "<version>1</version><type>pom</type><scope>import</scope></dependency>"
+            + "</dependencies></dependencyManagement>");
+    install(
+        "org.example",
+        "f",
+        "1",
+        "",
+        "<dependencies>" + dependency("b", "1", "") + "</dependencies>");
+    write(
+        project.resolve("pom.xml"),
+        "<groupId>org.example</groupId><artifactId>project</artifactId><version>1</version>"
+            + "<properties><a.version>1</a.version></properties>"
+            + "<dependencies>"
+            + dependency("a", "${a.version}", "")
+            + dependency(
+                "f",
+                "1",
+                "<exclusions><exclusion><groupId>org.example</groupId>"
+                    + "<artifactId>b</artifactId></exclusion></exclusions>")
+            + "</dependencies>");
+
+    Optional<Set<Artifact>> resolved =
+        new MavenPomResolver(repository).resolve(project.resolve("pom.xml"));
+    assertTrue(resolved.isPresent());
+    // b is managed by the parent of a, c by the BOM imported by a, d is optional and e a test
+    // dependency of a, and b is excluded from f.
+    Set<Artifact> expected =
+        new HashSet<>(
+            Arrays.asList(
+                new Artifact("org.example", "a", "1"),
+                new Artifact("org.example", "f", "1"),
+                new Artifact("org.example", "b", "2"),
+                new Artifact("org.example", "c", "3")));
+    assertEquals(expected, resolved.get());
+  }
+
+  @Test
+  public void testMissingJar() throws IOException {
+    write(
+        project.resolve("pom.xml"),
+        "<groupId>org.example</groupId><artifactId>project</artifactId><version>1</version>"
+            + "<dependencies>"
+            + dependency("missing", "1", "")
+            + "</dependencies>");
+    assertFalse(new MavenPomResolver(repository).resolve(project.resolve("pom.xml")).isPresent());
+  }
+
+  @Test
+  public void testModules() throws IOException {
+    install("org.example", "lib", "1", "", "");
+    install("org.example", "other", "1", "", "");
+    write(
+        project.resolve("pom.xml"),
+        "<groupId>org.example</groupId><artifactId>parent</artifactId><version>1</version>"
+            + "<packaging>pom</packaging><modules><module>core</module><module>app</module></modules>");
+    Path core = Files.createDirectories(project.resolve("core"));
+    write(
+        core.resolve("pom.xml"),
+        parent("parent", "1")
+            + "<artifactId>core</artifactId>"
+            + "<dependencies>"
+            + dependency("lib", "1", "")
+            + "</dependencies>");
+    Path app = Files.createDirectories(project.resolve("app"));
+    write(
+        app.resolve("pom.xml"),
+        parent("parent", "1")
+            + "<artifactId>app</artifactId>"
+            + "<dependencies>"
+            + dependency("core", "1", "")
+            + dependency("other", "1", "")
+            + "</dependencies>"
+            + "<build><sourceDirectory>src/java</sourceDirectory></build>");
+    Path coreClasses = Files.createDirectories(core.resolve("target/classes"));
+    Path coreSources = Files.createDirectories(core.resolve("src/main/java"));
+    Path appClasses = Files.createDirectories(app.resolve("target/classes"));
+    Path appSources = Files.createDirectories(app.resolve("src/java"));
+
+    Optional<List<JavaModule>> modules =
+        new MavenPomResolver(repository).resolveModules(project.resolve("pom.xml"));
+    assertTrue(modules.isPresent());
+    // the parent has no code.
+    assertEquals(2, modules.get().size());
+    JavaModule coreModule = modules.get().get(0);
+    assertEquals("org.example:core", coreModule.getName());
+    assertEquals(Collections.singleton(coreSources), coreModule.getSourcePath());
+    assertEquals(
+        new HashSet<>(Arrays.asList(coreClasses, jar("lib", "1"))), coreModule.getClassPath());
+    JavaModule appModule = modules.get().get(1);
+    assertEquals(Collections.singleton(appSources), appModule.getSourcePath());
+    assertEquals(Collections.singleton("org.example:core"), appModule.getModuleDependencies());
+    // core is resolved to its classes, lib is a transitive dependency.
+    assertEquals(
+        new HashSet<>(Arrays.asList(appClasses, coreClasses, jar("lib", "1"), jar("other", "1"))),
+        appModule.getClassPath());
+
+    JavaProjectModel model =
+        new JavaProjectModel(
+            Optional.of(project),
+            Collections.emptySet(),
+            Collections.emptySet(),
+            Collections.emptySet(),
+            Collections.emptySet(),
+            JavaProjectType.Maven,
+            modules.get());
+    assertEquals(appModule, model.findModule(appSources.resolve("A.java")).get());
+    assertFalse(model.findModule(project.resolve("B.java")).isPresent());
+  }
+
+  @Test
+  public void testVersions() {
+    assertTrue(MavenPomResolver.compareVersions("1.8.0_292", "11") < 0);
+    assertTrue(MavenPomResolver.compareVersions("1.0-rc1", "1.0") < 0);
+    assertTrue(MavenPomResolver.compareVersions("1.0.0", "1.0") == 0);
+    assertTrue(MavenPomResolver.compareVersions("3.10.0", "3.9.900") > 0);
+    assertTrue(MavenPomResolver.inRange("[3.13.0,4.0.0)", "3.24.300"));
+    assertFalse(MavenPomResolver.inRange("[3.13.0,4.0.0)", "4.0.0"));
+    assertTrue(MavenPomResolver.inRange("(,1.0],[1.2,)", "1.5"));
+    assertTrue(MavenPomResolver.isJdkActive("1.8", "1.8.0_292"));
+    assertFalse(MavenPomResolver.isJdkActive("!1.8", "1.8.0_292"));
+  }
+
+  @Test
+  public void testDemoProjectForFiveColon() {
+    Path root = Paths.get("src/test/resources/DemoProjectForFiveColon");
+    Path m2 = Paths.get(System.getProperty("user.home"), ".m2", "repository");
+    Optional<Set<Artifact>> resolved = new MavenPomResolver(m2).resolve(root.resolve("pom.xml"));
+    if (resolved.isPresent()) {
+      // the jars are downloaded, e.g. by another test.
+      Set<Artifact> expected =
+          new HashSet<>(
+              Arrays.asList(
+                  new Artifact("org.openjfx", "javafx-base", "17-ea+8", "win"),
+                  new Artifact("org.openjfx", "javafx-base", "17-ea+8", "mac"),
+                  new Artifact("org.openjfx", "javafx-base", "17-ea+8", "linux")));
+      assertEquals(expected, resolved.get());
+    }
+  }
+
+  private Path jar(String artifactId, String version) {
+    return repository
+        .resolve("org/example")
+        .resolve(artifactId)
+        .resolve(version)
+        .resolve(artifactId + "-" + version + ".jar");
+  }
+
+  private void install(String groupId, String artifactId, String version, String head, String body)
+      throws IOException {
+    Path dir = repository.resolve(groupId.replace('.', '/')).resolve(artifactId).resolve(version);
+    Files.createDirectories(dir);
+    write(
+        dir.resolve(artifactId + "-" + version + ".pom"),
+        head
+            + "<groupId>"
+            + groupId
+            + "</groupId><artifactId>"
+            + artifactId
+            + "</artifactId><version>"
+            + version
+            + "</version>"
+            + body);
+    Files.createFile(dir.resolve(artifactId + "-" + version + ".jar"));
+  }
+
+  private static void write(Path pom, String content) throws IOException {
+    Files.write(
+        pom,
+        ("<project><modelVersion>4.0.0</modelVersion>" + content + "</project>")
+            .getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String parent(String artifactId, String version) {
+    return "<parent><groupId>org.example</groupId><artifactId>"
+        + artifactId
+        + "</artifactId><version>"
+        + version
+        + "</version></parent>";
+  }
+
+  private static String managed(String artifactId, String version) {
+    return "<dependencyManagement><dependencies>"
+        + dependency(artifactId, version, "")
+        + "</dependencies></dependencyManagement>";
+  }
+
+  private static String dependency(String artifactId, String version, String more) {
+    return "<dependency><groupId>org.example</groupId><artifactId>"
+        + artifactId
+        + "</artifactId>"
+        + (version.isEmpty() ? "" : "<version>" + version + "</version>")
+        + more
+        + "</dependency>";
+  }
+}
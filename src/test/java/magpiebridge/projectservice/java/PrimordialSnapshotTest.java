@@ -0,0 +1,130 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.ibm.wala.classLoader.ModuleEntry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import magpiebridge.file.PrimordialSnapshot;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrimordialSnapshotTest {
+
+  private Path dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("primordial-snapshot");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir.toFile());
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Path rt = jar("rt.jar", "java/lang/Object.class", "object", "META-INF/MANIFEST.MF", "m");
+    Path ext = jar("ext.jar", "java/lang/Object.class", "other", "javax/X.class", "x");
+    List<Path> jars = Arrays.asList(rt, ext);
+    Path cache = dir.resolve("cache");
+    PrimordialSnapshot snapshot = PrimordialSnapshot.of(jars, cache).get();
+    assertTrue(Files.isRegularFile(snapshot.getFile()));
+    assertSame(snapshot, PrimordialSnapshot.of(jars, cache).get());
+
+    Map<String, String> classes = new LinkedHashMap<>();
+    for (Iterator<? extends ModuleEntry> it = snapshot.getEntries(); it.hasNext(); ) {
+      ModuleEntry entry = it.next();
+      assertTrue(entry.isClassFile());
+      try (InputStream in = entry.getInputStream()) {
+        classes.put(entry.getClassName(), IOUtils.toString(in, StandardCharsets.UTF_8));
+      }
+    }
+    // the first jar wins, like in the loader.
+    Map<String, String> expected = new LinkedHashMap<>();
+    expected.put("java/lang/Object", "object");
+    expected.put("javax/X", "x");
+    assertEquals(expected, classes);
+
+    Path crashed = Files.createFile(cache.resolve("crashed.pack1.tmp"));
+    Files.setLastModifiedTime(crashed, FileTime.fromMillis(System.currentTimeMillis() - 7_200_000));
+    Path writing = Files.createFile(cache.resolve("writing.pack2.tmp"));
+    jar("ext.jar", "javax/Y.class", "y");
+    Files.setLastModifiedTime(ext, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+    PrimordialSnapshot changed = PrimordialSnapshot.of(jars, cache).get();
+    assertNotEquals(snapshot.getFile(), changed.getFile());
+    // the pack of the old jars and the left over temporary file are evicted.
+    assertFalse(Files.exists(snapshot.getFile()));
+    assertFalse(Files.exists(crashed));
+    assertTrue(Files.exists(writing));
+    ModuleEntry last = null;
+    for (Iterator<? extends ModuleEntry> it = changed.getEntries(); it.hasNext(); ) {
+      last = it.next();
+    }
+    try (InputStream in = last.getInputStream()) {
+      assertArrayEquals("y".getBytes(StandardCharsets.UTF_8), IOUtils.toByteArray(in));
+    }
+  }
+
+  @Test
+  public void testBrokenPack() throws Exception {
+    List<Path> jars = Arrays.asList(jar("rt.jar", "java/lang/Object.class", "object"));
+    Path packFile = PrimordialSnapshot.of(jars, dir.resolve("first")).get().getFile();
+    // a truncated pack is deleted and written again.
+    Path truncated = dir.resolve("truncated").resolve(packFile.getFileName());
+    Files.createDirectories(truncated.getParent());
+    Files.write(truncated, new byte[] {0x4d, 0x42});
+    PrimordialSnapshot rewritten = PrimordialSnapshot.of(jars, truncated.getParent()).get();
+    assertEquals(Files.size(packFile), Files.size(rewritten.getFile()));
+
+    // a pack which couldn't be written is tried again.
+    Path blocked = dir.resolve("blocked");
+    Files.createFile(blocked);
+    CompletableFuture<PrimordialSnapshot> failed = PrimordialSnapshot.of(jars, blocked);
+    try {
+      failed.get();
+      fail("the pack can't be written into a file");
+    } catch (ExecutionException e) {
+      // expected
+    }
+    Files.delete(blocked);
+    assertTrue(Files.isRegularFile(PrimordialSnapshot.of(jars, blocked).get().getFile()));
+  }
+
+  private Path jar(String name, String... entries) throws IOException {
+    Path jar = dir.resolve(name);
+    try (OutputStream out = Files.newOutputStream(jar);
+        ZipOutputStream zip = new ZipOutputStream(out)) {
+      for (int i = 0; i < entries.length; i += 2) {
+        zip.putNextEntry(new ZipEntry(entries[i]));
+        zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+      }
+    }
+    return jar;
+  }
+}
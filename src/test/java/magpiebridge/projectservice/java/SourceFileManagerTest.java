@@ -1,22 +1,55 @@
 package magpiebridge.projectservice.java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import com.ibm.wala.classLoader.Module;
 import com.ibm.wala.classLoader.SourceFileModule;
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import magpiebridge.file.InMemorySourceModule;
+import magpiebridge.file.PieceTable;
 import magpiebridge.file.SourceFileManager;
+import magpiebridge.file.SourceFileSnapshot;
 import magpiebridge.file.VersionedSourceFile;
+import magpiebridge.file.WorkspaceSourceIndex;
+import magpiebridge.util.SourceCodeInfo;
+import magpiebridge.util.SourceCodePositionFinder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.lsp4j.DidChangeTextDocumentParams;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.DidCloseTextDocumentParams;
+import org.eclipse.lsp4j.DidOpenTextDocumentParams;
+import org.eclipse.lsp4j.FileChangeType;
+import org.eclipse.lsp4j.FileEvent;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.eclipse.lsp4j.TextDocumentIdentifier;
+import org.eclipse.lsp4j.TextDocumentItem;
+import org.eclipse.lsp4j.VersionedTextDocumentIdentifier;
 import org.junit.Test;
 
 public class SourceFileManagerTest {
 
   @Test
   public void testGenerateSourceFileModule() {
-    SourceFileManager m = new SourceFileManager("java", new HashMap<>());
+    Map<String, String> serverClientUri = new HashMap<>();
+    SourceFileManager m = new SourceFileManager("java", serverClientUri);
     String uri =
         "file:///E:/MagpieBridge/src/test/resources/CogniCryptDemoExample/src/main/java/example/ConstraintErrorExample.java";
     String text =
@@ -25,10 +58,22 @@ public class SourceFileManagerTest {
     m.generateSourceFileModule(URI.create(uri), f1);
     Map<URI, SourceFileModule> modules = m.getSourceFileModules();
     assertEquals(1, modules.size());
+    File shadowFile = modules.get(URI.create(uri)).getFile();
+    assertTrue(
+        shadowFile
+            .toPath()
+            .endsWith(
+                "E/MagpieBridge/src/test/resources/CogniCryptDemoExample/src/main/java/example/ConstraintErrorExample.java"));
+    int mappings = serverClientUri.size();
     VersionedSourceFile f2 = new VersionedSourceFile(text, 1);
     m.generateSourceFileModule(URI.create(uri), f2);
     modules = m.getSourceFileModules();
     assertEquals(1, modules.size());
+    // the shadow file is overwritten in place and its mapping is registered only once.
+    assertEquals(shadowFile, modules.get(URI.create(uri)).getFile());
+    assertEquals(mappings, serverClientUri.size());
+    m.cleanUp();
+    assertFalse(shadowFile.exists());
   }
 
   @Test
@@ -44,4 +89,211 @@ public class SourceFileManagerTest {
       e.printStackTrace();
     }
   }
+
+  @Test
+  public void testIncrementalChange() {
+    SourceFileManager m = new SourceFileManager("java", new HashMap<>());
+    String uri = "file:///tmp/magpie/Foo.java";
+    String text = "class Foo {\n  int x;\n}\n";
+    m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 0, text)));
+    TextDocumentContentChangeEvent insert =
+        new TextDocumentContentChangeEvent(
+            new Range(new Position(1, 7), new Position(1, 7)), 0, " = 1");
+    TextDocumentContentChangeEvent delete =
+        new TextDocumentContentChangeEvent(
+            new Range(new Position(0, 10), new Position(1, 2)), 4, "");
+    VersionedTextDocumentIdentifier doc = new VersionedTextDocumentIdentifier(uri, 1);
+    m.didChange(new DidChangeTextDocumentParams(doc, Arrays.asList(insert, delete)));
+    VersionedSourceFile file = m.getVersionedFiles().get(URI.create(uri));
+    assertEquals(1, file.getVersion());
+    assertEquals("class Foo int x = 1;\n}\n", file.getText());
+  }
+
+  @Test
+  public void testInMemorySourceModules() throws IOException {
+    SourceFileManager m = new SourceFileManager("java", new HashMap<>());
+    String uri = "file:///tmp/magpie/Bar.java";
+    m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 0, "class Bar {}")));
+    TextDocumentContentChangeEvent change =
+        new TextDocumentContentChangeEvent(
+            new Range(new Position(0, 11), new Position(0, 11)), 0, " int y; ");
+    VersionedTextDocumentIdentifier doc = new VersionedTextDocumentIdentifier(uri, 1);
+    m.didChange(new DidChangeTextDocumentParams(doc, Arrays.asList(change)));
+    InMemorySourceModule module = m.getSourceModules().get(URI.create(uri));
+    assertEquals("class Bar { int y; }", IOUtils.toString(module.getInputReader()));
+    SourceFileModule file = m.getSourceFileModules().get(URI.create(uri));
+    assertEquals("class Bar { int y; }", FileUtils.readFileToString(file.getFile(), "UTF-8"));
+    m.cleanUp();
+    assertFalse(file.getFile().exists());
+  }
+
+  @Test
+  public void testPieceTable() {
+    Random random = new Random(42);
+    StringBuilder expected = new StringBuilder("first line\nsecond line\r\nthird line");
+    PieceTable table = PieceTable.of(expected.toString());
+    for (int i = 0; i < 2000; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = Math.min(expected.length(), start + random.nextInt(5));
+      String insert = random.nextInt(4) == 0 ? "\n" : Integer.toString(i);
+      expected.replace(start, end, insert);
+      table = table.replace(start, end, insert);
+    }
+    String text = expected.toString();
+    assertEquals(text, table.getText());
+    String[] lines = text.split("\n", -1);
+    assertEquals(lines.length, table.getLineCount());
+    int offset = 0;
+    for (int line = 0; line < lines.length; line++) {
+      assertEquals(offset, table.lineStartOffset(line));
+      assertEquals(offset, table.offsetAt(line, 0));
+      assertEquals(line, table.lineAt(offset));
+      assertEquals(lines[line].replace("\r", ""), table.getLine(line).replace("\r", ""));
+      offset += lines[line].length() + 1;
+    }
+  }
+
+  @Test
+  public void testOpenDocumentLookup() throws IOException {
+    SourceFileManager m = new SourceFileManager("java", new HashMap<>());
+    String uri = "file:///tmp/magpie/Baz.java";
+    String text = "class Baz {\n    int z; // field\n}\n";
+    m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 0, text)));
+    // different spellings of the same file URL find the open document.
+    assertEquals(
+        text, SourceFileManager.getOpenDocument(new URL("file:/tmp/magpie/Baz.java")).getText());
+    SourceCodeInfo info = SourceCodePositionFinder.findCode(new File("/tmp/magpie/Baz.java"), 2);
+    assertEquals("int z;", info.code);
+    assertEquals(new Range(new Position(1, 4), new Position(1, 10)), info.range);
+    VersionedSourceFile file = m.getVersionedFiles().get(URI.create(uri));
+    assertEquals(3, file.lineAt(file.offsetAt(3, 0)));
+    assertEquals(text.indexOf("int"), file.offsetAt(1, 4));
+  }
+
+  @Test
+  public void testCloseAndReopen() {
+    SourceFileManager m = new SourceFileManager("java", new HashMap<>());
+    String uri = "file:///tmp/magpie/Qux.java";
+    String text = "class Qux {}";
+    m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 0, text)));
+    File shadowFile = m.getSourceFileModules().get(URI.create(uri)).getFile();
+    long modified = shadowFile.lastModified();
+    m.didClose(new DidCloseTextDocumentParams(new TextDocumentIdentifier(uri)));
+    assertTrue(m.getVersionedFiles().isEmpty());
+    assertTrue(m.getSourceModules().isEmpty());
+    assertTrue(m.getSourceFileModules().isEmpty());
+    // a reopened file with the same text reuses its shadow file.
+    m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 3, text)));
+    assertEquals(3, m.getVersionedFiles().get(URI.create(uri)).getVersion());
+    assertEquals(shadowFile, m.getSourceFileModules().get(URI.create(uri)).getFile());
+    assertEquals(modified, shadowFile.lastModified());
+
+    // closed files beyond the limit are evicted with their shadow files.
+    String large = String.join("", Collections.nCopies(3 * 1024 * 1024, "x"));
+    String other = "file:///tmp/magpie/Large.java";
+    m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 4, large)));
+    m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(other, "java", 0, large)));
+    m.getSourceFileModules();
+    long heap = m.estimatedHeapUsage();
+    assertTrue(heap >= 2L * 2 * large.length());
+    m.didClose(new DidCloseTextDocumentParams(new TextDocumentIdentifier(uri)));
+    m.didClose(new DidCloseTextDocumentParams(new TextDocumentIdentifier(other)));
+    assertFalse(shadowFile.exists());
+    assertTrue(m.estimatedHeapUsage() < heap);
+    m.cleanUp();
+  }
+
+  @Test
+  public void testChangeAfterClose() {
+    SourceFileManager m = new SourceFileManager("java", new HashMap<>());
+    String uri = "file:///tmp/magpie/Late.java";
+    m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 0, "class Late {}")));
+    m.didClose(new DidCloseTextDocumentParams(new TextDocumentIdentifier(uri)));
+    // a change or close which arrives late is ignored.
+    TextDocumentContentChangeEvent change = new TextDocumentContentChangeEvent("class Late { }");
+    m.didChange(
+        new DidChangeTextDocumentParams(
+            new VersionedTextDocumentIdentifier(uri, 1), Arrays.asList(change)));
+    m.didClose(new DidCloseTextDocumentParams(new TextDocumentIdentifier(uri)));
+    assertTrue(m.getVersionedFiles().isEmpty());
+    assertTrue(m.getSourceFileModules().isEmpty());
+  }
+
+  @Test
+  public void testWorkspaceSourceIndex() throws IOException {
+    Path root = Files.createTempDirectory("magpie_index_test");
+    try {
+      Path a = root.resolve("a/A.java");
+      Path b = root.resolve("b/B.java");
+      Files.createDirectories(a.getParent());
+      Files.createDirectories(b.getParent());
+      Files.write(a, "class A {}".getBytes("UTF-8"));
+      Files.write(b, "class B {}".getBytes("UTF-8"));
+      Files.write(root.resolve("a/notes.txt"), "notes".getBytes("UTF-8"));
+      // dependencies and ignored files aren't indexed.
+      Path dependency = root.resolve("node_modules/d/D.java");
+      Files.createDirectories(dependency.getParent());
+      Files.write(dependency, "class D {}".getBytes("UTF-8"));
+      Files.write(root.resolve(".gitignore"), "Generated*.java\n".getBytes("UTF-8"));
+      Files.write(root.resolve("a/Generated1.java"), "class Generated1 {}".getBytes("UTF-8"));
+      SourceFileManager m = new SourceFileManager("java", new HashMap<>());
+      WorkspaceSourceIndex index = new WorkspaceSourceIndex(m, () -> Collections.singleton(root));
+      assertEquals(2, index.getSourceModules().size());
+
+      // the opened file is served from memory instead of the file on disk.
+      String uri = a.toUri().toString();
+      m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 0, "class A { }")));
+      Collection<Module> modules = index.getSourceModules();
+      assertEquals(2, modules.size());
+      assertTrue(modules.contains(m.getSourceModules().get(URI.create(uri))));
+
+      Path c = root.resolve("b/C.java");
+      Files.write(c, "class C {}".getBytes("UTF-8"));
+      index.didChangeWatchedFiles(
+          new DidChangeWatchedFilesParams(
+              Arrays.asList(new FileEvent(c.toUri().toString(), FileChangeType.Created))));
+      assertEquals(3, index.getSourceFileModules().size());
+      Path generated = root.resolve("b/Generated2.java");
+      Files.write(generated, "class Generated2 {}".getBytes("UTF-8"));
+      index.didChangeWatchedFiles(
+          new DidChangeWatchedFilesParams(
+              Arrays.asList(new FileEvent(generated.toUri().toString(), FileChangeType.Created))));
+      assertEquals(3, index.getSourceFileModules().size());
+      FileUtils.deleteDirectory(b.getParent().toFile());
+      index.didChangeWatchedFiles(
+          new DidChangeWatchedFilesParams(
+              Arrays.asList(
+                  new FileEvent(b.getParent().toUri().toString(), FileChangeType.Deleted))));
+      assertEquals(1, index.getSourceFileModules().size());
+      m.cleanUp();
+    } finally {
+      FileUtils.deleteDirectory(root.toFile());
+    }
+  }
+
+  @Test
+  public void testSnapshots() throws IOException {
+    SourceFileManager m = new SourceFileManager("java", new HashMap<>());
+    String uri = "file:///tmp/magpie/Snap.java";
+    m.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 0, "class S {}")));
+    SourceFileSnapshot before = m.getSnapshot();
+    TextDocumentContentChangeEvent change =
+        new TextDocumentContentChangeEvent(
+            new Range(new Position(0, 9), new Position(0, 9)), 0, "int s; ");
+    m.didChange(
+        new DidChangeTextDocumentParams(
+            new VersionedTextDocumentIdentifier(uri, 1), Arrays.asList(change)));
+    SourceFileSnapshot after = m.getSnapshot();
+    assertTrue(after.getGeneration() > before.getGeneration());
+    // the snapshot taken before the change still sees the old text.
+    assertEquals("class S {}", before.getFiles().get(URI.create(uri)).getText());
+    assertEquals("class S {int s; }", after.getFiles().get(URI.create(uri)).getText());
+    assertFalse(before.getFingerprint().equals(after.getFingerprint()));
+    File shadowFile = after.getSourceFileModules().get(URI.create(uri)).getFile();
+    assertEquals("class S {int s; }", FileUtils.readFileToString(shadowFile, "UTF-8"));
+    // an older snapshot never overwrites the shadow file of a newer one.
+    before.getSourceFileModules();
+    assertEquals("class S {int s; }", FileUtils.readFileToString(shadowFile, "UTF-8"));
+    m.cleanUp();
+  }
 }
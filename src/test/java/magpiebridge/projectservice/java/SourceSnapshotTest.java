@@ -0,0 +1,81 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import magpiebridge.core.analysis.SourceSnapshot;
+import magpiebridge.core.analysis.SourceSnapshot.MethodChange;
+import org.junit.Test;
+
+public class SourceSnapshotTest {
+
+  private static final String FILE = "file:/project/src/p/A.java";
+
+  private static final String SOURCE =
+      "package p;\n"
+          + "public class A {\n"
+          + "  String f;\n"
+          + "  void m(String s) {\n"
+          + "    s.length();\n"
+          + "  }\n"
+          + "  void n() {\n"
+          + "    m(f);\n"
+          + "  }\n"
+          + "}\n";
+
+  private static SourceSnapshot snapshot(String text) {
+    return SourceSnapshot.of(Collections.singletonMap(FILE, text));
+  }
+
+  private static Optional<List<MethodChange>> changes(String text) {
+    return snapshot(text).changedMethods(snapshot(SOURCE));
+  }
+
+  @Test
+  public void testUnchanged() {
+    assertEquals(Optional.of(Collections.emptyList()), changes(SOURCE));
+  }
+
+  @Test
+  public void testBodyChange() throws MalformedURLException {
+    Optional<List<MethodChange>> changes =
+        changes(SOURCE.replace("s.length();", "s = null;\n    s.length();"));
+    assertTrue(changes.isPresent());
+    // n moved down a line, so its results are computed again as well.
+    assertEquals(2, changes.get().size());
+    MethodChange m = changes.get().get(0);
+    URL url = new URL(FILE);
+    assertTrue(m.containedBefore(url, 5));
+    assertFalse(m.containedBefore(url, 7));
+    assertTrue(m.contains(url, 7));
+    assertFalse(m.contains(new URL("file:/project/src/p/B.java"), 5));
+  }
+
+  @Test
+  public void testSignatureChange() {
+    assertFalse(changes(SOURCE.replace("void n()", "void n(int i)")).isPresent());
+    assertFalse(changes(SOURCE.replace("String f;", "String f, g;")).isPresent());
+    assertFalse(
+        snapshot(SOURCE)
+            .changedMethods(SourceSnapshot.of(Collections.singletonMap("file:/B.java", SOURCE)))
+            .isPresent());
+  }
+
+  @Test
+  public void testCallStructureChange() {
+    assertFalse(changes(SOURCE.replace("s.length();", "s.trim();")).isPresent());
+    assertFalse(changes(SOURCE.replace("s.length();", "Runnable r = () -> {};")).isPresent());
+  }
+
+  @Test
+  public void testUnparsable() {
+    Optional<List<MethodChange>> broken = changes(SOURCE.replace("s.length();", "s.length("));
+    assertFalse(broken.isPresent());
+  }
+}
@@ -0,0 +1,131 @@
+package magpiebridge.projectservice.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import magpiebridge.file.WorkspaceCrawler;
+import magpiebridge.file.WorkspaceCrawler.Inventory;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.FileChangeType;
+import org.eclipse.lsp4j.FileEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkspaceCrawlerTest {
+
+  private Path root;
+
+  @Before
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("workspace-crawler").toRealPath();
+    write(".gitignore", "# logs\n*.log\n!keep.log\n/out/\n");
+    write("a/A.java", "");
+    write("a/x.log", "");
+    write("a/keep.log", "");
+    write("a/out/O.java", "");
+    write("out/B.java", "");
+    write("build/C.java", "");
+    write("src/build/Builder.java", "");
+    write("sub/target/T.java", "");
+    write("node_modules/d/index.js", "");
+    write("docs/D.java", "");
+    write("sub/.gitignore", "gen/\n");
+    write("sub/S.java", "");
+    write("sub/gen/G.java", "");
+    write("pom.xml", "");
+    write("sub/pom.xml", "");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(root.toFile());
+  }
+
+  @Test
+  public void testInventory() {
+    List<String> excludes = new ArrayList<>(WorkspaceCrawler.DEFAULT_EXCLUDES);
+    excludes.add("/docs");
+    Inventory inventory = new WorkspaceCrawler(root, excludes).inventory();
+    // out/ is only ignored in the root, gen/ only below sub. build/ and target/ are only ignored
+    // next to a pom.xml, the package src/build is crawled.
+    assertEquals(
+        Arrays.asList(
+            root.resolve("a/A.java"),
+            root.resolve("a/out/O.java"),
+            root.resolve("src/build/Builder.java"),
+            root.resolve("sub/S.java")),
+        inventory.getFilesWithSuffix(".java"));
+    assertEquals(
+        Collections.singletonList(root.resolve("a/keep.log")),
+        inventory.getFilesWithSuffix(".log"));
+    assertEquals(
+        Arrays.asList(root.resolve("pom.xml"), root.resolve("sub/pom.xml")),
+        inventory.getFilesNamed("pom.xml"));
+    assertEquals(
+        Collections.singletonList(root.resolve("a/A.java")),
+        inventory.getFilesWithSuffix("A.java"));
+  }
+
+  @Test
+  public void testCrawlDirectory() {
+    WorkspaceCrawler crawler = new WorkspaceCrawler(root, WorkspaceCrawler.DEFAULT_EXCLUDES);
+    assertEquals(
+        Arrays.asList(
+            root.resolve("sub/.gitignore"),
+            root.resolve("sub/S.java"),
+            root.resolve("sub/pom.xml")),
+        crawler.crawl(root.resolve("sub")));
+    assertEquals(Collections.emptyList(), crawler.crawl(root.resolve("sub/gen")));
+    assertEquals(Collections.emptyList(), crawler.crawl(root.resolve("build")));
+    assertEquals(Collections.emptyList(), crawler.crawl(root.resolve("sub/target")));
+    assertEquals(
+        Collections.singletonList(root.resolve("src/build/Builder.java")),
+        crawler.crawl(root.resolve("src/build")));
+  }
+
+  @Test
+  public void testIsIgnored() {
+    WorkspaceCrawler crawler = new WorkspaceCrawler(root, WorkspaceCrawler.DEFAULT_EXCLUDES);
+    assertFalse(crawler.isIgnored(root.resolve("a/A.java")));
+    assertFalse(crawler.isIgnored(root.resolve("a/keep.log")));
+    assertTrue(crawler.isIgnored(root.resolve("a/x.log")));
+    assertTrue(crawler.isIgnored(root.resolve("sub/gen/G.java")));
+    assertTrue(crawler.isIgnored(root.resolve("sub/target/T.java")));
+    assertTrue(crawler.isIgnored(root.resolve("node_modules/d/index.js")));
+    assertTrue(crawler.isIgnored(root.resolveSibling("Other.java")));
+  }
+
+  @Test
+  public void testSharedInventory() throws IOException {
+    WorkspaceCrawler crawler = WorkspaceCrawler.of(root);
+    Inventory inventory = crawler.inventory();
+    assertSame(inventory, WorkspaceCrawler.of(root).inventory());
+    Path created = write("a/N.java", "");
+    WorkspaceCrawler.didChangeWatchedFiles(
+        new DidChangeWatchedFilesParams(
+            Collections.singletonList(
+                new FileEvent(created.toUri().toString(), FileChangeType.Created))));
+    Inventory updated = crawler.inventory();
+    assertNotSame(inventory, updated);
+    assertEquals(Collections.singletonList(created), updated.getFilesNamed("N.java"));
+  }
+
+  private Path write(String file, String content) throws IOException {
+    Path path = root.resolve(file);
+    Files.createDirectories(path.getParent());
+    return Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+  }
+}